@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// compares two JMH runs written with -rf csv, e.g. one per commit
+// java -cp target/benchmarks.jar bench.CompareResults before.csv after.csv
+public final class CompareResults {
+    private CompareResults() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CompareResults <baseline.csv> <candidate.csv>");
+            System.exit(2);
+        }
+        Map<String, double[]> baseline = read(Path.of(args[0]));
+        Map<String, double[]> candidate = read(Path.of(args[1]));
+
+        System.out.printf("%-90s %14s %14s %9s%n", "benchmark", "baseline", "candidate", "change");
+        for (Map.Entry<String, double[]> entry : candidate.entrySet()) {
+            double[] before = baseline.get(entry.getKey());
+            double[] after = entry.getValue();
+            if (before == null) {
+                System.out.printf("%-90s %14s %14.3f %9s%n", entry.getKey(), "-", after[0], "new");
+                continue;
+            }
+            double change = (after[0] - before[0]) / before[0] * 100;
+            //changes inside the combined error bars are not significant
+            boolean significant = Math.abs(after[0] - before[0]) > before[1] + after[1];
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%%%s%n", entry.getKey(), before[0], after[0], change, significant ? "" : " ~");
+        }
+    }
+
+    // key is benchmark, mode, unit and parameters; value is score and error
+    private static Map<String, double[]> read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path);
+        List<String> header = split(lines.get(0));
+        Map<String, double[]> results = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> columns = split(line);
+            StringBuilder key = new StringBuilder(columns.get(0).replaceFirst("^bench\\.", ""));
+            key.append(" ").append(columns.get(1)).append(" ").append(columns.get(6));
+            for (int i = 7; i < columns.size(); i++) {
+                key.append(" ").append(header.get(i).replace("Param: ", "")).append("=").append(columns.get(i));
+            }
+            double error = columns.get(5).isEmpty() || columns.get(5).equals("NaN") ? 0 : Double.parseDouble(columns.get(5));
+            results.put(key.toString(), new double[]{Double.parseDouble(columns.get(4)), error});
+        }
+        return results;
+    }
+
+    private static List<String> split(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                columns.add(column.toString());
+                column.setLength(0);
+            } else column.append(c);
+        }
+        columns.add(column.toString());
+        return columns;
+    }
+}
@@ -0,0 +1,427 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import tftp.TftpServer;
+
+// load test driver: many simulated RRQ/WRQ clients against a server, optionally through a LossProxy
+// java -cp target/benchmarks.jar bench.LoadGenerator --engine=nio --clients=2000 --duration=30 --loss=0.01
+// with --rate=0 (default) every client runs transfers back to back, otherwise transfers start at --rate per second
+// and --clients caps how many run at once; starts over the cap are counted as skipped
+// results are written as one JSON object to stdout or --output
+public final class LoadGenerator {
+    private LoadGenerator() {
+    }
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("engine", "blocking");
+        DEFAULTS.put("server", "");
+        DEFAULTS.put("clients", "100");
+        DEFAULTS.put("duration", "10");
+        DEFAULTS.put("rate", "0");
+        DEFAULTS.put("sizes", "64k,1m");
+        DEFAULTS.put("writes", "0");
+        DEFAULTS.put("blksize", "512");
+        DEFAULTS.put("windowsize", "1");
+        DEFAULTS.put("timeout", "200");
+        DEFAULTS.put("loss", "0");
+        DEFAULTS.put("reorder", "0");
+        DEFAULTS.put("delay", "0");
+        DEFAULTS.put("jitter", "0");
+        DEFAULTS.put("seed", "1");
+        DEFAULTS.put("output", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        if (options == null) {
+            System.err.println("usage: LoadGenerator [--name=value ...]");
+            for (Map.Entry<String, String> option : DEFAULTS.entrySet()) System.err.printf("  --%s (default %s)%n", option.getKey(), option.getValue().isEmpty() ? "none" : option.getValue());
+            System.exit(2);
+        }
+        //a log line per session would dominate an in-process run
+        if (System.getProperty("tftp.log.level") == null) System.setProperty("tftp.log.level", "warn");
+
+        Run run = new Run(options);
+        try {
+            String report = run.execute();
+            String output = options.get("output");
+            if (output.isEmpty()) System.out.println(report);
+            else Files.writeString(Path.of(output), report + "\n");
+        } finally {
+            run.cleanup();
+        }
+        System.exit(0);
+    }
+
+    // --name=value pairs over the defaults, null on an unknown name
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) return null;
+            String name = arg.substring(2, equals);
+            if (!options.containsKey(name)) return null;
+            options.put(name, arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    // 64k, 1m or a plain byte count
+    static long size(String value) {
+        String text = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (text.endsWith("k")) unit = 1024;
+        else if (text.endsWith("m")) unit = 1024 * 1024;
+        else if (text.endsWith("g")) unit = 1024L * 1024 * 1024;
+        if (unit != 1) text = text.substring(0, text.length() - 1);
+        return Long.parseLong(text) * unit;
+    }
+
+    private static final class Run {
+        final Map<String, String> options;
+        final int clients;
+        final int duration_seconds;
+        final double rate;
+        final long[] sizes;
+        final double writes;
+        final int block_size;
+        final int window_size;
+        final int timeout_ms;
+        final long seed;
+        final LossProxy.Impairment impairment;
+
+        Path directory;
+        InetSocketAddress server;
+        //the server started by this run, null when it targets an external one
+        TftpServer embedded;
+        LossProxy proxy;
+        boolean in_process;
+
+        final LongAdder started = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder client_retransmissions = new LongAdder();
+        final AtomicLong upload_ids = new AtomicLong();
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        final Kind reads = new Kind();
+        final Kind uploads = new Kind();
+
+        Run(Map<String, String> options) {
+            this.options = options;
+            this.clients = Integer.parseInt(options.get("clients"));
+            this.duration_seconds = Integer.parseInt(options.get("duration"));
+            this.rate = Double.parseDouble(options.get("rate"));
+            this.sizes = Arrays.stream(options.get("sizes").split(",")).mapToLong(LoadGenerator::size).toArray();
+            this.writes = Double.parseDouble(options.get("writes"));
+            this.block_size = Integer.parseInt(options.get("blksize"));
+            this.window_size = Integer.parseInt(options.get("windowsize"));
+            this.timeout_ms = Integer.parseInt(options.get("timeout"));
+            this.seed = Long.parseLong(options.get("seed"));
+            this.impairment = new LossProxy.Impairment(Double.parseDouble(options.get("loss")), Double.parseDouble(options.get("reorder")),
+                    Integer.parseInt(options.get("delay")), Integer.parseInt(options.get("jitter")));
+        }
+
+        String execute() throws Exception {
+            //names are relative to the server's working directory, an external server must run in this one
+            directory = Files.createTempDirectory(Path.of(""), "load-tftp-");
+            for (long size : sizes) {
+                byte[] content = new byte[(int) size];
+                for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+                Files.write(directory.resolve("file-" + size + ".bin"), content);
+            }
+
+            String external = options.get("server");
+            in_process = external.isEmpty();
+            if (in_process) {
+                embedded = Tftp.start_server(options.get("engine"));
+                server = Tftp.address(embedded);
+            } else {
+                int colon = external.lastIndexOf(':');
+                server = new InetSocketAddress(InetAddress.getByName(external.substring(0, colon)), Integer.parseInt(external.substring(colon + 1)));
+            }
+            long[] server_before = server_counters();
+            //the server registers its MXBean once its loop is running
+            for (int i = 0; in_process && server_before == null && i < 100; i++) {
+                Thread.sleep(20);
+                server_before = server_counters();
+            }
+            InetSocketAddress target = server;
+            if (!impairment.none()) {
+                proxy = new LossProxy(server, impairment, seed);
+                target = proxy.address();
+            }
+
+            long started_at = System.nanoTime();
+            long deadline = started_at + TimeUnit.SECONDS.toNanos(duration_seconds);
+            try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+                if (rate <= 0) closed_loop(workers, target, deadline);
+                else open_loop(workers, target, deadline);
+            }
+            double elapsed = (System.nanoTime() - started_at) / 1e9;
+            long[] server_after = server_counters();
+            return report(elapsed, server_before, server_after);
+        }
+
+        // every client starts its next transfer as soon as the previous one ends
+        private void closed_loop(ExecutorService workers, InetSocketAddress target, long deadline) {
+            for (int i = 0; i < clients; i++) {
+                SplittableRandom random = new SplittableRandom(seed + i);
+                workers.execute(() -> {
+                    while (System.nanoTime() < deadline) transfer(target, random);
+                });
+            }
+        }
+
+        // transfers start on a fixed schedule whether or not earlier ones have finished
+        private void open_loop(ExecutorService workers, InetSocketAddress target, long deadline) throws InterruptedException {
+            Semaphore running = new Semaphore(clients);
+            SplittableRandom random = new SplittableRandom(seed);
+            long interval = (long) (1e9 / rate);
+            long next = System.nanoTime();
+            while (next < deadline) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                next += interval;
+                if (!running.tryAcquire()) {
+                    skipped.increment();
+                    continue;
+                }
+                SplittableRandom own = random.split();
+                workers.execute(() -> {
+                    try {
+                        transfer(target, own);
+                    } finally {
+                        running.release();
+                    }
+                });
+            }
+        }
+
+        private void transfer(InetSocketAddress target, SplittableRandom random) {
+            long size = sizes[random.nextInt(sizes.length)];
+            boolean write = random.nextDouble() < writes;
+            Kind kind = write ? uploads : reads;
+            started.increment();
+            long begin = System.nanoTime();
+            try {
+                if (write) {
+                    Path upload = directory.resolve("upload-" + upload_ids.incrementAndGet() + ".bin");
+                    TftpClient.write(target, directory.getFileName() + "/" + upload.getFileName(), size, block_size, window_size, timeout_ms, client_retransmissions);
+                    if (in_process) Files.deleteIfExists(upload);
+                } else {
+                    long bytes = TftpClient.read(target, directory.getFileName() + "/file-" + size + ".bin", block_size, window_size, timeout_ms, client_retransmissions);
+                    if (bytes != size) throw new IOException("Short read: " + bytes + " of " + size + " bytes");
+                }
+                kind.completed((System.nanoTime() - begin) / 1000, size);
+            } catch (IOException | RuntimeException e) {
+                failures.computeIfAbsent(failure_kind(e), k -> new LongAdder()).increment();
+            }
+        }
+
+        private static String failure_kind(Exception e) {
+            String message = String.valueOf(e.getMessage());
+            if (message.contains("timed out")) return "timeout";
+            if (message.startsWith("Server error")) return "server_error";
+            if (message.startsWith("Short read")) return "short_read";
+            return e.getClass().getSimpleName();
+        }
+
+        // retransmits, timeouts and DATA blocks sent from the in-process server's MXBean, null for an external one
+        private long[] server_counters() {
+            if (!in_process) return null;
+            try {
+                MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+                Set<ObjectName> names = beans.queryNames(new ObjectName("tftp:type=Metrics,port=" + server.getPort()), null);
+                if (names.isEmpty()) return null;
+                ObjectName name = names.iterator().next();
+                return new long[]{(Long) beans.getAttribute(name, "Retransmits"), (Long) beans.getAttribute(name, "Timeouts"),
+                        (Long) beans.getAttribute(name, "BlocksSent"), (Long) beans.getAttribute(name, "BlocksReceived")};
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private String report(double elapsed, long[] server_before, long[] server_after) {
+            Json json = new Json();
+            json.open(null);
+            json.open("config");
+            for (Map.Entry<String, String> option : options.entrySet()) json.string(option.getKey(), option.getValue());
+            json.close();
+            json.number("elapsed_seconds", elapsed);
+
+            long completed = reads.count.sum() + uploads.count.sum();
+            long failed = failures.values().stream().mapToLong(LongAdder::sum).sum();
+            json.open("transfers");
+            json.number("started", started.sum());
+            json.number("completed", completed);
+            json.number("failed", failed);
+            json.number("skipped", skipped.sum());
+            json.number("per_second", completed / elapsed);
+            json.close();
+            json.open("failures");
+            for (Map.Entry<String, LongAdder> failure : failures.entrySet()) json.number(failure.getKey(), failure.getValue().sum());
+            json.close();
+
+            long bytes = reads.bytes.sum() + uploads.bytes.sum();
+            json.number("throughput_mib_per_second", bytes / elapsed / (1024 * 1024));
+            reads.write(json, "read", elapsed);
+            uploads.write(json, "write", elapsed);
+
+            json.open("retransmissions");
+            json.number("client", client_retransmissions.sum());
+            json.number("client_per_transfer", started.sum() == 0 ? 0 : (double) client_retransmissions.sum() / started.sum());
+            if (server_before != null && server_after != null) {
+                long retransmits = server_after[0] - server_before[0];
+                long blocks = server_after[2] - server_before[2];
+                json.number("server", retransmits);
+                json.number("server_timeouts", server_after[1] - server_before[1]);
+                json.number("server_rate", blocks == 0 ? 0 : (double) retransmits / blocks);
+                json.number("server_blocks_sent", blocks);
+                json.number("server_blocks_received", server_after[3] - server_before[3]);
+            } else {
+                json.nothing("server");
+            }
+            json.close();
+
+            if (proxy != null) {
+                json.open("proxy");
+                json.number("forwarded", proxy.forwarded.sum());
+                json.number("dropped", proxy.dropped.sum());
+                json.number("reordered", proxy.reordered.sum());
+                json.close();
+            }
+            json.close();
+            return json.toString();
+        }
+
+        void cleanup() throws IOException {
+            if (proxy != null) proxy.close();
+            if (embedded != null) embedded.close();
+            if (directory == null) return;
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // completed transfers of one direction, latencies kept in microseconds for the percentiles
+    private static final class Kind {
+        final LongAdder count = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        private final List<Long> latencies = new ArrayList<>();
+
+        void completed(long micros, long size) {
+            count.increment();
+            bytes.add(size);
+            synchronized (latencies) {
+                latencies.add(micros);
+            }
+        }
+
+        void write(Json json, String name, double elapsed) {
+            long[] sorted;
+            synchronized (latencies) {
+                sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            json.open(name);
+            json.number("completed", count.sum());
+            json.number("bytes", bytes.sum());
+            json.number("mib_per_second", bytes.sum() / elapsed / (1024 * 1024));
+            json.open("latency_ms");
+            json.number("mean", sorted.length == 0 ? 0 : Arrays.stream(sorted).average().orElse(0) / 1000);
+            json.number("p50", percentile(sorted, 0.50));
+            json.number("p90", percentile(sorted, 0.90));
+            json.number("p99", percentile(sorted, 0.99));
+            json.number("p999", percentile(sorted, 0.999));
+            json.number("max", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000.0);
+            json.close();
+            json.close();
+        }
+
+        // nearest rank
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(quantile * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1000.0;
+        }
+    }
+
+    // just enough of a JSON writer for the report: nested objects of strings and numbers
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder(1024);
+        private boolean first = true;
+
+        void open(String name) {
+            key(name);
+            out.append('{');
+            first = true;
+        }
+
+        void close() {
+            out.append('}');
+            first = false;
+        }
+
+        void string(String name, String value) {
+            key(name);
+            out.append('"');
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') out.append('\\');
+                if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+            out.append('"');
+        }
+
+        void number(String name, long value) {
+            key(name);
+            out.append(value);
+        }
+
+        void number(String name, double value) {
+            key(name);
+            out.append(Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+        }
+
+        void nothing(String name) {
+            key(name);
+            out.append("null");
+        }
+
+        private void key(String name) {
+            if (!first) out.append(',');
+            first = false;
+            if (name != null) out.append('"').append(name).append("\":");
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
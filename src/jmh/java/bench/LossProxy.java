@@ -0,0 +1,209 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// in-process UDP proxy between load test clients and the server that drops, delays and reorders datagrams
+// clients send to the proxy's port; every client gets its own upstream channel, so the server sees one address per
+// client. Replies come back from whatever port the server answers on (a session TID or the listening port) and
+// are forwarded from the proxy's port, later client packets go to the server address that answered last
+// the same impairments apply in both directions, one selector thread does all the work
+final class LossProxy implements Closeable {
+    // probability of dropping a datagram, of holding one back so later ones overtake it, and the added latency
+    record Impairment(double loss, double reorder, int delay_ms, int jitter_ms) {
+        static final Impairment NONE = new Impairment(0, 0, 0, 0);
+
+        boolean none() {
+            return loss <= 0 && reorder <= 0 && delay_ms <= 0 && jitter_ms <= 0;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final Impairment impairment;
+    private final SplittableRandom random;
+    private final DatagramChannel front;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    //only touched by the proxy thread
+    private final Map<SocketAddress, Upstream> upstreams = new HashMap<>();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    private long sequence = 0;
+    private long swept_at = System.nanoTime();
+
+    //a client quiet for this long has finished or given up, its upstream channel is closed
+    private static final long IDLE_NANOS = 5_000_000_000L;
+
+    final LongAdder forwarded = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder reordered = new LongAdder();
+
+    LossProxy(InetSocketAddress server, Impairment impairment, long seed) throws IOException {
+        this.server = server;
+        this.impairment = impairment;
+        this.random = new SplittableRandom(seed);
+        this.selector = Selector.open();
+        this.front = DatagramChannel.open();
+        this.front.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.front.configureBlocking(false);
+        this.front.register(selector, SelectionKey.OP_READ);
+        this.thread = new Thread(this::run, "loss-proxy");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) front.getLocalAddress();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Delayed next = delayed.peek();
+                long wait = next == null ? 1000 : Math.max(1, (next.due - System.nanoTime()) / 1_000_000);
+                if (next != null && next.due <= System.nanoTime()) selector.selectNow();
+                else selector.select(wait);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == front) from_clients();
+                    else from_server((Upstream) key.attachment());
+                }
+                release_due();
+                sweep();
+            } catch (IOException e) {
+                if (running) System.err.println("loss proxy: " + e.getMessage());
+            }
+        }
+    }
+
+    private void from_clients() throws IOException {
+        SocketAddress client;
+        while ((client = receive(front)) != null) {
+            Upstream upstream = upstreams.get(client);
+            if (upstream == null) {
+                upstream = new Upstream(client);
+                upstreams.put(client, upstream);
+            }
+            upstream.active_at = System.nanoTime();
+            forward(upstream.channel, upstream.server);
+        }
+    }
+
+    private void from_server(Upstream upstream) throws IOException {
+        SocketAddress source;
+        while ((source = receive(upstream.channel)) != null) {
+            upstream.server = source;
+            upstream.active_at = System.nanoTime();
+            forward(front, upstream.client);
+        }
+    }
+
+    private SocketAddress receive(DatagramChannel channel) throws IOException {
+        buffer.clear();
+        SocketAddress source = channel.receive(buffer);
+        buffer.flip();
+        return source;
+    }
+
+    // the datagram in buffer goes out now, later or not at all
+    private void forward(DatagramChannel channel, SocketAddress target) throws IOException {
+        if (impairment.loss > 0 && random.nextDouble() < impairment.loss) {
+            dropped.increment();
+            return;
+        }
+        long delay_ms = impairment.delay_ms;
+        if (impairment.jitter_ms > 0) delay_ms += random.nextInt(impairment.jitter_ms + 1);
+        if (impairment.reorder > 0 && random.nextDouble() < impairment.reorder) {
+            //held back long enough for the packets behind it to pass
+            delay_ms += 1 + impairment.delay_ms + impairment.jitter_ms;
+            reordered.increment();
+        }
+        if (delay_ms == 0) {
+            channel.send(buffer, target);
+            forwarded.increment();
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+        delayed.add(new Delayed(System.nanoTime() + delay_ms * 1_000_000, sequence++, channel, target, copy));
+    }
+
+    private void release_due() throws IOException {
+        long now = System.nanoTime();
+        while (!delayed.isEmpty() && delayed.peek().due <= now) {
+            Delayed packet = delayed.poll();
+            if (!packet.channel.isOpen()) continue;
+            packet.channel.send(packet.data, packet.target);
+            forwarded.increment();
+        }
+    }
+
+    private void sweep() throws IOException {
+        long now = System.nanoTime();
+        if (now - swept_at < 1_000_000_000L) return;
+        swept_at = now;
+        Iterator<Upstream> all = upstreams.values().iterator();
+        while (all.hasNext()) {
+            Upstream upstream = all.next();
+            if (now - upstream.active_at < IDLE_NANOS) continue;
+            upstream.channel.close();
+            all.remove();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Upstream upstream : upstreams.values()) upstream.channel.close();
+        front.close();
+        selector.close();
+    }
+
+    private final class Upstream {
+        final SocketAddress client;
+        final DatagramChannel channel;
+        SocketAddress server;
+        long active_at = System.nanoTime();
+
+        Upstream(SocketAddress client) throws IOException {
+            this.client = client;
+            this.server = LossProxy.this.server;
+            this.channel = DatagramChannel.open();
+            this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.channel.configureBlocking(false);
+            this.channel.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    // ties on the due time keep arrival order, so only reorder moves a packet behind later ones
+    private record Delayed(long due, long sequence, DatagramChannel channel, SocketAddress target, ByteBuffer data) implements Comparable<Delayed> {
+        @Override
+        public int compareTo(Delayed other) {
+            int by_due = Long.compare(due, other.due);
+            return by_due != 0 ? by_due : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import tftp.TftpServer;
+
+// starts servers for the transfer benchmarks and the load generator through the public TftpServer API
+// benchmarks of the package private codec and session code live in package tftp next to them
+final class Tftp {
+    private Tftp() {
+    }
+
+    // a server engine ("blocking" or "nio") on an ephemeral port, built like the command line does and run on its own thread
+    // the caller closes it, which stops the engine and unregisters its MXBean
+    static TftpServer start_server(String engine) throws Exception {
+        return TftpServer.builder().system_properties().engine(engine).build().start();
+    }
+
+    // where clients on this host reach the server
+    static InetSocketAddress address(TftpServer server) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+    }
+}
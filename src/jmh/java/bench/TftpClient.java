@@ -0,0 +1,171 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+// minimal octet mode client for the transfer benchmarks, blksize and windowsize are requested when not the defaults
+// block numbers are tracked as longs and matched on their low 16 bits like the server does
+final class TftpClient {
+    private static final int TIMEOUT_MS = 200;
+    private static final int MAX_RETRIES = 50;
+    //large enough for a full window of the biggest blocks, so drops measure the server and not this client
+    private static final int RECEIVE_BUFFER = 4 << 20;
+
+    private TftpClient() {
+    }
+
+    // downloads name and returns the number of bytes received
+    static long read(InetSocketAddress server, String name, int block_size, int window_size) throws IOException {
+        return read(server, name, block_size, window_size, TIMEOUT_MS, null);
+    }
+
+    // retransmissions counts the requests and acks sent again after timeout_ms without a packet, it may be null
+    static long read(InetSocketAddress server, String name, int block_size, int window_size, int timeout_ms, LongAdder retransmissions) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeout_ms);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+            byte[] request = request(1, name, block_size, window_size);
+            socket.send(new DatagramPacket(request, request.length, server));
+
+            byte[] buffer = new byte[block_size + 4];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            SocketAddress peer = null;
+            long received = 0;
+            long bytes = 0;
+            int in_window = 0;
+            int retries = 0;
+            while (true) {
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) throw new IOException("Read of " + name + " timed out");
+                    if (retransmissions != null) retransmissions.increment();
+                    if (peer == null) socket.send(new DatagramPacket(request, request.length, server));
+                    else ack(socket, peer, received);
+                    in_window = 0;
+                    continue;
+                }
+                if (peer == null) peer = packet.getSocketAddress();
+                else if (!peer.equals(packet.getSocketAddress())) continue;
+
+                int opcode = u16(buffer, 0);
+                if (opcode == 5) throw new IOException("Server error: " + new String(buffer, 4, packet.getLength() - 5, StandardCharsets.US_ASCII));
+                if (opcode == 6) {
+                    ack(socket, peer, 0);
+                    continue;
+                }
+                if (opcode != 3) continue;
+
+                long block = received + ((u16(buffer, 2) - received) & 0xFFFF);
+                if (block != received + 1) {
+                    //gap or duplicate, ack what arrived in order so the server resends from there
+                    ack(socket, peer, received);
+                    in_window = 0;
+                    continue;
+                }
+                retries = 0;
+                received = block;
+                int length = packet.getLength() - 4;
+                bytes += length;
+                if (length < block_size) {
+                    ack(socket, peer, received);
+                    return bytes;
+                }
+                if (++in_window == window_size) {
+                    ack(socket, peer, received);
+                    in_window = 0;
+                }
+            }
+        }
+    }
+
+    // uploads size bytes of a fixed pattern as name
+    static void write(InetSocketAddress server, String name, long size, int block_size, int window_size) throws IOException {
+        write(server, name, size, block_size, window_size, TIMEOUT_MS, null);
+    }
+
+    // retransmissions counts the requests and windows sent again after timeout_ms without an ack, it may be null
+    static void write(InetSocketAddress server, String name, long size, int block_size, int window_size, int timeout_ms, LongAdder retransmissions) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeout_ms);
+            byte[] request = request(2, name, block_size, window_size);
+            socket.send(new DatagramPacket(request, request.length, server));
+
+            byte[] payload = new byte[block_size + 4];
+            for (int i = 4; i < payload.length; i++) payload[i] = (byte) i;
+            payload[1] = 3;
+            byte[] buffer = new byte[516];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            long last_block = size / block_size + 1;
+            SocketAddress peer = null;
+            long acked = -1;
+            long next = 1;
+            int retries = 0;
+            while (true) {
+                if (acked >= 0) {
+                    while (next <= last_block && next - acked <= window_size) {
+                        int length = (int) Math.min(block_size, size - (next - 1) * block_size);
+                        payload[2] = (byte) (next >> 8);
+                        payload[3] = (byte) next;
+                        socket.send(new DatagramPacket(payload, length + 4, peer));
+                        next++;
+                    }
+                }
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) throw new IOException("Write of " + name + " timed out");
+                    if (retransmissions != null) retransmissions.increment();
+                    if (peer == null) socket.send(new DatagramPacket(request, request.length, server));
+                    else next = acked + 1;
+                    continue;
+                }
+                if (peer == null) peer = packet.getSocketAddress();
+                else if (!peer.equals(packet.getSocketAddress())) continue;
+
+                int opcode = u16(buffer, 0);
+                if (opcode == 5) throw new IOException("Server error: " + new String(buffer, 4, packet.getLength() - 5, StandardCharsets.US_ASCII));
+                if (opcode == 6 && acked < 0) {
+                    acked = 0;
+                    continue;
+                }
+                if (opcode != 4) continue;
+
+                long base = Math.max(acked, 0);
+                long block = base + ((u16(buffer, 2) - base) & 0xFFFF);
+                if (acked >= 0 && (block == acked || block >= next)) continue;
+                retries = 0;
+                acked = block;
+                if (acked == last_block) return;
+                //an ack short of what was sent means the server missed a block
+                next = acked + 1;
+            }
+        }
+    }
+
+    private static byte[] request(int opcode, String name, int block_size, int window_size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(opcode);
+        out.writeBytes((name + "\0octet\0").getBytes(StandardCharsets.US_ASCII));
+        if (block_size != 512) out.writeBytes(("blksize\0" + block_size + "\0").getBytes(StandardCharsets.US_ASCII));
+        if (window_size != 1) out.writeBytes(("windowsize\0" + window_size + "\0").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static void ack(DatagramSocket socket, SocketAddress peer, long block) throws IOException {
+        byte[] ack = {0, 4, (byte) (block >> 8), (byte) block};
+        socket.send(new DatagramPacket(ack, ack.length, peer));
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import tftp.TftpServer;
+
+// complete transfers against a server running in the benchmark JVM over loopback
+// one operation is `concurrency` simultaneous transfers of fileSize bytes each, so the score is the time for the batch
+// the server works relative to the current directory, the files live in a temporary directory below it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 4, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtftp.log.level=warn")
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int fileSize;
+
+    @Param({"512", "8192"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    @Param({"1", "8"})
+    public int concurrency;
+
+    private TftpServer server;
+    private InetSocketAddress address;
+    private Path directory;
+    private String download;
+    private ExecutorService clients;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory(Path.of(""), "jmh-tftp-");
+        download = directory.getFileName() + "/download.bin";
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        Files.write(directory.resolve("download.bin"), content);
+
+        server = Tftp.start_server(engine);
+        address = Tftp.address(server);
+        clients = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        clients.shutdownNow();
+        //every trial starts its own server, a leaked one would keep its loop and socket through the later trials
+        server.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+        }
+    }
+
+    @Benchmark
+    public long rrq() throws Exception {
+        List<Future<Long>> transfers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            transfers.add(clients.submit(() -> TftpClient.read(address, download, blockSize, windowSize)));
+        }
+        long bytes = 0;
+        for (Future<Long> transfer : transfers) bytes += transfer.get();
+        if (bytes != (long) fileSize * concurrency) throw new IllegalStateException("Short read: " + bytes + " bytes");
+        return bytes;
+    }
+
+    @Benchmark
+    public int wrq() throws Exception {
+        List<Future<?>> transfers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            String name = directory.getFileName() + "/upload-" + i + ".bin";
+            transfers.add(clients.submit(() -> {
+                TftpClient.write(address, name, fileSize, blockSize, windowSize);
+                return null;
+            }));
+        }
+        for (Future<?> transfer : transfers) transfer.get();
+        return concurrency;
+    }
+}
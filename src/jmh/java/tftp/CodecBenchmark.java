@@ -0,0 +1,108 @@
+package tftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// per packet encode and decode work on the send and ack paths, run with -prof gc for the allocation rate
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dtftp.log.level=warn")
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"512", "1468", "8192"})
+    public int blockSize;
+
+    private InetAddress ip;
+    private int port = 40000;
+    private byte[] data_packet;
+    private ByteBuffer data_view;
+    private DatagramPacket received;
+    private ByteBuffer ack_buffer;
+    private ByteBuffer direct_packet;
+    private byte[] scratch;
+    private UdpServer.LastAck last_ack;
+    private Path file;
+    private BlockSource source;
+    private byte[] packet_buffer;
+    private long block = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        ip = InetAddress.getLoopbackAddress();
+        data_packet = new byte[blockSize + 4];
+        data_packet[1] = 3;
+        data_packet[3] = 1;
+        data_view = ByteBuffer.wrap(data_packet);
+        received = new DatagramPacket(data_packet, data_packet.length, ip, port);
+        ack_buffer = ByteBuffer.allocate(4);
+        direct_packet = ByteBuffer.allocateDirect(blockSize + 4);
+        scratch = new byte[blockSize];
+        //the write session's last ack holder without a reply packet, enough for the checks of in order DATA packets
+        last_ack = new UdpServer.LastAck(null, new ServerContext(TftpConfig.from_system_properties()).metrics);
+
+        file = Files.createTempFile("codec", ".bin");
+        Files.write(file, new byte[blockSize * 64]);
+        source = new FileBlockSource(file.toString(), blockSize, 8);
+        packet_buffer = new byte[blockSize + 4];
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        source.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int decodeOpcodeAndBlock() {
+        return TftpCodec.opcode(data_view) + TftpCodec.block(data_view);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDataHeader() {
+        return TftpCodec.put_data_header(data_view, ++block);
+    }
+
+    // encoded into the session's reusable ack buffer
+    @Benchmark
+    public ByteBuffer buildAckPacket() {
+        return TftpCodec.put_ack(ack_buffer, ++block);
+    }
+
+    // header and payload of the next block from a file backed source, the read ahead window keeps it in memory
+    @Benchmark
+    public int buildDataPacket() throws IOException {
+        return source.read_packet((++block) & 63, packet_buffer);
+    }
+
+    // the same packet copied into a direct buffer, as the nio engine sends it
+    @Benchmark
+    public ByteBuffer buildDirectDataPacket() throws IOException {
+        return source.read_packet((++block) & 63, direct_packet, scratch);
+    }
+
+    // the write session's validation of an in order DATA packet
+    @Benchmark
+    public int checkDataPacket() {
+        return UdpServer.check_packet_for_data(null, received, data_view, last_ack, ip, port, 1L);
+    }
+}
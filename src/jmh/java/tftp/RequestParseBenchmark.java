@@ -0,0 +1,54 @@
+package tftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// RRQ/WRQ decoding as done when a request arrives: one pass for filename, mode and options, then resolving the name under the served directory
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dtftp.log.level=warn")
+@State(Scope.Thread)
+public class RequestParseBenchmark {
+    @Param({"none", "blksize", "all"})
+    public String options;
+
+    private ByteBuffer request;
+    private PathResolver paths;
+
+    @Setup
+    public void setup() {
+        //without the metadata cache or a watcher
+        paths = new PathResolver(".", 0, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(1);
+        out.writeBytes("images/firmware/device-image-v2.bin\0octet\0".getBytes(StandardCharsets.US_ASCII));
+        if (!options.equals("none")) out.writeBytes("blksize\0001468\0".getBytes(StandardCharsets.US_ASCII));
+        if (options.equals("all")) out.writeBytes("windowsize\00016\0timeout\0002\0tsize\0000\0".getBytes(StandardCharsets.US_ASCII));
+        request = ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Benchmark
+    public void parseRequest(Blackhole blackhole) {
+        TftpCodec.Request parsed = TftpCodec.parse_request(request);
+        blackhole.consume(parsed);
+        blackhole.consume(paths.resolve(parsed.filename()));
+    }
+}
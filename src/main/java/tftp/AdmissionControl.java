@@ -0,0 +1,121 @@
+package tftp;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// caps on concurrent sessions, in total and per client address, 0 means no cap
+// a lock and condition rather than synchronized so waiting virtual threads do not pin their carrier
+class AdmissionControl {
+    enum Result {
+        ADMITTED(null),
+        SERVER_BUSY("Server busy, try again later"),
+        CLIENT_BUSY("Too many transfers from this address");
+
+        // error message for the client when the request is refused
+        final String message;
+
+        Result(String message) {
+            this.message = message;
+        }
+    }
+
+    private final int max_sessions;
+    private final int max_per_client;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    //guarded by lock
+    private final Map<InetAddress, Integer> per_client = new HashMap<>();
+    private int active = 0;
+    private int waiting = 0;
+
+    AdmissionControl(int max_sessions, int max_per_client) {
+        this.max_sessions = max_sessions;
+        this.max_per_client = max_per_client;
+    }
+
+    Result try_acquire(InetAddress client) {
+        lock.lock();
+        try {
+            return take(client);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // waits up to wait_ms for a free slot, the result of the last attempt when none frees up
+    Result acquire(InetAddress client, long wait_ms) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(wait_ms);
+        lock.lock();
+        try {
+            Result result = take(client);
+            if (result == Result.ADMITTED || remaining <= 0) return result;
+            waiting++;
+            try {
+                while (result != Result.ADMITTED && remaining > 0) {
+                    remaining = released.awaitNanos(remaining);
+                    result = take(client);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting--;
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(InetAddress client) {
+        lock.lock();
+        try {
+            active--;
+            per_client.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int active() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String describe() {
+        if (max_sessions <= 0 && max_per_client <= 0) return "unlimited";
+        return String.format("%s sessions, %s per client", limit(max_sessions), limit(max_per_client));
+    }
+
+    private static String limit(int value) {
+        return value > 0 ? Integer.toString(value) : "unlimited";
+    }
+
+    private Result take(InetAddress client) {
+        if (max_sessions > 0 && active >= max_sessions) return Result.SERVER_BUSY;
+        int count = per_client.getOrDefault(client, 0);
+        if (max_per_client > 0 && count >= max_per_client) return Result.CLIENT_BUSY;
+        active++;
+        per_client.put(client, count + 1);
+        return Result.ADMITTED;
+    }
+}
@@ -0,0 +1,131 @@
+package tftp;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// token bucket pacing for read sessions, a global rate shared fairly between the sessions that are sending
+// and an optional cap per session; rates are in bytes per second, 0 means unlimited
+// every session paces against its own bucket filled at its share: the global rate split evenly over the sessions
+// that sent recently, capped at the per session rate. Sessions held back by their client drop out of the count
+// after IDLE_NANOS, so their part of the link goes to the others
+class BandwidthScheduler {
+    private static final long IDLE_NANOS = 100_000_000L;
+    private static final long SHARE_INTERVAL_NANOS = 10_000_000L;
+
+    //bucket depth, the burst a session may send at once; never below one packet of the largest block size
+    private static final long MIN_DEPTH = 65536;
+
+    private final long global_rate;
+    private final long session_rate;
+    private final Set<Throttle> throttles = ConcurrentHashMap.newKeySet();
+
+    private volatile long share;
+    private final AtomicLong share_updated_at = new AtomicLong();
+
+    private static final Throttle UNLIMITED = new Throttle(null, 0);
+
+    BandwidthScheduler(long global_rate, long session_rate) {
+        this.global_rate = global_rate;
+        this.session_rate = session_rate;
+        this.share = global_rate > 0 ? global_rate : session_rate;
+    }
+
+    boolean enabled() {
+        return global_rate > 0 || session_rate > 0;
+    }
+
+    // a throttle for one read session, closed when the session ends
+    Throttle open() {
+        return open(System.nanoTime());
+    }
+
+    // the bucket starts empty at now, tests pass their own clock here and to wait_nanos
+    Throttle open(long now) {
+        if (!enabled()) return UNLIMITED;
+        Throttle throttle = new Throttle(this, now);
+        throttles.add(throttle);
+        return throttle;
+    }
+
+    String describe() {
+        if (!enabled()) return "unlimited";
+        return String.format("%s total, %s per session", rate(global_rate), rate(session_rate));
+    }
+
+    long current_share() {
+        return share;
+    }
+
+    private static String rate(long bytes_per_second) {
+        return bytes_per_second > 0 ? (bytes_per_second / 1024) + " KiB/s" : "unlimited";
+    }
+
+    // recomputed at most every SHARE_INTERVAL_NANOS by whichever session gets there first
+    private long share(long now) {
+        long updated_at = share_updated_at.get();
+        if (now - updated_at >= SHARE_INTERVAL_NANOS && share_updated_at.compareAndSet(updated_at, now)) {
+            long rate = session_rate;
+            if (global_rate > 0) {
+                int sending = 0;
+                for (Throttle throttle : throttles) {
+                    if (now - throttle.last_used < IDLE_NANOS) sending++;
+                }
+                long fair = global_rate / Math.max(1, sending);
+                rate = session_rate > 0 ? Math.min(session_rate, fair) : fair;
+            }
+            share = rate;
+        }
+        return share;
+    }
+
+    // used by a single session at a time, so the bucket itself needs no locking
+    static final class Throttle implements AutoCloseable {
+        private final BandwidthScheduler scheduler;
+        private double tokens;
+        private long refilled_at;
+        volatile long last_used;
+
+        private Throttle(BandwidthScheduler scheduler, long now) {
+            this.scheduler = scheduler;
+            this.refilled_at = now;
+            this.last_used = now;
+        }
+
+        // nanoseconds until bytes may be sent, 0 when they can go now; nothing is taken from the bucket
+        long wait_nanos(int bytes) {
+            return wait_nanos(bytes, System.nanoTime());
+        }
+
+        long wait_nanos(int bytes, long now) {
+            if (scheduler == null) return 0;
+            last_used = now;
+            long rate = scheduler.share(now);
+            if (rate <= 0) return 0;
+            double depth = Math.max(MIN_DEPTH, rate / 20.0);
+            //no longer than it takes to fill the bucket, so a long idle gap times a high rate cannot overflow
+            long elapsed = Math.min(now - refilled_at, (long) Math.ceil(depth * 1e9 / rate));
+            tokens = Math.min(depth, tokens + elapsed * (rate / 1e9));
+            refilled_at = now;
+            if (tokens >= bytes) return 0;
+            return (long) ((bytes - tokens) * 1e9 / rate) + 1;
+        }
+
+        void consume(int bytes) {
+            if (scheduler != null) tokens -= bytes;
+        }
+
+        // blocks the calling session until bytes may be sent, then takes them from the bucket
+        void pace(int bytes) {
+            long wait;
+            while ((wait = wait_nanos(bytes)) > 0) LockSupport.parkNanos(wait);
+            consume(bytes);
+        }
+
+        @Override
+        public void close() {
+            if (scheduler != null) scheduler.throttles.remove(this);
+        }
+    }
+}
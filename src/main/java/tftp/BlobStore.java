@@ -0,0 +1,436 @@
+package tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// content addressed storage behind the local store's uploads, enabled with tftp.store.dedupe
+// an upload is hashed (SHA-256) block by block as it arrives; on commit its bytes become blobs/<2 hex>/<64 hex> unless
+// that blob already exists, and the requested name is published as a hard link to the blob. A repeated upload of the
+// same content costs the hash and a rename, nothing is written. Uploads up to buffer_bytes wait on the heap until
+// their hash is known, larger ones spill to a staging file through the write behind BlockWriter; every upload's heap
+// buffer is taken from one shared budget, an upload that finds the budget spent spills at once
+// blobs are never changed, so every name linked to one shares its packet cache entry and mapping. Names are only
+// replaced by renaming a new link over them; a program editing a linked file in place changes every name linked to it
+// a commit removes the blob its name linked to before if nothing else links to it; blobs orphaned otherwise (names
+// deleted outside the server) are swept every sweep interval, and with staging files left by a crash at startup
+class BlobStore implements Closeable {
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String STAGING = "incoming-";
+
+    final Path directory;
+    private final long buffer_bytes;
+    private final TftpConfig config;
+
+    //bytes every upload's heap buffer may still take together
+    private final AtomicLong buffer_budget;
+
+    //commits hold it shared from finding their blob until their name links to it, removing a blob takes it exclusively
+    //so no blob goes away between a commit seeing it and linking to it
+    private final ReentrantReadWriteLock links = new ReentrantReadWriteLock();
+    private final Thread sweeper;
+
+    //blob by file key (device and inode), which every link to it shares
+    private final ConcurrentHashMap<Object, Path> by_key = new ConcurrentHashMap<>();
+
+    final LongAdder new_uploads = new LongAdder();
+    final LongAdder duplicate_uploads = new LongAdder();
+    final LongAdder bytes_saved = new LongAdder();
+    final LongAdder orphans_removed = new LongAdder();
+    final LongAdder early_spills = new LongAdder();
+
+    BlobStore(Path directory, TftpConfig config) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.config = config;
+        this.buffer_bytes = Math.min(config.dedupe_buffer_megabytes * 1024L * 1024L, Integer.MAX_VALUE - 8);
+        this.buffer_budget = new AtomicLong(Math.max(0, config.dedupe_buffer_total_megabytes) * 1024L * 1024L);
+        Files.createDirectories(this.directory);
+        scan(true);
+        long interval_ms = config.dedupe_sweep_seconds * 1000L;
+        this.sweeper = interval_ms <= 0 ? null : Thread.ofPlatform().name("blob-sweeper").daemon(true).start(() -> sweep_every(interval_ms));
+    }
+
+    // the blob a file with this key links to, null when it is not a deduplicated upload
+    Path blob(Object file_key) {
+        return file_key == null ? null : by_key.get(file_key);
+    }
+
+    // published runs once the name links to its blob, like BlockWriter's
+    BlockSink open(Path target, int block_size, Runnable published) {
+        return new Upload(target.toAbsolutePath(), block_size, published);
+    }
+
+    int size() {
+        return by_key.size();
+    }
+
+    String describe() {
+        return String.format("deduplicated into %s | %d blobs, uploads up to %d MB hashed before writing (%d MB in total) | %s%s", directory,
+                by_key.size(), config.dedupe_buffer_megabytes, config.dedupe_buffer_total_megabytes,
+                sweeper == null ? "unlinked blobs swept at startup" : "unlinked blobs swept every " + config.dedupe_sweep_seconds + " s",
+                orphans_removed.sum() > 0 ? " | " + orphans_removed.sum() + " unlinked blobs removed" : "");
+    }
+
+    // stops the sweeper, uploads in progress still commit
+    @Override
+    public void close() {
+        if (sweeper != null) sweeper.interrupt();
+    }
+
+    // removes the blobs no name links to any more, returns how many
+    // candidates are found without the lock and checked again while holding it
+    int sweep() throws IOException {
+        List<Path> unlinked = new ArrayList<>();
+        scan(false, unlinked);
+        if (unlinked.isEmpty()) return 0;
+        int removed = 0;
+        links.writeLock().lock();
+        try {
+            for (Path blob : unlinked) {
+                if (remove_if_unlinked(blob)) removed++;
+            }
+        } finally {
+            links.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    private void sweep_every(long interval_ms) {
+        while (true) {
+            try {
+                Thread.sleep(interval_ms);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                int removed = sweep();
+                if (removed > 0) Log.info("Blob store | %d unlinked blobs removed", removed);
+            } catch (IOException e) {
+                Log.warn("Blob store | Sweep of %s failed | %s", directory, e.getMessage());
+            }
+        }
+    }
+
+    // indexes the blobs and removes the unlinked ones, at startup also the staging files a crash left
+    private void scan(boolean startup) throws IOException {
+        List<Path> unlinked = new ArrayList<>();
+        scan(startup, unlinked);
+        for (Path blob : unlinked) remove_if_unlinked(blob);
+    }
+
+    private void scan(boolean startup, List<Path> unlinked) throws IOException {
+        try (DirectoryStream<Path> top = Files.newDirectoryStream(directory)) {
+            for (Path entry : top) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(STAGING) || name.startsWith("." + STAGING)) {
+                    if (startup) Files.deleteIfExists(entry);
+                    continue;
+                }
+                if (name.length() != 2 || !Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) continue;
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(entry)) {
+                    for (Path blob : blobs) {
+                        if (!is_hash(blob.getFileName().toString())) continue;
+                        if (links(blob) == 1) {
+                            unlinked.add(blob);
+                            continue;
+                        }
+                        Object key = file_key(blob);
+                        if (key != null) by_key.putIfAbsent(key, blob);
+                    }
+                }
+            }
+        }
+    }
+
+    // callers hold the write lock, or are the constructor
+    private boolean remove_if_unlinked(Path blob) throws IOException {
+        if (links(blob) != 1) return false;
+        Object key = file_key(blob);
+        if (!Files.deleteIfExists(blob)) return false;
+        if (key != null) by_key.remove(key, blob);
+        orphans_removed.increment();
+        return true;
+    }
+
+    // the blob a name linked to before its commit replaced it, removed unless another name still links to it
+    // skipped while other commits are linking, the sweep finds it later
+    private void release(Path blob) {
+        if (blob == null || !links.writeLock().tryLock()) return;
+        try {
+            remove_if_unlinked(blob);
+        } catch (IOException e) {
+            Log.warn("Blob store | Could not remove unlinked blob %s | %s", blob, e.getMessage());
+        } finally {
+            links.writeLock().unlock();
+        }
+    }
+
+    // takes count bytes from the shared heap budget, false when it does not have them
+    private boolean reserve(long count) {
+        while (true) {
+            long left = buffer_budget.get();
+            if (left < count) return false;
+            if (buffer_budget.compareAndSet(left, left - count)) return true;
+        }
+    }
+
+    private static boolean is_hash(String name) {
+        if (name.length() != 64) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    // -1 where the filesystem does not report link counts, such a blob is kept
+    private static int links(Path blob) {
+        try {
+            return (Integer) Files.getAttribute(blob, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return -1;
+        }
+    }
+
+    private static Object file_key(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void sync_directory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // not every platform allows opening a directory
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private final class Upload implements BlockSink {
+        private final Path target;
+        private final int block_size;
+        private final Runnable published;
+        private final MessageDigest digest = sha256();
+
+        //the upload so far, until it outgrows buffer_bytes or the shared budget and moves to the staging file
+        //its length is what the upload holds of the budget, null once given back
+        private byte[] buffer = new byte[0];
+        private int buffered = 0;
+        private BlockWriter spill;
+        private Path staging;
+
+        private long bytes_written = 0;
+        private boolean done = false;
+
+        Upload(Path target, int block_size, Runnable published) {
+            this.target = target;
+            this.block_size = block_size;
+            this.published = published;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            check_open();
+            digest.update(data, offset, length);
+            if (spill == null && !room(length)) spill();
+            if (spill != null) {
+                spill.write(data, offset, length);
+            } else {
+                System.arraycopy(data, offset, buffer, buffered, length);
+                buffered += length;
+            }
+            bytes_written += length;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            check_open();
+            int length = data.remaining();
+            digest.update(data.duplicate());
+            if (spill == null && !room(length)) spill();
+            if (spill != null) {
+                spill.write(data);
+            } else {
+                data.get(buffer, buffered, length);
+                buffered += length;
+            }
+            bytes_written += length;
+        }
+
+        @Override
+        public long bytes_written() {
+            return bytes_written;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            check_open();
+            done = true;
+            String hash = HEX.formatHex(digest.digest());
+            Path blob = directory.resolve(hash.substring(0, 2)).resolve(hash);
+            Path replaced;
+            links.readLock().lock();
+            try {
+                if (Files.exists(blob)) {
+                    if (spill != null) spill.abort();
+                    free_buffer();
+                    duplicate_uploads.increment();
+                    bytes_saved.add(bytes_written);
+                    //the name already links to this content, there is nothing to publish
+                    if (same_file(target, blob)) return;
+                } else {
+                    store(blob);
+                    new_uploads.increment();
+                }
+                replaced = blob(file_key(target));
+                link(blob);
+            } finally {
+                links.readLock().unlock();
+            }
+            published.run();
+            if (replaced != null && !replaced.equals(blob)) release(replaced);
+        }
+
+        @Override
+        public void abort() {
+            done = true;
+            free_buffer();
+            if (spill != null) spill.abort();
+            if (staging == null) return;
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!done) abort();
+        }
+
+        // the upload outgrew the heap buffer, what was buffered is written first
+        private void spill() throws IOException {
+            staging = directory.resolve(STAGING + UUID.randomUUID());
+            spill = new BlockWriter(staging, block_size, config.write_queue_blocks, config.fsync_every, UdpServer.thread_factory(config, "write-behind-"), () -> {});
+            for (int offset = 0; offset < buffered; offset += block_size) spill.write(buffer, offset, Math.min(block_size, buffered - offset));
+            free_buffer();
+        }
+
+        // new content: the staged or buffered bytes are synced and renamed to the blob's name
+        private void store(Path blob) throws IOException {
+            Path staged;
+            if (spill != null) {
+                spill.commit();
+                staged = staging;
+            } else {
+                //default permissions like BlockWriter's part files, the blob's mode is what every linked name shows
+                staged = BlockWriter.create_part(directory, "." + STAGING);
+                try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, buffered);
+                    while (data.hasRemaining()) channel.write(data);
+                    channel.force(true);
+                } catch (IOException e) {
+                    Files.deleteIfExists(staged);
+                    throw e;
+                }
+                free_buffer();
+            }
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.move(staged, blob);
+            } catch (FileAlreadyExistsException e) {
+                //the same content was committed by a concurrent upload
+                Files.deleteIfExists(staged);
+            }
+            sync_directory(blob.getParent());
+            Object key = file_key(blob);
+            if (key != null) by_key.put(key, blob);
+        }
+
+        // a new link next to the target renamed over it, readers see the old or the new version and never neither
+        private void link(Path blob) throws IOException {
+            Path link = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".link");
+            try {
+                Files.createLink(link, blob);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                //the target is on another filesystem or links are not supported, the name gets its own copy
+                Files.copy(blob, link);
+            }
+            try {
+                Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Files.deleteIfExists(link);
+                throw e;
+            }
+            sync_directory(target.getParent());
+        }
+
+        private boolean same_file(Path path, Path blob) {
+            try {
+                return Files.isSameFile(path, blob);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        // grows the buffer to take count more bytes, false when that would pass buffer_bytes or the shared budget
+        private boolean room(int count) {
+            long needed = buffered + (long) count;
+            if (needed > buffer_bytes) return false;
+            if (needed <= buffer.length) return true;
+            long length = Math.min(buffer_bytes, Math.max(Math.max(buffer.length * 2L, needed), Math.max(block_size, 512) * 16L));
+            //a tight budget still lets the upload take exactly what it needs
+            if (!reserve(length - buffer.length)) {
+                length = needed;
+                if (!reserve(length - buffer.length)) {
+                    early_spills.increment();
+                    return false;
+                }
+            }
+            buffer = Arrays.copyOf(buffer, (int) length);
+            return true;
+        }
+
+        private void free_buffer() {
+            if (buffer == null) return;
+            buffer_budget.addAndGet(buffer.length);
+            buffer = null;
+            buffered = 0;
+        }
+
+        private void check_open() throws IOException {
+            if (done) throw new IOException("Upload already finished");
+        }
+    }
+}
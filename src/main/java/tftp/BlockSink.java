@@ -0,0 +1,25 @@
+package tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// an upload in progress, blocks are appended in order and nothing is visible to readers before commit
+public interface BlockSink extends Closeable {
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    // appends the remaining bytes of data, e.g. a received packet positioned after its header
+    void write(ByteBuffer data) throws IOException;
+
+    long bytes_written();
+
+    // makes the upload the file's current version, durably for stores that persist
+    void commit() throws IOException;
+
+    // drops everything written so far, the current version is left untouched
+    void abort();
+
+    // aborts unless the sink was committed
+    @Override
+    void close();
+}
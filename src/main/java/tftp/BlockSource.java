@@ -0,0 +1,50 @@
+package tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// a file opened for reading, served block by block; sources are used by one session at a time
+public interface BlockSource extends Closeable {
+    // total number of bytes that will be served
+    long size();
+
+    int block_size();
+
+    // copies the payload of the given block (0 based) into dst starting at offset
+    // returns the payload length, anything shorter than block_size() is the last block
+    int read_block(long block_index, byte[] dst, int offset) throws IOException;
+
+    // writes the complete DATA packet for the given block into dst, returns the packet length
+    default int read_packet(long block_index, byte[] dst) throws IOException {
+        int length = read_block(block_index, dst, 4);
+        long block_num = block_index + 1;
+        dst[0] = 0;
+        dst[1] = 3;
+        dst[2] = (byte) (block_num >> 8);
+        dst[3] = (byte) block_num;
+        return length + 4;
+    }
+
+    // same packet written into dst from index 0, which may be direct, returns dst flipped
+    // scratch is an array of at least block_size() bytes kept by the caller across packets, it is only touched
+    // when dst has no backing array; sources that copy straight into direct buffers override this and ignore it
+    default ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) throws IOException {
+        dst.clear();
+        int length;
+        if (dst.hasArray()) {
+            length = read_block(block_index, dst.array(), dst.arrayOffset() + 4);
+        } else {
+            length = read_block(block_index, scratch, 0);
+            dst.put(4, scratch, 0, length);
+        }
+        TftpCodec.put_data_header(dst, block_index + 1);
+        return dst.limit(length + 4);
+    }
+
+    // a prebuilt DATA packet that can be sent as is, or null when the source has to copy
+    // the returned buffer is only valid until the next call
+    default ByteBuffer packet_view(long block_index) {
+        return null;
+    }
+}
@@ -0,0 +1,252 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+// streams an upload into a temp file next to the target and renames it into place on commit
+// the temp file is named .<target>.<n>.part, which PathResolver refuses to serve or overwrite
+// the session hands blocks to a write behind thread through a fixed set of buffers,
+// so memory stays constant and the session only waits on disk when the writer falls behind
+class BlockWriter implements BlockSink {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final int fsync_every;
+
+    //tells the store's caches that the target has a new version, run once the rename is durable
+    private final Runnable published;
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> pending;
+    private final Thread writer;
+
+    private volatile IOException failure;
+    //syncs of the temp file while blocks arrive, the one on commit is not counted
+    private volatile long block_syncs = 0;
+    private long bytes_written = 0;
+    private boolean finished = false;
+
+    // fsync_every: 1 syncs every block, N every N blocks, 0 only on commit
+    BlockWriter(Path target, int block_size, int queue_blocks, int fsync_every, ThreadFactory thread_factory, Runnable published) throws IOException {
+        this.target = target.toAbsolutePath();
+        this.fsync_every = fsync_every;
+        this.published = published;
+
+        Path directory = this.target.getParent();
+        this.temp = create_part(directory, "." + this.target.getFileName() + ".");
+        try {
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        int count = Math.max(1, queue_blocks);
+        this.free = new ArrayBlockingQueue<>(count);
+        this.pending = new ArrayBlockingQueue<>(count + 1);
+        for (int i = 0; i < count; i++) free.add(ByteBuffer.allocate(block_size));
+
+        this.writer = thread_factory.newThread(this::drain);
+        this.writer.start();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        check_failure();
+        ByteBuffer buffer = take(free);
+        buffer.clear();
+        buffer.put(data, offset, length);
+        buffer.flip();
+        put(pending, buffer);
+        bytes_written += length;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        check_failure();
+        int length = data.remaining();
+        ByteBuffer buffer = take(free);
+        buffer.clear();
+        buffer.put(data);
+        buffer.flip();
+        put(pending, buffer);
+        bytes_written += length;
+    }
+
+    @Override
+    public long bytes_written() {
+        return bytes_written;
+    }
+
+    long block_syncs() {
+        return block_syncs;
+    }
+
+    // waits for the queued blocks, syncs the temp file and atomically replaces the target
+    @Override
+    public void commit() throws IOException {
+        TftpEvents.FileCommit event = new TftpEvents.FileCommit();
+        event.begin();
+        finish();
+        check_failure();
+        channel.force(true);
+        channel.close();
+
+        //a replaced file keeps its mode, as it did when uploads were written in place
+        keep_permissions(target, temp);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        //make the rename itself durable
+        try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException ignored) {
+            // not every platform allows opening a directory, the data itself is already synced
+        }
+        published.run();
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = target.toString();
+            event.bytes = bytes_written;
+            event.commit();
+        }
+    }
+
+    // drops everything written so far, the target is left untouched
+    @Override
+    public void abort() {
+        try {
+            finish();
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel.isOpen()) abort();
+    }
+
+    // a new empty file named prefix<random>.part in directory
+    // unlike Files.createTempFile (always 0600) it gets the default permissions, and the rename carries them to the target
+    static Path create_part(Path directory, String prefix) throws IOException {
+        while (true) {
+            Path part = directory.resolve(prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try {
+                return Files.createFile(part);
+            } catch (FileAlreadyExistsException e) {
+                // another upload drew the same name, draw again
+            }
+        }
+    }
+
+    private static void keep_permissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (IOException | UnsupportedOperationException ignored) {
+            // no file to replace, or no POSIX permissions on this filesystem
+        }
+    }
+
+    private void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        put(pending, END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for pending writes", e);
+        }
+    }
+
+    private void drain() {
+        long blocks = 0;
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = pending.take();
+            } catch (InterruptedException e) {
+                failure = new IOException("Write behind stage interrupted", e);
+                //a session waiting for a free buffer wakes up, queues its block and sees the failure on the next write
+                ByteBuffer queued;
+                while ((queued = pending.poll()) != null) {
+                    if (queued != END) free.add(queued);
+                }
+                return;
+            }
+            if (buffer == END) return;
+
+            try {
+                if (failure == null) {
+                    TftpEvents.FileWrite event = new TftpEvents.FileWrite();
+                    event.begin();
+                    int length = buffer.remaining();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    blocks++;
+                    boolean synced = fsync_every > 0 && blocks % fsync_every == 0;
+                    if (synced) {
+                        channel.force(false);
+                        block_syncs++;
+                    }
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.path = temp.toString();
+                        event.bytes = length;
+                        event.synced = synced;
+                        event.commit();
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            free.add(buffer);
+        }
+    }
+
+    private void check_failure() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("Write behind stage failed | " + e.getMessage(), e);
+    }
+
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free buffer", e);
+        }
+    }
+
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) throws IOException {
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing a block", e);
+        }
+    }
+}
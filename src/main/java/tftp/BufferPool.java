@@ -0,0 +1,63 @@
+package tftp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// reusable packet buffers in power of two size classes from 512 bytes to 64 KiB
+// sessions take their buffers when they start and hand them back when they end, so transfers reuse memory
+// instead of allocating per packet; larger requests and buffers beyond the per class limit are left to the GC
+class BufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 16;
+
+    private final boolean direct;
+    private final int max_per_class;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] sizes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(boolean direct, int max_per_class) {
+        this.direct = direct;
+        this.max_per_class = max_per_class;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.free = new ConcurrentLinkedQueue[classes];
+        this.sizes = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    // a cleared buffer with at least capacity bytes, its limit set to capacity
+    ByteBuffer acquire(int capacity) {
+        int index = class_index(capacity);
+        if (index < 0) return allocate(capacity);
+        ByteBuffer buffer = free[index].poll();
+        if (buffer == null) buffer = allocate(1 << (index + MIN_SHIFT));
+        else sizes[index].decrementAndGet();
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || Integer.bitCount(buffer.capacity()) != 1) return;
+        int index = class_index(buffer.capacity());
+        if (index < 0 || (1 << (index + MIN_SHIFT)) != buffer.capacity()) return;
+        if (sizes[index].incrementAndGet() > max_per_class) {
+            sizes[index].decrementAndGet();
+            return;
+        }
+        free[index].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int class_index(int capacity) {
+        if (capacity > 1 << MAX_SHIFT) return -1;
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1)));
+        return shift - MIN_SHIFT;
+    }
+}
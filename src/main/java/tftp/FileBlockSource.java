@@ -0,0 +1,110 @@
+package tftp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class FileBlockSource implements BlockSource {
+    private final String filepath;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int block_size;
+
+    //read ahead window, holds a few consecutive blocks starting at window_start
+    private final ByteBuffer window;
+    private long window_start = -1;
+    private int window_length = 0;
+
+    FileBlockSource(String filepath, int block_size, int read_ahead_blocks) throws IOException {
+        this.filepath = filepath;
+        this.block_size = block_size;
+        this.file = new RandomAccessFile(filepath, "r");
+        // no file lock: uploads are renamed into place, so an open channel always sees one complete version
+        // (FileLock is held per process and overlapping locks from two sessions would throw)
+        try {
+            this.channel = file.getChannel();
+            this.size = channel.size();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        this.window = ByteBuffer.allocate(block_size * Math.max(1, read_ahead_blocks));
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int block_size() {
+        return block_size;
+    }
+
+    @Override
+    public int read_block(long block_index, byte[] dst, int offset) throws IOException {
+        long position = block_index * block_size;
+        if (position >= size) return 0;
+
+        long relative = position - window_start;
+        if (window_start < 0 || relative < 0 || relative >= window_length) {
+            fill_window(position);
+            relative = 0;
+        }
+
+        int length = (int) Math.min(block_size, window_length - relative);
+        window.get((int) relative, dst, offset, length);
+        return length;
+    }
+
+    @Override
+    public ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) throws IOException {
+        dst.clear();
+        TftpCodec.put_data_header(dst, block_index + 1);
+        long position = block_index * block_size;
+        if (position >= size) return dst.limit(4);
+
+        long relative = position - window_start;
+        if (window_start < 0 || relative < 0 || relative >= window_length) {
+            fill_window(position);
+            relative = 0;
+        }
+
+        int length = (int) Math.min(block_size, window_length - relative);
+        dst.put(4, window, (int) relative, length);
+        return dst.limit(length + 4);
+    }
+
+    private void fill_window(long position) throws IOException {
+        //positional reads, the channel position is never moved so block order does not matter
+        TftpEvents.FileRead event = new TftpEvents.FileRead();
+        event.begin();
+        window.clear();
+        long limit = Math.min(size - position, window.capacity());
+        window.limit((int) limit);
+        while (window.hasRemaining()) {
+            int read = channel.read(window, position + window.position());
+            if (read < 0) break;
+        }
+        window_start = position;
+        window_length = window.position();
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = filepath;
+            event.offset = position;
+            event.bytes = window_length;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            file.close();
+        }
+    }
+}
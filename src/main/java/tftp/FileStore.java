@@ -0,0 +1,48 @@
+package tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+// where sessions read and write files, every engine and multicast group goes through the server's store
+// the server ships a local directory (LocalFileStore), an in-memory store (MemoryFileStore) and a read only
+// archive (ZipFileStore); names arrive as the client sent them and each store resolves them itself, refusing with
+//   java.nio.file.AccessDeniedException: the name leads out of the store, or the store is read only
+//   java.nio.file.NoSuchFileException: no file to read, or no directory to create the file in
+// sessions answer those with "Access violation", "File not found" or "Directory not found"; any other IOException
+// ends the session with a generic error. A store is shared by every session and must be thread safe
+public interface FileStore extends Closeable {
+    // the file's size in bytes, -1 when there is no such file
+    long size(String filename) throws IOException;
+
+    // the current version of the file as blocks, it stays readable while a write replaces the file
+    BlockSource open_read(String filename, int block_size, int read_ahead_blocks) throws IOException;
+
+    // a new version of the file, readers see it once the sink is committed and never if it is aborted
+    BlockSink open_write(String filename, int block_size) throws IOException;
+
+    // one line for the startup log
+    String describe();
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    // the request name as a relative, /-separated path with . and .. applied, null when it would leave the store
+    // a leading slash still means the store's root, as TFTP clients expect
+    static String normalize(String filename) {
+        String[] parts = filename.replace('\\', '/').split("/");
+        String[] kept = new String[parts.length];
+        int depth = 0;
+        for (String part : parts) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                if (depth == 0) return null;
+                depth--;
+                continue;
+            }
+            kept[depth++] = part;
+        }
+        return String.join("/", Arrays.copyOf(kept, depth));
+    }
+}
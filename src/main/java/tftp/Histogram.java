@@ -0,0 +1,80 @@
+package tftp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// fixed bucket histogram, recording is a bucket search and two LongAdder increments
+class Histogram {
+    final String name;
+    final String help;
+    private final long[] bounds;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(String name, String help, long... bounds) {
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds;
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    void record(long value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (value <= bounds[middle]) high = middle;
+            else low = middle + 1;
+        }
+        counts[low].increment();
+        sum.add(value);
+    }
+
+    long count() {
+        long total = 0;
+        for (LongAdder count : counts) total += count.sum();
+        return total;
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum() / count;
+    }
+
+    // upper bound of the bucket holding the given quantile, the last finite bound when it falls in the overflow bucket
+    long quantile(double quantile) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return bounds[i];
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    // prometheus text exposition, buckets are cumulative
+    void write_prometheus(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i].sum();
+            out.append(name).append("_bucket{le=\"").append(bounds[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[bounds.length].sum();
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sum()).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
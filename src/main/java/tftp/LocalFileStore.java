@@ -0,0 +1,95 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+// a directory on local disk, the default store
+// names are resolved and their metadata cached by the path resolver; hot files come from the packet cache, others
+// from the version's shared mapping or, failing that, are read block by block. Uploads stream into a temp file that
+// is renamed over the target on commit, which then drops the old version from every cache
+// with dedupe on, uploads go through the blob store instead and names linked to a blob are read as the blob
+public final class LocalFileStore implements FileStore {
+    final PathResolver paths;
+    final PacketCache packet_cache;
+    final MappedFiles mapped_files;
+    //null unless dedupe is on
+    final BlobStore blobs;
+    private final TftpConfig config;
+
+    public LocalFileStore(String root) throws IOException {
+        this(root, new TftpConfig());
+    }
+
+    // the caches, mappings, dedupe and write behind settings come from config, its root is not used
+    public LocalFileStore(String root, TftpConfig config) throws IOException {
+        this.config = config;
+        this.paths = new PathResolver(root, config.path_cache_entries, config.path_cache_ms);
+        this.packet_cache = new PacketCache(config.cache_megabytes * 1024L * 1024L, config.cache_file_max * 1024L * 1024L,
+                config.cache_admit, Executors.newThreadPerTaskExecutor(UdpServer.thread_factory(config, "cache-load-")));
+        this.mapped_files = new MappedFiles(config.map_files);
+        this.blobs = config.dedupe ? new BlobStore(config.blob_dir.isEmpty() ? Path.of(root, ".blobs") : Path.of(config.blob_dir), config) : null;
+        this.paths.watch();
+    }
+
+    @Override
+    public long size(String filename) throws IOException {
+        PathResolver.Resolved resolved = lookup(filename);
+        return resolved.is_file() ? resolved.size() : -1;
+    }
+
+    @Override
+    public BlockSource open_read(String filename, int block_size, int read_ahead_blocks) throws IOException {
+        PathResolver.Resolved resolved = lookup(filename);
+        if (!resolved.is_file()) throw new NoSuchFileException(resolved.filepath(), null, "no such file or a directory");
+        String filepath = resolved.filepath();
+        //every name with the same content shares the blob's cache entry and mapping
+        Path blob = blobs == null ? null : blobs.blob(resolved.file_key());
+        if (blob != null) filepath = blob.toString();
+        //the resolved metadata identifies the version, the caches do not stat the file again
+        BlockSource source = packet_cache.open(filepath, block_size, resolved.size(), resolved.modified());
+        if (source == null) source = mapped_files.open(filepath, block_size, resolved.size(), resolved.modified(), resolved.file_key());
+        if (source == null) source = new FileBlockSource(filepath, block_size, read_ahead_blocks);
+        return source;
+    }
+
+    @Override
+    public BlockSink open_write(String filename, int block_size) throws IOException {
+        Path path = paths.resolve(filename);
+        if (path == null || in_blobs(path)) throw new AccessDeniedException(filename, null, "outside the served directory");
+        if (!paths.parent_is_directory(path)) throw new NoSuchFileException(String.valueOf(path.getParent()), null, "no such directory");
+        String filepath = path.toString();
+        Runnable published = () -> {
+            packet_cache.invalidate(filepath);
+            mapped_files.publish(filepath);
+            paths.invalidate(filepath);
+        };
+        if (blobs != null) return blobs.open(path, block_size, published);
+        return new BlockWriter(path, block_size, config.write_queue_blocks, config.fsync_every, UdpServer.thread_factory(config, "write-behind-"), published);
+    }
+
+    @Override
+    public String describe() {
+        String files = String.format("local %s | packet cache: %s | file mappings: %s", paths.describe(), packet_cache.describe(), mapped_files.describe());
+        return blobs == null ? files : files + " | " + blobs.describe();
+    }
+
+    @Override
+    public void close() {
+        paths.close();
+        if (blobs != null) blobs.close();
+    }
+
+    private PathResolver.Resolved lookup(String filename) throws AccessDeniedException {
+        PathResolver.Resolved resolved = paths.lookup(filename);
+        if (resolved == null || in_blobs(resolved.path())) throw new AccessDeniedException(filename, null, "outside the served directory");
+        return resolved;
+    }
+
+    // blobs are only reached through the names linked to them
+    private boolean in_blobs(Path path) {
+        return blobs != null && path.startsWith(blobs.directory);
+    }
+}
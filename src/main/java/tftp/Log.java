@@ -0,0 +1,194 @@
+package tftp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// level gated logging, records go through a ring buffer and are formatted by a background writer
+// a disabled level returns before anything is allocated, the fixed arity overloads avoid a varargs array,
+// so per block trace calls cost a field read when tracing is off
+// INFO and below go to stdout, WARN and ERROR to stderr; when the ring is full records are dropped and counted
+final class Log {
+    enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    //bounded multi producer ring: a slot's sequence tells producers and the writer whose turn it is
+    private static final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0;
+
+    static final LongAdder dropped = new LongAdder();
+    private static long reported_drops = 0;
+
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    private static final Writer err = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), 1 << 12);
+    private static final Thread writer;
+    //set by the writer before it parks, the producer that clears it unparks the writer
+    private static final AtomicBoolean parked = new AtomicBoolean();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+        String level = System.getProperty("tftp.log.level");
+        if (level != null) set_level(level);
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush_on_exit, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    private record Record(Level level, String format, Object[] args) {
+    }
+
+    static void set_level(String name) {
+        try {
+            threshold = Level.valueOf(name.trim().toUpperCase()).ordinal();
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Invalid log level : %s | Keeping %s\n", name, Level.values()[threshold]);
+        }
+    }
+
+    static boolean enabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    static void trace(String format) { if (Level.TRACE.ordinal() >= threshold) publish(Level.TRACE, format); }
+    static void trace(String format, Object a) { if (Level.TRACE.ordinal() >= threshold) publish(Level.TRACE, format, a); }
+    static void trace(String format, Object a, Object b) { if (Level.TRACE.ordinal() >= threshold) publish(Level.TRACE, format, a, b); }
+    static void trace(String format, Object a, Object b, Object c) { if (Level.TRACE.ordinal() >= threshold) publish(Level.TRACE, format, a, b, c); }
+    static void trace(String format, Object a, Object b, Object c, Object d) { if (Level.TRACE.ordinal() >= threshold) publish(Level.TRACE, format, a, b, c, d); }
+
+    static void debug(String format) { if (Level.DEBUG.ordinal() >= threshold) publish(Level.DEBUG, format); }
+    static void debug(String format, Object a) { if (Level.DEBUG.ordinal() >= threshold) publish(Level.DEBUG, format, a); }
+    static void debug(String format, Object a, Object b) { if (Level.DEBUG.ordinal() >= threshold) publish(Level.DEBUG, format, a, b); }
+    static void debug(String format, Object a, Object b, Object c) { if (Level.DEBUG.ordinal() >= threshold) publish(Level.DEBUG, format, a, b, c); }
+    static void debug(String format, Object a, Object b, Object c, Object d) { if (Level.DEBUG.ordinal() >= threshold) publish(Level.DEBUG, format, a, b, c, d); }
+
+    static void info(String format, Object... args) { if (Level.INFO.ordinal() >= threshold) publish(Level.INFO, format, args); }
+    static void warn(String format, Object... args) { if (Level.WARN.ordinal() >= threshold) publish(Level.WARN, format, args); }
+    static void error(String format, Object... args) { if (Level.ERROR.ordinal() >= threshold) publish(Level.ERROR, format, args); }
+
+    private static void publish(Level level, String format, Object... args) {
+        Record record = new Record(level, format, args);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & MASK);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, record);
+                    sequences.set(index, position + 1);
+                    wake();
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                //the writer is a full ring behind
+                dropped.increment();
+                wake();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private static Record poll() {
+        int index = (int) (head & MASK);
+        if (sequences.get(index) != head + 1) return null;
+        Record record = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return record;
+    }
+
+    // one volatile read per record while the writer is busy, an unpark only for the record that finds it parked
+    private static void wake() {
+        if (parked.get() && parked.compareAndSet(true, false)) LockSupport.unpark(writer);
+    }
+
+    // an idle writer sleeps until a record or a drop wakes it
+    private static void drain() {
+        while (true) {
+            if (write_pending()) continue;
+            parked.set(true);
+            //a record published before the flag was set found no writer to wake
+            if (pending()) {
+                parked.set(false);
+                continue;
+            }
+            LockSupport.park();
+            parked.set(false);
+        }
+    }
+
+    private static synchronized boolean pending() {
+        return sequences.get((int) (head & MASK)) == head + 1 || dropped.sum() != reported_drops;
+    }
+
+    // writes everything queued so far, returns false when there was nothing to write or report
+    private static synchronized boolean write_pending() {
+        boolean wrote = false;
+        Record record;
+        while ((record = poll()) != null) {
+            wrote = true;
+            Writer target = record.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+            try {
+                target.write(render(record));
+                target.write('\n');
+            } catch (IOException ignored) {
+            }
+        }
+        long drops = dropped.sum() - reported_drops;
+        if (drops > 0) {
+            reported_drops += drops;
+            try {
+                err.write("Log ring full | " + drops + " records dropped\n");
+            } catch (IOException ignored) {
+            }
+        }
+        if (wrote || drops > 0) {
+            try {
+                out.flush();
+                err.flush();
+            } catch (IOException ignored) {
+            }
+        }
+        return wrote || drops > 0;
+    }
+
+    private static String render(Record record) {
+        Object[] args = record.args;
+        if (args.length == 0) return record.format;
+        for (int i = 0; i < args.length; i++) {
+            //hosts are rendered without the reverse lookup part of InetAddress.toString
+            if (args[i] instanceof InetAddress address) args[i] = address.getHostAddress();
+        }
+        try {
+            return String.format(record.format, args);
+        } catch (RuntimeException e) {
+            return record.format;
+        }
+    }
+
+    private static void flush_on_exit() {
+        write_pending();
+    }
+}
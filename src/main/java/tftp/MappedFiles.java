@@ -0,0 +1,211 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// one read only mapping per file version, shared by every session reading that version
+// a version is the file's identity (inode), size and modification time, uploads are renamed into place so each
+// completed write is a new version; sessions already reading the old one keep their mapping until they finish
+// mappings are reference counted and dropped from the index when the last reader closes
+// the JDK has no explicit unmap, the region is returned once the last buffer reference is collected
+class MappedFiles {
+    //files above this are read block by block, a MappedByteBuffer is limited to 2 GB
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private final boolean enabled;
+
+    //path locks, striped so sessions on different files never share one; read to look up, write to map or publish
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[64];
+
+    //current version of each path that has active readers
+    private final ConcurrentHashMap<Path, Mapping> versions = new ConcurrentHashMap<>();
+
+    final LongAdder shared_opens = new LongAdder();
+    final LongAdder mappings_created = new LongAdder();
+    private final LongAdder mapped_bytes = new LongAdder();
+
+    MappedFiles(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    // a source over the shared mapping of the file's current version, or null when the file should be read directly
+    // the version is the one the caller resolved (size, modification time and file key of a regular file)
+    BlockSource open(String filepath, int block_size, long size, long modified, Object file_key) throws IOException {
+        if (!enabled || size > MAX_MAPPING) return null;
+        Path path = Path.of(filepath).toAbsolutePath().normalize();
+
+        ReentrantReadWriteLock lock = lock_for(path);
+        lock.readLock().lock();
+        try {
+            Mapping current = versions.get(path);
+            if (current != null && current.matches(size, modified, file_key) && current.retain()) {
+                shared_opens.increment();
+                return new MappedBlockSource(current, block_size);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            //another session may have mapped it while this one waited
+            Mapping current = versions.get(path);
+            if (current != null && current.matches(size, modified, file_key) && current.retain()) {
+                shared_opens.increment();
+                return new MappedBlockSource(current, block_size);
+            }
+            Mapping mapping = map(path, size, modified, file_key);
+            if (mapping == null) return null;
+            versions.put(path, mapping);
+            return new MappedBlockSource(mapping, block_size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // called once a write has renamed its file into place, new sessions map the new version
+    void publish(String filepath) {
+        if (!enabled) return;
+        Path path = Path.of(filepath).toAbsolutePath().normalize();
+        ReentrantReadWriteLock lock = lock_for(path);
+        lock.writeLock().lock();
+        try {
+            versions.remove(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    String describe() {
+        return enabled ? "shared read only mappings up to 2 GB" : "disabled";
+    }
+
+    long mapped_bytes() {
+        return mapped_bytes.sum();
+    }
+
+    int mapping_count() {
+        return versions.size();
+    }
+
+    // null when the file was replaced since it was resolved, the caller then reads it directly
+    private Mapping map(Path path, long size, long modified, Object file_key) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != size) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Mapping mapping = new Mapping(path, buffer, file_key, size, modified);
+            //the resolved identity still on the path after opening means the channel saw that version
+            if (!mapping.matches(Files.readAttributes(path, BasicFileAttributes.class))) return null;
+            mappings_created.increment();
+            mapped_bytes.add(size);
+            return mapping;
+        }
+    }
+
+    private ReentrantReadWriteLock lock_for(Path path) {
+        return stripes[(path.hashCode() & 0x7FFFFFFF) % stripes.length];
+    }
+
+    private final class Mapping {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final Object file_key;
+        final long size;
+        final long modified;
+
+        //starts with the opening reader, never revived once it reached 0
+        private final AtomicInteger readers = new AtomicInteger(1);
+
+        Mapping(Path path, MappedByteBuffer buffer, Object file_key, long size, long modified) {
+            this.path = path;
+            this.buffer = buffer;
+            this.file_key = file_key;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean matches(long size, long modified, Object file_key) {
+            return this.size == size && this.modified == modified && Objects.equals(this.file_key, file_key);
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return matches(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = readers.get();
+                if (count == 0) return false;
+                if (readers.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (readers.decrementAndGet() > 0) return;
+            versions.remove(path, this);
+            mapped_bytes.add(-size);
+        }
+    }
+
+    // absolute reads only, so every session shares the mapping without its own duplicate
+    private static final class MappedBlockSource implements BlockSource {
+        private final Mapping mapping;
+        private final int block_size;
+        private boolean closed = false;
+
+        MappedBlockSource(Mapping mapping, int block_size) {
+            this.mapping = mapping;
+            this.block_size = block_size;
+        }
+
+        @Override
+        public long size() {
+            return mapping.size;
+        }
+
+        @Override
+        public int block_size() {
+            return block_size;
+        }
+
+        @Override
+        public int read_block(long block_index, byte[] dst, int offset) {
+            int length = payload_length(block_index);
+            if (length > 0) mapping.buffer.get((int) (block_index * block_size), dst, offset, length);
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) {
+            int length = payload_length(block_index);
+            dst.clear();
+            TftpCodec.put_data_header(dst, block_index + 1);
+            if (length > 0) dst.put(4, mapping.buffer, (int) (block_index * block_size), length);
+            return dst.limit(length + 4);
+        }
+
+        private int payload_length(long block_index) {
+            long position = block_index * block_size;
+            return (int) Math.max(0, Math.min(block_size, mapping.size - position));
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            mapping.release();
+        }
+    }
+}
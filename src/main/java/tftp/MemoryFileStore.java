@@ -0,0 +1,210 @@
+package tftp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// files held in direct buffers, for hot boot images that should never wait on a disk and for benchmarks that
+// should measure the protocol rather than the filesystem
+// names are flat keys (a/b.bin is one name, there are no directories to create); a commit swaps the new version in,
+// sessions already reading keep the buffer they opened. max_bytes bounds the stored bytes, 0 is unlimited
+public final class MemoryFileStore implements FileStore {
+    private final ConcurrentHashMap<String, ByteBuffer> files = new ConcurrentHashMap<>();
+    private final long max_bytes;
+    private final AtomicLong used_bytes = new AtomicLong();
+
+    public MemoryFileStore() {
+        this(0);
+    }
+
+    public MemoryFileStore(long max_bytes) {
+        this.max_bytes = max_bytes;
+    }
+
+    // every regular file below directory, named by its path relative to it
+    public static MemoryFileStore load(Path directory, long max_bytes) throws IOException {
+        MemoryFileStore store = new MemoryFileStore(max_bytes);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                try {
+                    store.put(directory.relativize(path).toString(), Files.readAllBytes(path));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return store;
+    }
+
+    public void put(String filename, byte[] data) throws IOException {
+        put(filename, data, data.length);
+    }
+
+    public boolean remove(String filename) {
+        String name = FileStore.normalize(filename);
+        ByteBuffer removed = name == null ? null : files.remove(name);
+        if (removed != null) used_bytes.addAndGet(-removed.capacity());
+        return removed != null;
+    }
+
+    @Override
+    public long size(String filename) throws IOException {
+        ByteBuffer data = files.get(name(filename));
+        return data == null ? -1 : data.capacity();
+    }
+
+    @Override
+    public BlockSource open_read(String filename, int block_size, int read_ahead_blocks) throws IOException {
+        String name = name(filename);
+        ByteBuffer data = files.get(name);
+        if (data == null) throw new NoSuchFileException(name);
+        return new MemoryBlockSource(data, block_size);
+    }
+
+    @Override
+    public BlockSink open_write(String filename, int block_size) throws IOException {
+        String name = name(filename);
+        if (name.isEmpty()) throw new NoSuchFileException(filename, null, "no file name");
+        return new MemorySink(name, block_size);
+    }
+
+    @Override
+    public String describe() {
+        return String.format("memory | %d files, %d bytes%s", files.size(), used_bytes.get(), max_bytes > 0 ? " of " + max_bytes : "");
+    }
+
+    private String name(String filename) throws AccessDeniedException {
+        String name = FileStore.normalize(filename);
+        if (name == null) throw new AccessDeniedException(filename, null, "outside the store");
+        return name;
+    }
+
+    // copies length bytes of data into a direct buffer and makes it the current version
+    private void put(String filename, byte[] data, int length) throws IOException {
+        String name = name(filename);
+        //the replaced version still counts until it is swapped out
+        if (used_bytes.addAndGet(length) > max_bytes && max_bytes > 0) {
+            used_bytes.addAndGet(-length);
+            throw new IOException("Memory store full, " + max_bytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length).put(data, 0, length).flip().asReadOnlyBuffer();
+        ByteBuffer replaced = files.put(name, buffer);
+        if (replaced != null) used_bytes.addAndGet(-replaced.capacity());
+    }
+
+    private static final class MemoryBlockSource implements BlockSource {
+        private final ByteBuffer data;
+        private final int block_size;
+
+        MemoryBlockSource(ByteBuffer data, int block_size) {
+            this.data = data;
+            this.block_size = block_size;
+        }
+
+        @Override
+        public long size() {
+            return data.capacity();
+        }
+
+        @Override
+        public int block_size() {
+            return block_size;
+        }
+
+        //absolute reads only, the buffer is shared by every session of this version
+        @Override
+        public int read_block(long block_index, byte[] dst, int offset) {
+            int length = payload_length(block_index);
+            if (length > 0) data.get((int) (block_index * block_size), dst, offset, length);
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) {
+            dst.clear();
+            TftpCodec.put_data_header(dst, block_index + 1);
+            int length = payload_length(block_index);
+            if (length > 0) dst.put(4, data, (int) (block_index * block_size), length);
+            return dst.limit(length + 4);
+        }
+
+        private int payload_length(long block_index) {
+            long position = block_index * block_size;
+            return (int) Math.max(0, Math.min(block_size, data.capacity() - position));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // collects the upload on the heap, the direct copy is only made on commit
+    private final class MemorySink implements BlockSink {
+        private final String name;
+        private byte[] data;
+        private int length = 0;
+        private boolean done = false;
+
+        MemorySink(String name, int block_size) {
+            this.name = name;
+            this.data = new byte[Math.max(block_size, 512) * 16];
+        }
+
+        @Override
+        public void write(byte[] src, int offset, int count) throws IOException {
+            ensure(count);
+            System.arraycopy(src, offset, data, length, count);
+            length += count;
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            ensure(count);
+            src.get(data, length, count);
+            length += count;
+        }
+
+        @Override
+        public long bytes_written() {
+            return length;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (done) throw new IOException("Upload already finished");
+            done = true;
+            put(name, data, length);
+            data = null;
+        }
+
+        @Override
+        public void abort() {
+            done = true;
+            data = null;
+        }
+
+        @Override
+        public void close() {
+            if (!done) abort();
+        }
+
+        private void ensure(int count) throws IOException {
+            if (done) throw new IOException("Upload already finished");
+            if (length + (long) count > Integer.MAX_VALUE - 8) throw new IOException("Upload too large for the memory store");
+            if (max_bytes > 0 && length + (long) count > max_bytes) throw new IOException("Memory store full, " + max_bytes + " bytes");
+            if (length + count <= data.length) return;
+            data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(data.length * 2L, length + (long) count)));
+        }
+    }
+}
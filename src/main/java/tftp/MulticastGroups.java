@@ -0,0 +1,464 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// RFC 2090 multicast reads for the blocking engine
+// clients asking for the same file with the same block size join one transfer that sends DATA to a group address
+// one master client acks in lockstep while the others listen; once the master has the whole file, mastership moves
+// to the next client that is still missing blocks and the stream resumes from that client's first missing block
+// windowsize is left out of the OACK, group members follow the RFC 2090 lockstep
+class MulticastGroups {
+    //RFC 2090 has no block number rollover, larger files are served unicast
+    private static final long MAX_BLOCKS = 0xFFFF;
+
+    private final ServerContext context;
+    private final TftpConfig config;
+
+    //consecutive group addresses starting at config.multicast_address, null when multicast is off
+    private final InetAddress[] addresses;
+    private final NetworkInterface network_interface;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //guarded by lock
+    private final Map<Key, Transfer> transfers = new HashMap<>();
+    private final boolean[] in_use;
+
+    final LongAdder clients_joined = new LongAdder();
+    final LongAdder clients_completed = new LongAdder();
+
+    MulticastGroups(ServerContext context) {
+        this.context = context;
+        this.config = context.config;
+        this.addresses = group_addresses(config.multicast_address, config.multicast_groups);
+        this.network_interface = addresses == null ? null : network_interface(config.multicast_interface);
+        this.in_use = new boolean[addresses == null ? 0 : addresses.length];
+    }
+
+    boolean enabled() {
+        return addresses != null;
+    }
+
+    // false when the request should be served unicast: multicast off or not requested, a missing or too large file,
+    // every group address taken or no admission slot; a unicast read then answers the request as usual
+    boolean join(TftpCodec.Request request, InetAddress ip, int port, Executor sessions) {
+        if (!enabled() || !request.options().containsKey("multicast")) return false;
+        String name = FileStore.normalize(request.filename());
+        TftpOptions options = TftpOptions.negotiate(request.options(), config, ip);
+        long size;
+        try {
+            size = name == null ? -1 : context.store.size(name);
+        } catch (IOException e) {
+            size = -1;
+        }
+        if (size < 0 || size / options.block_size + 1 > MAX_BLOCKS) return false;
+
+        Key key = new Key(name, options.block_size);
+        Client client = new Client(new InetSocketAddress(ip, port), options);
+        lock.lock();
+        try {
+            Transfer transfer = transfers.get(key);
+            if (transfer != null) {
+                transfer.joining.add(client);
+                return true;
+            }
+            int group = free_group();
+            if (group < 0) return false;
+            //the group takes one slot for all its members
+            if (context.admission.try_acquire(ip) != AdmissionControl.Result.ADMITTED) return false;
+            transfer = new Transfer(key, name, group, ip, options);
+            transfer.joining.add(client);
+            try {
+                sessions.execute(transfer);
+            } catch (RejectedExecutionException e) {
+                context.admission.release(ip);
+                return false;
+            }
+            in_use[group] = true;
+            transfers.put(key, transfer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String describe() {
+        if (!enabled()) return "disabled";
+        return String.format("%d groups from %s port %d, ttl %d, interface %s", addresses.length, addresses[0].getHostAddress(),
+                config.multicast_port, config.multicast_ttl, network_interface == null ? "default" : network_interface.getName());
+    }
+
+    int active_groups() {
+        lock.lock();
+        try {
+            return transfers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int free_group() {
+        for (int i = 0; i < in_use.length; i++) {
+            if (!in_use[i]) return i;
+        }
+        return -1;
+    }
+
+    private static InetAddress[] group_addresses(String first, int count) {
+        if (first.isEmpty() || count <= 0) return null;
+        try {
+            InetAddress base = InetAddress.getByName(first);
+            byte[] bytes = base.getAddress();
+            if (!base.isMulticastAddress() || bytes.length != 4) {
+                Log.warn("Multicast | %s is not an IPv4 multicast address | Multicast disabled", first);
+                return null;
+            }
+            int value = ByteBuffer.wrap(bytes).getInt();
+            InetAddress[] addresses = new InetAddress[count];
+            for (int i = 0; i < count; i++) addresses[i] = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(value + i).array());
+            return addresses;
+        } catch (UnknownHostException e) {
+            Log.warn("Multicast | Invalid group address %s | Multicast disabled | %s", first, e.getMessage());
+            return null;
+        }
+    }
+
+    private static NetworkInterface network_interface(String name) {
+        if (name.isEmpty()) return null;
+        try {
+            NetworkInterface network_interface = NetworkInterface.getByName(name);
+            if (network_interface == null) Log.warn("Multicast | No interface named %s | Using the default route", name);
+            return network_interface;
+        } catch (IOException e) {
+            Log.warn("Multicast | Could not look up interface %s | Using the default route | %s", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private record Key(String name, int block_size) {
+    }
+
+    private static final class Client {
+        final InetSocketAddress address;
+        final String ip_str;
+        final int port;
+
+        //what this client asked for and was granted, sent back in its oack along with the group
+        final Map<String, String> accepted;
+        final long joined_at = System.nanoTime();
+
+        Client(InetSocketAddress address, TftpOptions options) {
+            this.address = address;
+            this.ip_str = address.getAddress().getHostAddress();
+            this.port = address.getPort();
+            this.accepted = new LinkedHashMap<>(options.accepted);
+            this.accepted.remove("windowsize");
+        }
+    }
+
+    // one file streamed to one group, runs on a session thread until no member is left
+    private final class Transfer implements Runnable {
+        final Key key;
+        final String filepath;
+        final int group;
+        final InetAddress group_address;
+        final InetAddress owner;
+        final TftpOptions options;
+        final TftpMetrics metrics;
+
+        //requests taken by join, handed to the transfer thread; guarded by lock
+        final ArrayDeque<Client> joining = new ArrayDeque<>();
+
+        //the rest is only touched by the transfer thread, members are kept in join order
+        private final LinkedHashMap<InetSocketAddress, Client> members = new LinkedHashMap<>();
+        private Client master;
+        private boolean awaiting_oack_ack = false;
+        private boolean send_pending = false;
+        private long next_block = 1;
+        private long last_block;
+        private long deadline;
+        private int retries = 0;
+        private long sent_at = 0;
+
+        private DatagramSocket socket;
+        private BlockSource source;
+        private RttEstimator rtt;
+        private DatagramPacket data;
+        private final ByteBuffer reply = ByteBuffer.allocate(512);
+        private final DatagramPacket received = new DatagramPacket(new byte[512], 512);
+
+        Transfer(Key key, String filepath, int group, InetAddress owner, TftpOptions options) {
+            this.key = key;
+            this.filepath = filepath;
+            this.group = group;
+            this.group_address = addresses[group];
+            this.owner = owner;
+            this.options = options;
+            this.metrics = context.metrics;
+        }
+
+        public void run() {
+            BandwidthScheduler.Throttle throttle = context.bandwidth.open();
+            try {
+                socket = new DatagramSocket();
+                socket.setOption(StandardSocketOptions.IP_MULTICAST_TTL, config.multicast_ttl);
+                socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+                if (network_interface != null) socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, network_interface);
+                source = context.store.open_read(filepath, key.block_size, config.read_ahead_blocks);
+                last_block = source.size() / key.block_size + 1;
+                rtt = RttEstimator.create(config, options, metrics.ack_rtt);
+                data = new DatagramPacket(new byte[key.block_size + 4], key.block_size + 4, group_address, config.multicast_port);
+                Log.info("Multicast: %s %d | Sending file: %s ( %d bytes)", group_address.getHostAddress(), config.multicast_port, filepath, source.size());
+                serve(throttle);
+            } catch (IOException e) {
+                Log.warn("Multicast: %s %d | Transfer of %s aborted | %s", group_address.getHostAddress(), config.multicast_port, filepath, e.getMessage());
+                //a file that could not be opened is refused as a unicast read would be, anything later ends the transfer
+                if (source == null) abort(UdpServer.refusal_code(e), UdpServer.refusal(e, false));
+                else abort(TftpCodec.ERROR_UNDEFINED, "Transfer aborted");
+            } finally {
+                close();
+                throttle.close();
+                for (int i = 0; i < members.size(); i++) metrics.read_ended();
+                members.clear();
+                if (socket != null) socket.close();
+                if (source != null) UdpServer.close_all_streams(group_address.getHostAddress(), config.multicast_port, source);
+                context.admission.release(owner);
+            }
+        }
+
+        private void serve(BandwidthScheduler.Throttle throttle) throws IOException {
+            while (true) {
+                take_joiners();
+                if (master == null) {
+                    if (!elect()) return;
+                    if (master == null) continue;
+                }
+
+                if (send_pending) {
+                    send_pending = false;
+                    int length = source.read_packet(next_block - 1, data.getData());
+                    data.setLength(length);
+                    throttle.pace(length);
+                    socket.send(data);
+                    metrics.block_sent(length - 4);
+                    sent_at = System.nanoTime();
+                    deadline = sent_at + rtt.timeout_ms() * 1_000_000L;
+                }
+
+                long wait = (deadline - System.nanoTime()) / 1_000_000;
+                if (wait <= 0) {
+                    on_timeout();
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout((int) Math.max(1, wait));
+                    received.setLength(received.getData().length);
+                    socket.receive(received);
+                } catch (SocketTimeoutException e) {
+                    on_timeout();
+                    continue;
+                }
+                on_packet(ByteBuffer.wrap(received.getData(), 0, received.getLength()));
+            }
+        }
+
+        // new members get an oack naming the group, a member whose request came again gets its oack again
+        private void take_joiners() {
+            lock.lock();
+            try {
+                Client client;
+                while ((client = joining.poll()) != null) {
+                    Client member = members.get(client.address);
+                    if (member != null) {
+                        if (!try_send_oack(member, member == master)) drop(member);
+                        continue;
+                    }
+                    members.put(client.address, client);
+                    clients_joined.increment();
+                    metrics.read_started();
+                    Log.info("Multicast: %s %d | Client %s %d joined", group_address.getHostAddress(), config.multicast_port, client.ip_str, client.port);
+                    if (master != null && !try_send_oack(client, false)) drop(client);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the oldest member becomes master, false once there is no member left and nobody is joining
+        // a master whose oack cannot be sent is dropped and the next call elects another member
+        private boolean elect() {
+            lock.lock();
+            try {
+                if (members.isEmpty()) {
+                    if (!joining.isEmpty()) return true;
+                    close();
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+            master = members.values().iterator().next();
+            awaiting_oack_ack = true;
+            send_pending = false;
+            retries = 0;
+            Log.debug("Multicast: %s %d | Client %s %d is master", group_address.getHostAddress(), config.multicast_port, master.ip_str, master.port);
+            if (!try_send_oack(master, true)) drop(master);
+            return true;
+        }
+
+        // unregisters the transfer, later requests for the file start a new one; guarded by lock
+        private void close() {
+            lock.lock();
+            try {
+                if (transfers.get(key) != this) return;
+                transfers.remove(key);
+                in_use[group] = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // RFC 2090 option value: group address, port, 1 for the master client
+        private void send_oack(Client client, boolean is_master) throws IOException {
+            Map<String, String> accepted = new LinkedHashMap<>(client.accepted);
+            accepted.put("multicast", group_address.getHostAddress() + "," + config.multicast_port + "," + (is_master ? 1 : 0));
+            TftpCodec.put_oack(reply, accepted);
+            socket.send(new DatagramPacket(reply.array(), reply.limit(), client.address));
+            if (is_master) {
+                sent_at = System.nanoTime();
+                deadline = sent_at + rtt.timeout_ms() * 1_000_000L;
+            }
+        }
+
+        // a client the group cannot reach is told so and leaves, instead of waiting for a stream that never comes
+        private boolean try_send_oack(Client client, boolean is_master) {
+            try {
+                send_oack(client, is_master);
+                return true;
+            } catch (IOException e) {
+                Log.warn("Multicast: %s %d | Could not send oack to %s %d | Leaving group | %s", group_address.getHostAddress(), config.multicast_port, client.ip_str, client.port, e.getMessage());
+                return false;
+            }
+        }
+
+        private void drop(Client client) {
+            send_error(client, TftpCodec.ERROR_UNDEFINED, "Could not join the multicast group");
+            leave(client);
+        }
+
+        // every member and every client still waiting to join gets an error, the transfer is unregistered first so
+        // no request joins after the queue is drained
+        private void abort(int code, String message) {
+            close();
+            lock.lock();
+            try {
+                Client client;
+                while ((client = joining.poll()) != null) {
+                    if (!members.containsKey(client.address)) send_error(client, code, message);
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Client member : members.values()) send_error(member, code, message);
+        }
+
+        // best effort, the client is dropped either way
+        private void send_error(Client client, int code, String message) {
+            if (socket == null) return;
+            TftpCodec.put_error(reply, code, message);
+            try {
+                socket.send(new DatagramPacket(reply.array(), reply.limit(), client.address));
+                metrics.error_sent(code);
+                TftpEvents.error_sent(client.address.getAddress(), client.port, code, message);
+            } catch (IOException e) {
+                Log.warn("Multicast: %s %d | Could not send error packet to %s %d | %s", group_address.getHostAddress(), config.multicast_port, client.ip_str, client.port, e.getMessage());
+            }
+        }
+
+        private void on_packet(ByteBuffer packet) throws IOException {
+            Client client = members.get((InetSocketAddress) received.getSocketAddress());
+            if (client == null) return;
+            int code = TftpCodec.opcode(packet);
+            int block = TftpCodec.block(packet);
+            if (code == TftpCodec.ERROR) {
+                Log.warn("Multicast: %s %d | Client %s %d sent error packet | Leaving group", group_address.getHostAddress(), config.multicast_port, client.ip_str, client.port);
+                metrics.error_received(Math.max(0, block));
+                leave(client);
+                return;
+            }
+            if (code != TftpCodec.ACK || block < 0) return;
+
+            if (client != master) {
+                //a listener that got every block on its own is done and never needs to be master
+                if (block == last_block) completed(client);
+                return;
+            }
+
+            //acks carry the last block the master holds in order, it may jump ahead over blocks it got as a listener
+            if (awaiting_oack_ack) {
+                awaiting_oack_ack = false;
+            } else if (block < next_block) {
+                Log.debug("Multicast: %s %d | Duplicate or stale ack | Packet dropped", group_address.getHostAddress(), config.multicast_port);
+                return;
+            }
+            if (retries == 0) rtt.sample(System.nanoTime() - sent_at);
+            retries = 0;
+            if (block >= last_block) {
+                completed(client);
+                return;
+            }
+            next_block = block + 1;
+            send_pending = true;
+        }
+
+        // back off and resend the oack or the block the master has not acked, a silent master is dropped
+        private void on_timeout() throws IOException {
+            metrics.timeout();
+            if (++retries > config.max_retries) {
+                Log.warn("Multicast: %s %d | Master %s %d timed out | Leaving group", group_address.getHostAddress(), config.multicast_port, master.ip_str, master.port);
+                leave(master);
+                return;
+            }
+            rtt.backoff();
+            metrics.retransmit();
+            TftpEvents.retransmit(master.address.getAddress(), master.port, awaiting_oack_ack ? "oack" : "data", awaiting_oack_ack ? 0 : next_block);
+            if (!awaiting_oack_ack) send_pending = true;
+            else if (!try_send_oack(master, true)) drop(master);
+        }
+
+        private void completed(Client client) {
+            clients_completed.increment();
+            metrics.read_completed(source.size(), client.joined_at);
+            Log.info("Multicast: %s %d | Client %s %d completed", group_address.getHostAddress(), config.multicast_port, client.ip_str, client.port);
+            leave(client);
+        }
+
+        // mastership moves on when the master leaves, elect picks the next member
+        private void leave(Client client) {
+            members.remove(client.address);
+            metrics.read_ended();
+            if (client == master) {
+                master = null;
+                awaiting_oack_ack = false;
+                send_pending = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,934 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// single socket engine, one selector loop owns the listening channel and drives every session as a state machine
+// sessions are keyed by the client address and port, replies come from the listening port instead of a new TID
+// with several listeners each loop owns its own SO_REUSEPORT channel, the kernel keeps a client on one of them
+class NioEngine {
+    private final TftpConfig config;
+    private final ServerContext context;
+    private final TftpMetrics metrics;
+    private final BufferPool buffers;
+    private final LongAdder requests;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer receive_buffer = ByteBuffer.allocateDirect(65536);
+
+    //errors are sent and forgotten, so one buffer serves every session
+    private final ByteBuffer error_buffer = ByteBuffer.allocateDirect(CONTROL_PACKET_SIZE);
+    //sessions step one at a time, so one array stages the payload of any source that cannot fill a direct buffer itself
+    private final byte[] scratch = new byte[TftpOptions.MAX_BLOCK_SIZE];
+
+    //only touched by the loop thread
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+    private final TimingWheel timers;
+    //the session whose step ran last, charged with an Error raised after its step returned
+    private Session stepping;
+
+    //requests over the admission caps, in arrival order, retried every loop until admitted or past their deadline
+    private final LinkedHashMap<SocketAddress, Waiting> waiting = new LinkedHashMap<>();
+
+    //work handed back to the loop from other threads, e.g. a finished commit
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //file opens, writes and commits, anything that may block is kept off the loop
+    private final ExecutorService blocking_io;
+    private volatile boolean running = true;
+
+    NioEngine(int port, ServerContext context) throws IOException {
+        this.config = context.config;
+        this.context = context;
+        this.metrics = context.metrics;
+        this.buffers = new BufferPool(true, config.pooled_buffers);
+        this.requests = metrics.listener();
+        this.channel = DatagramChannel.open();
+        if (config.listener_count() > 1) this.channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        if (config.listener_receive_buffer > 0) this.channel.setOption(StandardSocketOptions.SO_RCVBUF, config.listener_receive_buffer);
+        this.channel.bind(new InetSocketAddress(port));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+        this.blocking_io = Executors.newThreadPerTaskExecutor(UdpServer.thread_factory(config, "nio-io-"));
+        this.timers = new TimingWheel(config.timer_tick_ms, config.timer_slots, now());
+    }
+
+    // room for an error message or an oack
+    private static final int CONTROL_PACKET_SIZE = 512;
+
+    InetSocketAddress local_address() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    int receive_buffer_size() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    // runs the loop on the calling thread until stop
+    void start() {
+        metrics.publish(channel.socket().getLocalPort(), config);
+        while (running) {
+            try {
+                long wait = next_timer_delay();
+                if (wait == 0) selector.selectNow();
+                else selector.select(wait < 0 ? 0 : wait);
+                selector.selectedKeys().clear();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                receive_all();
+                admit_waiting();
+                fire_timers();
+            } catch (IOException e) {
+                Log.error("Error occurred in event loop | %s", e.getMessage());
+            } catch (Error e) {
+                //the JVM raises the fault of a mapped read (the file was truncated on disk) at its next safepoint poll,
+                //which may come after the step returned, so the session that ran the last step is the one that failed
+                Session failed = stepping;
+                stepping = null;
+                if (failed != null && failed.registered()) failed.fail(e);
+                else Log.error("Unexpected failure in event loop | %s", e);
+            } catch (RuntimeException e) {
+                //sessions guard their own steps, this only keeps the loop alive if something outside them fails
+                Log.error("Unexpected failure in event loop | %s", e);
+            }
+        }
+        shut_down();
+    }
+
+    // ends the loop from any thread, start returns once the loop has closed its sessions and channel
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // releases the channel of a loop that never ran
+    void close() {
+        running = false;
+        shut_down();
+    }
+
+    // work already handed off still finishes, so a commit in flight gets its last ack out, every other session is dropped
+    private void shut_down() {
+        blocking_io.shutdown();
+        try {
+            if (!blocking_io.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) Log.warn("Event loop | File work still running after %d ms | Closing anyway", SHUTDOWN_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+        for (Session session : List.copyOf(sessions.values())) session.finish();
+        waiting.clear();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Event loop | Could not close channel | %s", e.getMessage());
+        }
+    }
+
+    private void receive_all() throws IOException {
+        while (true) {
+            receive_buffer.clear();
+            SocketAddress address = channel.receive(receive_buffer);
+            if (address == null) return;
+            receive_buffer.flip();
+            if (receive_buffer.remaining() < 2) continue;
+
+            Session session = sessions.get(address);
+            if (session != null) {
+                session.guarded(() -> session.on_packet(receive_buffer));
+                continue;
+            }
+
+            InetSocketAddress client = (InetSocketAddress) address;
+            int opcode = TftpCodec.opcode(receive_buffer);
+            if (opcode != TftpCodec.RRQ && opcode != TftpCodec.WRQ) continue;
+            //a retransmission of a request that is still waiting for a slot
+            if (waiting.containsKey(address)) continue;
+            requests.increment();
+            TftpCodec.Request request = TftpCodec.parse_request(receive_buffer);
+            TftpEvents.request_received(client.getAddress(), client.getPort(), request);
+
+            AdmissionControl.Result result = context.admission.try_acquire(client.getAddress());
+            if (result == AdmissionControl.Result.ADMITTED) start(client, request);
+            else if (config.admission_wait_ms > 0) waiting.put(address, new Waiting(client, request, now() + config.admission_wait_ms));
+            else reject(client, result);
+        }
+    }
+
+    // slots freed by this loop or by other listeners go to the oldest waiting request first
+    private void admit_waiting() {
+        if (waiting.isEmpty()) return;
+        long now = now();
+        Iterator<Waiting> queued = waiting.values().iterator();
+        while (queued.hasNext()) {
+            Waiting next = queued.next();
+            AdmissionControl.Result result = context.admission.try_acquire(next.client.getAddress());
+            if (result == AdmissionControl.Result.ADMITTED) {
+                queued.remove();
+                start(next.client, next.request);
+            } else if (next.deadline <= now) {
+                queued.remove();
+                reject(next.client, result);
+            }
+        }
+    }
+
+    // the session owns the admission slot from here, a request refused before it registers gives it back at once
+    private void start(InetSocketAddress client, TftpCodec.Request request) {
+        Session session;
+        if (request.opcode() == TftpCodec.RRQ) {
+            Log.info("Read initiated from %s:%d", client.getAddress(), client.getPort());
+            session = new ReadSession(client);
+        } else {
+            Log.info("Write initiated from %s:%d", client.getAddress(), client.getPort());
+            session = new WriteSession(client);
+        }
+        session.guarded(() -> session.begin(request));
+        if (sessions.get(client) != session) {
+            session.release_admission();
+            TftpEvents.session_ended(session.event);
+        }
+    }
+
+    private void reject(InetSocketAddress client, AdmissionControl.Result result) {
+        metrics.request_rejected();
+        Log.warn("Client Session: %s %d | Request refused | %s", client.getAddress(), client.getPort(), result.message);
+        TftpCodec.put_error(error_buffer, TftpCodec.ERROR_UNDEFINED, result.message);
+        try {
+            channel.send(error_buffer, client);
+            metrics.error_sent(TftpCodec.ERROR_UNDEFINED);
+            TftpEvents.error_sent(client.getAddress(), client.getPort(), TftpCodec.ERROR_UNDEFINED, result.message);
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send error packet due to IOException | %s", client.getAddress(), client.getPort(), e.getMessage());
+        }
+    }
+
+    // -1 when no timer is pending, 0 when one is already due
+    // waiting requests are polled, a slot freed by another listener does not wake this selector
+    private long next_timer_delay() {
+        long delay = timers.next_delay(now());
+        if (waiting.isEmpty()) return delay;
+        return delay < 0 ? ADMISSION_POLL_MS : Math.min(delay, ADMISSION_POLL_MS);
+    }
+
+    private void fire_timers() {
+        timers.advance(now());
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private static final long ADMISSION_POLL_MS = 10;
+    private static final long SHUTDOWN_WAIT_MS = 5000;
+
+    private record Waiting(InetSocketAddress client, TftpCodec.Request request, long deadline) {
+    }
+
+    private abstract class Session {
+        final InetSocketAddress client;
+        final String ip_str;
+        final int port;
+        final long started_at = System.nanoTime();
+        int retries = 0;
+        RttEstimator rtt;
+
+        //the session's single pending deadline: retransmit, give up or reap, whichever state it is in
+        private final TimingWheel.Timeout timeout = new TimingWheel.Timeout(() -> guarded(this::on_timeout));
+
+        //every session starts holding an admission slot, given back exactly once
+        private boolean admitted = true;
+
+        //the oack or the last ack, kept encoded so a retransmission only rewinds it
+        ByteBuffer reply;
+
+        //started by begin, ended by finish or by start when the session never registered
+        TftpEvents.Session event;
+
+        Session(InetSocketAddress client) {
+            this.client = client;
+            this.ip_str = client.getAddress().getHostAddress();
+            this.port = client.getPort();
+        }
+
+        abstract void begin(TftpCodec.Request request);
+
+        abstract void on_packet(ByteBuffer packet);
+
+        abstract void on_timeout();
+
+        abstract void close_resources();
+
+        void schedule(long delay) {
+            timers.schedule(timeout, now(), delay);
+        }
+
+        void cancel_timeout() {
+            timers.cancel(timeout);
+        }
+
+        // the session receives packets from here on, its reply buffer comes from the pool
+        void register() {
+            sessions.put(client, this);
+            reply = buffers.acquire(CONTROL_PACKET_SIZE);
+        }
+
+        void finish() {
+            cancel_timeout();
+            if (!sessions.remove(client, this)) return;
+            close_resources();
+            buffers.release(reply);
+            reply = null;
+            release_admission();
+            TftpEvents.session_ended(event);
+        }
+
+        boolean registered() {
+            return sessions.get(client) == this;
+        }
+
+        // a step that fails unexpectedly ends its own session, never the loop
+        // Errors included: a mapped file truncated on disk raises InternalError on the next block read
+        void guarded(Runnable step) {
+            stepping = this;
+            try {
+                step.run();
+            } catch (RuntimeException | Error e) {
+                fail(e);
+            }
+        }
+
+        // logs the failure, tells the client and ends the session
+        void fail(Throwable e) {
+            Log.error("Client Session: %s %d | Unexpected failure | Terminating session | %s", ip_str, port, e);
+            try {
+                send_error(TftpCodec.ERROR_UNDEFINED, "Internal server error");
+                finish();
+            } catch (RuntimeException | Error again) {
+                //the session could not even close cleanly, at least stop routing packets to it
+                sessions.remove(client, this);
+                Log.error("Client Session: %s %d | Could not close session | %s", ip_str, port, again);
+            }
+        }
+
+        // runs work off the loop, false when the loop is shutting down and took no more
+        boolean off_loop(Runnable work) {
+            try {
+                blocking_io.execute(work);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        // hands the result of off loop work back to the session, on the loop thread
+        void on_loop(Runnable step) {
+            tasks.add(() -> guarded(step));
+            selector.wakeup();
+        }
+
+        void release_admission() {
+            if (!admitted) return;
+            admitted = false;
+            context.admission.release(client.getAddress());
+        }
+
+        boolean send(ByteBuffer packet) {
+            try {
+                //a full socket buffer drops the packet, the retransmission timer recovers it like any other loss
+                channel.send(packet, client);
+                return true;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not send packet due to IOException | Terminating session | %s", ip_str, port, e.getMessage());
+                finish();
+                return false;
+            }
+        }
+
+        boolean send_reply() {
+            return send(reply.rewind());
+        }
+
+        void send_error(int code, String message) {
+            TftpCodec.put_error(error_buffer, code, message);
+            try {
+                channel.send(error_buffer, client);
+                metrics.error_sent(code);
+                TftpEvents.error_sent(client.getAddress(), port, code, message);
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not send error packet due to IOException | %s", ip_str, port, e.getMessage());
+            }
+        }
+    }
+
+    private final class ReadSession extends Session {
+        private TftpOptions options;
+        private BlockSource source;
+        private ByteBuffer packet;
+        private boolean awaiting_oack_ack = false;
+        private BandwidthScheduler.Throttle throttle;
+
+        //the timer is holding the window back for the bandwidth share, not waiting for an ack
+        private boolean pacing = false;
+        private long last_block;
+        private long acked = 0;
+        private long next_block = 1;
+        private long highest_sent = 0;
+
+        //one block per round trip is timed, only if it is sent exactly once (Karn's rule)
+        private long timed_block = 0;
+        private long timed_at = 0;
+
+        ReadSession(InetSocketAddress client) {
+            super(client);
+        }
+
+        // registers at once so retransmitted requests are absorbed, the file is opened (and maybe mapped) off the loop
+        @Override
+        void begin(TftpCodec.Request request) {
+            event = TftpEvents.session("read", client.getAddress(), port, request.filename());
+            String filepath = request.filename();
+            options = TftpOptions.negotiate(request.options(), config, client.getAddress());
+            rtt = RttEstimator.create(config, options, metrics.ack_rtt);
+            event.block_size = options.block_size;
+            event.window_size = options.window_size;
+
+            register();
+            int read_ahead = Math.max(config.read_ahead_blocks, options.window_size);
+            boolean handed_off = off_loop(() -> {
+                BlockSource opened = null;
+                IOException failure = null;
+                try {
+                    opened = context.store.open_read(filepath, options.block_size, read_ahead);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException | Error e) {
+                    failure = new IOException(e.toString(), e);
+                }
+                BlockSource result = opened;
+                IOException error = failure;
+                on_loop(() -> on_opened(filepath, result, error));
+            });
+            if (!handed_off) finish();
+        }
+
+        private void on_opened(String filepath, BlockSource opened, IOException failure) {
+            //the session ended while the file was opening
+            if (!registered()) {
+                if (opened != null) UdpServer.close_all_streams(ip_str, port, opened);
+                return;
+            }
+            if (failure != null) {
+                Log.warn("Client Session: %s %d | Read request denied : %s | %s", ip_str, port, filepath, failure.getMessage());
+                send_error(UdpServer.refusal_code(failure), UdpServer.refusal(failure, false));
+                finish();
+                return;
+            }
+
+            source = opened;
+            metrics.read_started();
+            packet = buffers.acquire(options.block_size + 4);
+            throttle = context.bandwidth.open();
+            last_block = source.size() / options.block_size + 1;
+            Log.info("Client Session: %s %d | Sending file: %s ( %d bytes)", ip_str, port, filepath, source.size());
+
+            //options were accepted, the client acks the oack with block 0 before data starts
+            if (options.has_oack()) {
+                TftpCodec.put_oack(reply, options.accepted);
+                awaiting_oack_ack = true;
+                Log.debug("Client Session: %s %d | Oack sent | %s", ip_str, port, options.accepted);
+                timed_at = System.nanoTime();
+                if (send_reply()) schedule(rtt.timeout_ms());
+                return;
+            }
+            send_window();
+        }
+
+        // keeps up to window_size unacknowledged blocks in flight
+        private void send_window() {
+            while (next_block <= last_block && next_block - acked <= options.window_size) {
+                //cached files hand out their prebuilt packet, otherwise the block is copied behind a fresh header
+                ByteBuffer data = source.packet_view(next_block - 1);
+                if (data == null) {
+                    try {
+                        data = source.read_packet(next_block - 1, packet, scratch);
+                    } catch (IOException e) {
+                        Log.warn("Client Session: %s %d | Could not read block %d | Terminating session | %s", ip_str, port, next_block, e.getMessage());
+                        send_error(TftpCodec.ERROR_UNDEFINED, "Could not read file");
+                        finish();
+                        return;
+                    }
+                }
+                int length = data.remaining() - 4;
+                //over the share, the timer resumes the window once the bucket has refilled
+                long wait = throttle.wait_nanos(data.remaining());
+                if (wait > 0) {
+                    pacing = true;
+                    schedule(Math.max(1, (wait + 999_999) / 1_000_000));
+                    return;
+                }
+                throttle.consume(data.remaining());
+                if (next_block <= highest_sent) {
+                    metrics.retransmit();
+                    TftpEvents.retransmit(client.getAddress(), port, "data", next_block);
+                }
+                if (!send(data)) return;
+                metrics.block_sent(length);
+                Log.trace("Client Session: %s %d | Block %d sent", ip_str, port, next_block);
+                if (next_block > highest_sent) {
+                    highest_sent = next_block;
+                    if (timed_block == 0) {
+                        timed_block = next_block;
+                        timed_at = System.nanoTime();
+                    }
+                }
+                next_block++;
+            }
+            pacing = false;
+            schedule(rtt.timeout_ms());
+        }
+
+        @Override
+        void on_packet(ByteBuffer packet) {
+            int code = TftpCodec.opcode(packet);
+            if (code == TftpCodec.ERROR) {
+                Log.warn("Client Session: %s %d | Client sent error packet | Terminating session", ip_str, port);
+                metrics.error_received(Math.max(0, TftpCodec.block(packet)));
+                finish();
+                return;
+            }
+            //still opening, nothing has been sent that could be acked
+            if (source == null) return;
+            //a retransmitted request while the oack is outstanding
+            if (code == TftpCodec.RRQ) {
+                if (awaiting_oack_ack && send_reply()) {
+                    metrics.retransmit();
+                    TftpEvents.retransmit(client.getAddress(), port, "oack", 0);
+                }
+                return;
+            }
+            //an ack too short to carry a block number is dropped like any other stray packet
+            if (code != TftpCodec.ACK || packet.limit() < 4) {
+                Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip_str, port);
+                return;
+            }
+            int received = TftpCodec.block(packet);
+
+            if (awaiting_oack_ack) {
+                if (received != 0) return;
+                if (retries == 0) rtt.sample(System.nanoTime() - timed_at);
+                awaiting_oack_ack = false;
+                retries = 0;
+                send_window();
+                return;
+            }
+
+            long block = UdpServer.window_ack(acked, next_block - 1, received);
+            if (block < 0) {
+                Log.debug("Client Session: %s %d | Duplicate or stale ack | Packet dropped", ip_str, port);
+                return;
+            }
+            Log.trace("Client Session: %s %d | Ack %d received", ip_str, port, block);
+
+            if (timed_block != 0 && block >= timed_block) {
+                rtt.sample(System.nanoTime() - timed_at);
+                timed_block = 0;
+            }
+            retries = 0;
+            acked = block;
+            event.blocks = acked;
+            event.bytes = Math.min(acked * options.block_size, source.size());
+            if (acked == last_block) {
+                metrics.read_completed(source.size(), started_at);
+                event.outcome = "completed";
+                finish();
+                Log.info("Client Session: %s %d | Read request completed", ip_str, port);
+                return;
+            }
+
+            //an ack short of the window means the client missed a block, restart right after it
+            if (acked < next_block - 1) {
+                next_block = acked + 1;
+                timed_block = 0;
+            }
+            send_window();
+        }
+
+        // back off and resend the window starting after the last acked block
+        @Override
+        void on_timeout() {
+            if (pacing) {
+                send_window();
+                return;
+            }
+            metrics.timeout();
+            if (++retries > config.max_retries) {
+                Log.warn("Client Session: %s %d | Client timed out | Terminating session", ip_str, port);
+                event.outcome = "timed out";
+                finish();
+                return;
+            }
+            rtt.backoff();
+            timed_block = 0;
+            if (awaiting_oack_ack) {
+                if (send_reply()) {
+                    metrics.retransmit();
+                    TftpEvents.retransmit(client.getAddress(), port, "oack", 0);
+                    schedule(rtt.timeout_ms());
+                }
+                return;
+            }
+            next_block = acked + 1;
+            send_window();
+        }
+
+        @Override
+        void close_resources() {
+            if (source == null) return;
+            metrics.read_ended();
+            UdpServer.close_all_streams(ip_str, port, source);
+            buffers.release(packet);
+            throttle.close();
+        }
+    }
+
+    private final class WriteSession extends Session {
+        private TftpOptions options;
+        private BlockSink writer;
+        private String filepath;
+        private long last_ack_block = 0;
+        private long block_num = 1;
+        private long bytes_received = 0;
+        private boolean committing = false;
+
+        //blocks received in order and copied out of the receive buffer, written to the sink off the loop
+        private final ConcurrentLinkedQueue<ByteBuffer> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger backlog = new AtomicInteger();
+        //at most one drain per session, so blocks reach the sink in order
+        private boolean draining = false;
+        //the window ack waits while the backlog is over write_queue_blocks, the client pauses until the disk catches up
+        private boolean ack_deferred = false;
+
+        //times the next data block after a fresh ack, skipped once the ack was retransmitted (Karn's rule)
+        private long ack_sent_at = 0;
+
+        WriteSession(InetSocketAddress client) {
+            super(client);
+        }
+
+        // registers at once like a read, the temp file and its write behind thread are created off the loop
+        @Override
+        void begin(TftpCodec.Request request) {
+            event = TftpEvents.session("write", client.getAddress(), port, request.filename());
+            filepath = request.filename();
+            options = TftpOptions.negotiate(request.options(), config, client.getAddress());
+            rtt = RttEstimator.create(config, options, metrics.ack_rtt);
+            event.block_size = options.block_size;
+            event.window_size = options.window_size;
+            Log.info("Client Session: %s %d | Receiving file : %s", ip_str, port, filepath);
+
+            register();
+            boolean handed_off = off_loop(() -> {
+                BlockSink opened = null;
+                IOException failure = null;
+                try {
+                    opened = context.store.open_write(filepath, options.block_size);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException | Error e) {
+                    failure = new IOException(e.toString(), e);
+                }
+                BlockSink result = opened;
+                IOException error = failure;
+                on_loop(() -> on_opened(result, error));
+            });
+            if (!handed_off) finish();
+        }
+
+        private void on_opened(BlockSink opened, IOException failure) {
+            //the session ended while the file was opening
+            if (!registered()) {
+                if (opened != null) opened.close();
+                return;
+            }
+            if (failure != null) {
+                send_error(UdpServer.refusal_code(failure), UdpServer.refusal(failure, true));
+                Log.warn("Client Session: %s %d | Write request denied : %s | %s", ip_str, port, filepath, failure.getMessage());
+                finish();
+                return;
+            }
+
+            writer = opened;
+            metrics.write_started();
+            // zero block ack, or the oack when options were accepted
+            if (options.has_oack()) {
+                TftpCodec.put_oack(reply, options.accepted);
+                Log.debug("Client Session: %s %d | Oack sent | %s", ip_str, port, options.accepted);
+            } else {
+                TftpCodec.put_ack(reply, 0);
+            }
+            ack_sent_at = System.nanoTime();
+            if (send_reply()) schedule_receive();
+        }
+
+        private boolean send_ack(long block) {
+            TftpCodec.put_ack(reply, block);
+            last_ack_block = block;
+            ack_deferred = false;
+            ack_sent_at = System.nanoTime();
+            return send_reply();
+        }
+
+        private boolean resend_ack() {
+            ack_sent_at = 0;
+            metrics.retransmit();
+            TftpEvents.retransmit(client.getAddress(), port, "ack", last_ack_block);
+            return send_reply();
+        }
+
+        //the wait is twice the rto because the client's own timer should retransmit first
+        private void schedule_receive() {
+            schedule(2L * rtt.timeout_ms());
+        }
+
+        @Override
+        void on_packet(ByteBuffer packet) {
+            //still opening, or the last block is in and only the commit is left
+            if (writer == null || committing) return;
+
+            int code = TftpCodec.opcode(packet);
+            if (code == TftpCodec.ERROR) {
+                Log.warn("Client Session: %s %d | Client sent error packet | Terminating session", ip_str, port);
+                metrics.error_received(Math.max(0, TftpCodec.block(packet)));
+                finish();
+                return;
+            }
+
+            int expected = (int) (block_num & 0xFFFF);
+            int acked = (int) (last_ack_block & 0xFFFF);
+            int received = TftpCodec.block(packet);
+
+            //the request again before block 1, or a repeat of the last acked block -> the ack was lost
+            if ((code == TftpCodec.WRQ && block_num == 1) || (code == TftpCodec.DATA && received == acked)) {
+                Log.debug("Client Session: %s %d | Block mismatch | Retransmitting last ack packet", ip_str, port);
+                resend_ack();
+                return;
+            }
+            if (code != TftpCodec.DATA || packet.limit() < 4) {
+                Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip_str, port);
+                return;
+            }
+            if (received != expected) {
+                //a gap in the window, ack the last block received in order once so the client resumes from there
+                long ahead = (received - expected) & 0xFFFF;
+                if (ahead < 0x8000 && last_ack_block < block_num - 1) {
+                    Log.debug("Client Session: %s %d | Block %d out of order | Acking last block received", ip_str, port, received);
+                    send_ack(block_num - 1);
+                } else {
+                    Log.debug("Client Session: %s %d | Block mismatch | Packet dropped", ip_str, port);
+                }
+                return;
+            }
+
+            int length = packet.remaining() - 4;
+            if (length > options.block_size) {
+                Log.warn("Client Session: %s %d | Block %d carries %d bytes, over the block size of %d | Terminating session", ip_str, port, block_num, length, options.block_size);
+                send_error(TftpCodec.ERROR_ILLEGAL_OPERATION, "Data block larger than the block size");
+                finish();
+                return;
+            }
+            Log.trace("Client Session: %s %d | Block %d received", ip_str, port, block_num);
+            //copied out of the receive buffer, the sink may block when the disk falls behind so it is written off the loop
+            ByteBuffer block = buffers.acquire(length);
+            block.put(packet.position(4)).flip();
+            queued.add(block);
+            backlog.incrementAndGet();
+            drain();
+            bytes_received += length;
+            metrics.block_received(length);
+            event.blocks = block_num;
+            event.bytes = bytes_received;
+            retries = 0;
+            if (ack_sent_at != 0) {
+                rtt.sample(System.nanoTime() - ack_sent_at);
+                ack_sent_at = 0;
+            }
+
+            if (length < options.block_size) {
+                Log.debug("Client Session: %s %d | Hit last block", ip_str, port);
+                //the commit follows the drain of the last queued blocks
+                committing = true;
+                ack_deferred = false;
+                cancel_timeout();
+                if (!draining) commit();
+                return;
+            }
+
+            //acks once per window
+            if (block_num - last_ack_block >= options.window_size) {
+                if (backlog.get() > config.write_queue_blocks) {
+                    Log.trace("Client Session: %s %d | %d blocks waiting for the disk | Ack %d deferred", ip_str, port, backlog.get(), block_num);
+                    ack_deferred = true;
+                } else {
+                    if (!send_ack(block_num)) return;
+                    Log.trace("Client Session: %s %d | Ack %d sent", ip_str, port, block_num);
+                }
+            }
+            block_num++;
+            schedule_receive();
+        }
+
+        // writes the queued blocks to the sink on blocking_io, the first failure is reported once the queue is empty
+        private void drain() {
+            if (draining) return;
+            draining = true;
+            boolean handed_off = off_loop(() -> {
+                IOException failure = null;
+                ByteBuffer block;
+                while ((block = queued.poll()) != null) {
+                    try {
+                        if (failure == null) writer.write(block);
+                    } catch (IOException e) {
+                        failure = e;
+                    } catch (RuntimeException | Error e) {
+                        failure = new IOException(e.toString(), e);
+                    }
+                    buffers.release(block);
+                    backlog.decrementAndGet();
+                }
+                IOException error = failure;
+                on_loop(() -> on_drained(error));
+            });
+            if (!handed_off) {
+                draining = false;
+                finish();
+            }
+        }
+
+        private void on_drained(IOException failure) {
+            draining = false;
+            //the session ended while the drain was running, the sink was left open for it
+            if (!registered()) {
+                close_sink();
+                return;
+            }
+            if (failure != null) {
+                Log.warn("Client Session: %s %d | Could not write file %s | Terminating session | %s", ip_str, port, filepath, failure.getMessage());
+                send_error(TftpCodec.ERROR_UNDEFINED, "Could not write file");
+                finish();
+                return;
+            }
+            //blocks that arrived while the drain was finishing
+            if (!queued.isEmpty()) {
+                drain();
+            } else if (committing) {
+                commit();
+                return;
+            }
+            if (ack_deferred && backlog.get() <= config.write_queue_blocks) {
+                ack_deferred = false;
+                if (!send_ack(block_num - 1)) return;
+                Log.trace("Client Session: %s %d | Deferred ack %d sent", ip_str, port, block_num - 1);
+                schedule_receive();
+            }
+        }
+
+        // fsync and rename run off the loop, the final ack goes out once the file is in place
+        private void commit() {
+            boolean handed_off = off_loop(() -> {
+                boolean committed;
+                try {
+                    writer.commit();
+                    committed = true;
+                } catch (Exception | Error e) {
+                    Log.warn("Client Session: %s %d | Failed to commit file %s | %s", ip_str, port, filepath, e.getMessage());
+                    writer.abort();
+                    committed = false;
+                }
+                boolean result = committed;
+                on_loop(() -> on_committed(result));
+            });
+            if (!handed_off) finish();
+        }
+
+        private void on_committed(boolean committed) {
+            if (!registered()) return;
+            if (!committed) {
+                send_error(TftpCodec.ERROR_UNDEFINED, "Could not write file");
+                finish();
+                return;
+            }
+            if (send_ack(block_num)) {
+                Log.trace("Client Session: %s %d | Ack %d sent", ip_str, port, block_num);
+                metrics.write_completed(writer.bytes_written(), started_at);
+                event.outcome = "completed";
+                finish();
+                Log.info("Client Session: %s %d | Write request completed | File size : %d bytes", ip_str, port, writer.bytes_written());
+            }
+        }
+
+        @Override
+        void on_timeout() {
+            //the client is waiting on the disk, not lost, the drain sends the ack
+            if (ack_deferred) {
+                schedule_receive();
+                return;
+            }
+            metrics.timeout();
+            if (++retries > config.max_retries) {
+                Log.warn("Client Session: %s %d | Too many attempts to retransmit | Terminating session", ip_str, port);
+                event.outcome = "timed out";
+                finish();
+                return;
+            }
+            rtt.backoff();
+            //a windowed client waits for an ack at the end of its window, ack what arrived in order so it can resume
+            if (options.window_size > 1 && last_ack_block != block_num - 1) {
+                Log.debug("Client Session: %s %d | Window incomplete | Acking block %d", ip_str, port, block_num - 1);
+                if (!send_ack(block_num - 1)) return;
+                ack_sent_at = 0;
+            } else {
+                Log.debug("Client Session: %s %d | Client timed out | Retransmitting last ack packet", ip_str, port);
+                if (!resend_ack()) return;
+            }
+            schedule_receive();
+        }
+
+        @Override
+        void close_resources() {
+            if (writer == null) return;
+            metrics.write_ended();
+            //a running drain still uses the sink, on_drained closes it
+            if (!draining) close_sink();
+        }
+
+        private void close_sink() {
+            writer.close();
+            ByteBuffer block;
+            while ((block = queued.poll()) != null) buffers.release(block);
+            backlog.set(0);
+        }
+    }
+}
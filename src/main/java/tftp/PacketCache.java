@@ -0,0 +1,260 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+// shared cache of hot files kept as ready to send DATA packets in direct buffers
+// every block sits in its own slot with the opcode and block number already written,
+// so a hit is served without touching the file or building packets
+// a file is only loaded once it has been requested admit_after times (cheap frequency filter),
+// entries are evicted least recently used first and dropped when the file changes on disk
+class PacketCache {
+    private final long max_bytes;
+    private final long max_file_bytes;
+    private final int admit_after;
+    private final Executor loader;
+
+    //access ordered, guarded by this
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Integer> request_counts = new HashMap<>();
+    private final Map<Key, Boolean> loading = new HashMap<>();
+    private long used_bytes = 0;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    PacketCache(long max_bytes, long max_file_bytes, int admit_after, Executor loader) {
+        this.max_bytes = max_bytes;
+        //an entry is one direct buffer, so no file above 2 GB of packets however large the cache
+        this.max_file_bytes = Math.min(Integer.MAX_VALUE, Math.min(max_file_bytes, max_bytes));
+        this.admit_after = Math.max(1, admit_after);
+        this.loader = loader;
+    }
+
+    boolean enabled() {
+        return max_bytes > 0;
+    }
+
+    // returns a source backed by the cached packets, or null on a miss
+    // a miss may start loading the file in the background for later requests
+    // size and modified are the caller's view of the file (the path resolver's), an entry of another version is dropped
+    BlockSource open(String filepath, int block_size, long size, long modified) {
+        if (!enabled()) return null;
+        Path path = Path.of(filepath).toAbsolutePath().normalize();
+        Key key = new Key(path, block_size);
+
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && (entry.size != size || entry.modified != modified)) {
+                remove(key);
+                invalidations.increment();
+                entry = null;
+            }
+            if (entry == null && slot_bytes(size, block_size) <= max_file_bytes && !loading.containsKey(key)) {
+                int count = request_counts.merge(key, 1, Integer::sum);
+                if (count >= admit_after) {
+                    request_counts.remove(key);
+                    loading.put(key, Boolean.TRUE);
+                    load = true;
+                } else if (request_counts.size() > 4096) {
+                    //the counters only need to catch files that are requested repeatedly within a short span
+                    request_counts.clear();
+                }
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            if (load) loader.execute(() -> load(key, size, modified));
+            return null;
+        }
+        hits.increment();
+        return new CachedBlockSource(entry);
+    }
+
+    // called when a write replaced the file, drops the entry for every block size
+    void invalidate(String filepath) {
+        if (!enabled()) return;
+        Path path = Path.of(filepath).toAbsolutePath().normalize();
+        synchronized (this) {
+            //no get while iterating, it reorders the access ordered map
+            Iterator<Map.Entry<Key, Entry>> cached = entries.entrySet().iterator();
+            while (cached.hasNext()) {
+                Map.Entry<Key, Entry> next = cached.next();
+                if (!next.getKey().path.equals(path)) continue;
+                used_bytes -= next.getValue().packets.capacity();
+                cached.remove();
+                invalidations.increment();
+            }
+        }
+    }
+
+    String describe() {
+        if (!enabled()) return "disabled";
+        return String.format("%d MB, files up to %d MB after %d requests", max_bytes >> 20, max_file_bytes >> 20, admit_after);
+    }
+
+    // hit, miss and eviction counts for monitoring
+    String stats() {
+        return String.format("hits %d | misses %d | loads %d | evictions %d | invalidations %d | %d entries, %d bytes",
+                hits.sum(), misses.sum(), loads.sum(), evictions.sum(), invalidations.sum(), entry_count(), used_bytes());
+    }
+
+    synchronized long used_bytes() {
+        return used_bytes;
+    }
+
+    synchronized int entry_count() {
+        return entries.size();
+    }
+
+    private void load(Key key, long size, long modified) {
+        try {
+            ByteBuffer packets = ByteBuffer.allocateDirect((int) slot_bytes(size, key.block_size));
+            int slot = key.block_size + 4;
+            long block_count = size / key.block_size + 1;
+            TftpEvents.FileRead event = new TftpEvents.FileRead();
+            event.begin();
+            try (FileChannel channel = FileChannel.open(key.path, StandardOpenOption.READ)) {
+                for (long index = 0; index < block_count; index++) {
+                    int base = (int) (index * slot);
+                    long position = index * key.block_size;
+                    int length = (int) Math.min(key.block_size, size - position);
+                    packets.putShort(base, (short) 3);
+                    packets.putShort(base + 2, (short) (index + 1));
+                    ByteBuffer payload = packets.slice(base + 4, length);
+                    while (payload.hasRemaining()) {
+                        if (channel.read(payload, position + payload.position()) < 0) throw new IOException("File shrank while loading");
+                    }
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = key.path.toString();
+                event.bytes = size;
+                event.commit();
+            }
+
+            //a write may have replaced the file while it was being read
+            BasicFileAttributes attributes = Files.readAttributes(key.path, BasicFileAttributes.class);
+            if (attributes.size() != size || attributes.lastModifiedTime().toMillis() != modified) return;
+
+            synchronized (this) {
+                remove(key);
+                entries.put(key, new Entry(packets, size, modified, key.block_size));
+                used_bytes += packets.capacity();
+                loads.increment();
+                evict();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Packet cache | Could not load %s | %s", key.path, e.getMessage());
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (used_bytes > max_bytes && eldest.hasNext()) {
+            used_bytes -= eldest.next().getValue().packets.capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) used_bytes -= removed.packets.capacity();
+    }
+
+    private static long slot_bytes(long size, int block_size) {
+        return (size / block_size + 1) * (long) (block_size + 4);
+    }
+
+    private record Key(Path path, int block_size) {
+    }
+
+    private record Entry(ByteBuffer packets, long size, long modified, int block_size) {
+    }
+
+    // readers share the entry's buffer, eviction only drops the map reference so in flight transfers keep working
+    private static final class CachedBlockSource implements BlockSource {
+        private final Entry entry;
+        private final int slot;
+
+        //repositioned for every packet_view call so sending a cached block allocates nothing
+        private final ByteBuffer view;
+
+        CachedBlockSource(Entry entry) {
+            this.entry = entry;
+            this.slot = entry.block_size + 4;
+            this.view = entry.packets.duplicate();
+        }
+
+        @Override
+        public long size() {
+            return entry.size;
+        }
+
+        @Override
+        public int block_size() {
+            return entry.block_size;
+        }
+
+        @Override
+        public int read_block(long block_index, byte[] dst, int offset) {
+            int length = payload_length(block_index);
+            entry.packets.get((int) (block_index * slot) + 4, dst, offset, length);
+            return length;
+        }
+
+        @Override
+        public int read_packet(long block_index, byte[] dst) {
+            int length = payload_length(block_index) + 4;
+            entry.packets.get((int) (block_index * slot), dst, 0, length);
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) {
+            int length = payload_length(block_index) + 4;
+            dst.clear();
+            dst.put(0, entry.packets, (int) (block_index * slot), length);
+            return dst.limit(length);
+        }
+
+        @Override
+        public ByteBuffer packet_view(long block_index) {
+            int start = (int) (block_index * slot);
+            view.clear().position(start).limit(start + payload_length(block_index) + 4);
+            return view;
+        }
+
+        private int payload_length(long block_index) {
+            long position = block_index * entry.block_size;
+            return (int) Math.max(0, Math.min(entry.block_size, entry.size - position));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
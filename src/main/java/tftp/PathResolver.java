@@ -0,0 +1,261 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// maps request filenames onto the served tree and caches what sessions need to know about each path
+// names are resolved under the root and normalized, a name that leaves the root (../, a symlink out) is refused, and
+// so is the temp file of an upload in progress, which would serve or overwrite a partial file
+// existence, type, size and mtime are kept in a bounded concurrent map, so repeated requests for the same names
+// cost no stat calls; a WatchService on the tree and completed writes drop changed entries, and entries older than
+// max_age are looked up again in case the watcher missed a change (event overflow, network filesystems)
+class PathResolver {
+    // exists false means the path was looked up and is absent, which is cached as well
+    // file_key identifies the file behind the name (device and inode where the platform has them), or null
+    record Resolved(Path path, boolean exists, boolean directory, long size, long modified, Object file_key) {
+        boolean is_file() {
+            return exists && !directory;
+        }
+
+        String filepath() {
+            return path.toString();
+        }
+    }
+
+    //BlockWriter's .<name>.<n>.part and BlobStore's .<name>.<hex>.link, created next to the target
+    private static final Pattern STAGING_NAME = Pattern.compile("\\..+\\.[0-9a-f]+\\.(part|link)");
+
+    private final Path root;
+    private final Path real_root;
+    private final int max_entries;
+    private final long max_age_nanos;
+
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    //bumped by every invalidation, a lookup that raced one does not cache what it read
+    private final AtomicLong generation = new AtomicLong();
+
+    private WatchService watcher;
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+    final LongAdder refused = new LongAdder();
+
+    PathResolver(String root, int max_entries, long max_age_ms) {
+        this.root = Path.of(root).toAbsolutePath().normalize();
+        try {
+            this.real_root = this.root.toRealPath();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Root directory " + this.root + " is not accessible: " + e.getMessage());
+        }
+        this.max_entries = max_entries;
+        this.max_age_nanos = max_age_ms * 1_000_000L;
+    }
+
+    // the request name as a path under the root, null when it would leave the root
+    // separators are normalized and a leading slash still means the root, as TFTP clients expect
+    Path resolve(String filename) {
+        String name = filename.replace('\\', '/');
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '/') start++;
+        Path path = root.resolve(name.substring(start)).normalize();
+        if (!path.startsWith(root) || is_staging(path)) {
+            refused.increment();
+            return null;
+        }
+        return path;
+    }
+
+    static boolean is_staging(Path path) {
+        Path name = path.getFileName();
+        return name != null && STAGING_NAME.matcher(name.toString()).matches();
+    }
+
+    // what the session needs to know about the name, null when it is outside the root
+    Resolved lookup(String filename) {
+        Path path = resolve(filename);
+        return path == null ? null : lookup(path);
+    }
+
+    Resolved lookup(Path path) {
+        Entry entry = entries.get(path);
+        if (entry != null && (max_age_nanos <= 0 || System.nanoTime() - entry.cached_at < max_age_nanos)) {
+            hits.increment();
+            return entry.resolved;
+        }
+        misses.increment();
+        long seen = generation.get();
+        Resolved resolved = stat(path);
+        if (max_entries > 0 && generation.get() == seen) {
+            if (entries.size() >= max_entries) evict();
+            entries.put(path, new Entry(resolved, System.nanoTime()));
+        }
+        if (resolved == null) refused.increment();
+        return resolved;
+    }
+
+    // a write may create the file, only its directory has to exist
+    boolean parent_is_directory(Path path) {
+        Path parent = path.getParent();
+        if (parent == null || !parent.startsWith(root)) return false;
+        Resolved directory = lookup(parent);
+        return directory != null && directory.exists && directory.directory;
+    }
+
+    // called once a write renamed its file into place, the watcher catches every other change
+    void invalidate(String filepath) {
+        invalidate(Path.of(filepath).toAbsolutePath().normalize(), false);
+    }
+
+    String describe() {
+        String cache = max_entries > 0 ? String.format("%d entries, max age %d ms", max_entries, max_age_nanos / 1_000_000) : "no metadata cache";
+        return String.format("%s | %s | %s", root, cache, watcher != null ? "watched" : "not watched");
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // stops the watcher thread, lookups keep working on max age alone
+    void close() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // registers every directory below the root on a daemon thread, events then invalidate the entries they touch
+    void watch() {
+        if (max_entries <= 0) return;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            Log.warn("Path cache | Could not create a watch service, entries expire after their max age | %s", e.getMessage());
+            return;
+        }
+        Thread.ofPlatform().name("path-watcher").daemon(true).start(() -> {
+            register_tree(root);
+            //changes made while the tree was registered sent no events, entries cached meanwhile are dropped
+            entries.clear();
+            generation.incrementAndGet();
+            watch_loop();
+        });
+    }
+
+    private void watch_loop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    //events were lost, nothing cached can be trusted
+                    entries.clear();
+                    generation.incrementAndGet();
+                    invalidations.increment();
+                    continue;
+                }
+                Path child = directory.resolve((Path) event.context());
+                boolean created_directory = event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                if (created_directory) register_tree(child);
+                invalidate(child, created_directory || event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            if (!key.reset()) watched.remove(key);
+        }
+    }
+
+    private void register_tree(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                    WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watched.put(key, directory);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            Log.warn("Path cache | Could not watch %s | %s", start, e.getMessage());
+        }
+    }
+
+    // a directory that appeared or went away may have cached entries below it, including absent ones
+    private void invalidate(Path path, boolean subtree) {
+        generation.incrementAndGet();
+        Entry removed = entries.remove(path);
+        if (removed != null) invalidations.increment();
+        if (!subtree && (removed == null || removed.resolved == null || !removed.resolved.directory)) return;
+        Iterator<Path> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!paths.next().startsWith(path)) continue;
+            paths.remove();
+            invalidations.increment();
+        }
+    }
+
+    // a miss costs one stat of the path and a link check per directory below the root, links are followed only
+    // when their target stays inside the root
+    private Resolved stat(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink() || has_linked_parent(path)) {
+                if (!path.toRealPath().startsWith(real_root)) return null;
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            }
+            return new Resolved(path, true, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+        } catch (IOException e) {
+            return new Resolved(path, false, false, 0, 0, null);
+        }
+    }
+
+    // the root itself may be a link, only directories between it and the file are checked
+    private boolean has_linked_parent(Path path) {
+        for (Path parent = path.getParent(); parent != null && !parent.equals(root) && parent.startsWith(root); parent = parent.getParent()) {
+            if (Files.isSymbolicLink(parent)) return true;
+        }
+        return false;
+    }
+
+    // drops about an eighth of the entries in iteration order, cheap and good enough to stay bounded
+    private void evict() {
+        int target = max_entries - Math.max(1, max_entries / 8);
+        Iterator<Path> paths = entries.keySet().iterator();
+        while (entries.size() > target && paths.hasNext()) {
+            paths.next();
+            paths.remove();
+        }
+    }
+
+    private record Entry(Resolved resolved, long cached_at) {
+    }
+}
@@ -0,0 +1,72 @@
+package tftp;
+
+// per session retransmission timeout, Jacobson/Karels smoothing as in RFC 6298
+// callers follow Karn's rule: only blocks that were sent exactly once are sampled,
+// and a backed off timeout is kept until such a sample arrives
+class RttEstimator {
+    private final boolean fixed;
+    private final long min_us;
+    private final long max_us;
+    private Histogram samples;
+
+    private long srtt_us = -1;
+    private long rttvar_us = 0;
+    private long rto_us;
+    private int backoff = 0;
+
+    RttEstimator(int initial_ms, int min_ms, int max_ms) {
+        this(initial_ms, min_ms, max_ms, false);
+    }
+
+    private RttEstimator(int initial_ms, int min_ms, int max_ms, boolean fixed) {
+        this.fixed = fixed;
+        this.min_us = Math.max(1, min_ms) * 1000L;
+        this.max_us = Math.max(min_ms, max_ms) * 1000L;
+        this.rto_us = clamp(initial_ms * 1000L);
+    }
+
+    // RFC 2349 timeout option, the client asked for a fixed interval
+    static RttEstimator fixed(int timeout_ms) {
+        return new RttEstimator(timeout_ms, timeout_ms, timeout_ms, true);
+    }
+
+    // samples are also recorded into the server wide rtt histogram, fixed timeouts included
+    static RttEstimator create(TftpConfig config, TftpOptions options, Histogram samples) {
+        RttEstimator rtt = options.timeout_seconds > 0 ? fixed(options.timeout_seconds * 1000) : new RttEstimator(config.initial_rto, config.min_rto, config.max_rto);
+        rtt.samples = samples;
+        return rtt;
+    }
+
+    void sample(long rtt_nanos) {
+        long rtt_us = Math.max(1, rtt_nanos / 1000);
+        if (samples != null) samples.record(rtt_us);
+        if (fixed) return;
+        if (srtt_us < 0) {
+            srtt_us = rtt_us;
+            rttvar_us = rtt_us / 2;
+        } else {
+            rttvar_us = (3 * rttvar_us + Math.abs(srtt_us - rtt_us)) / 4;
+            srtt_us = (7 * srtt_us + rtt_us) / 8;
+        }
+        rto_us = clamp(srtt_us + 4 * rttvar_us);
+        backoff = 0;
+    }
+
+    // doubles the timeout after a retransmission, capped at the configured maximum
+    void backoff() {
+        if (!fixed && backoff < 20) backoff++;
+    }
+
+    int timeout_ms() {
+        long timeout_us = Math.min(max_us, rto_us << backoff);
+        return (int) Math.max(1, (timeout_us + 999) / 1000);
+    }
+
+    long srtt_us() {
+        return srtt_us;
+    }
+
+    private long clamp(long value_us) {
+        return Math.max(min_us, Math.min(max_us, value_us));
+    }
+}
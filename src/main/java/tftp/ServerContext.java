@@ -0,0 +1,46 @@
+package tftp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// state shared by every session of one server: the settings, the file store and the caches built from them
+class ServerContext {
+    final TftpConfig config;
+    final FileStore store;
+    //the local store's caches and path resolver for metrics, null when files come from another store
+    final LocalFileStore local;
+    final AdmissionControl admission;
+    final BandwidthScheduler bandwidth;
+    final MulticastGroups multicast;
+    final SessionTable session_table;
+    final TftpMetrics metrics;
+
+    ServerContext(TftpConfig config) {
+        this(config, open_store(config));
+    }
+
+    ServerContext(TftpConfig config, FileStore store) {
+        this.config = config;
+        this.store = store;
+        this.local = store instanceof LocalFileStore local_store ? local_store : null;
+        this.admission = new AdmissionControl(config.max_sessions, config.max_client_sessions);
+        this.bandwidth = new BandwidthScheduler(config.bandwidth_kib * 1024L, config.session_bandwidth_kib * 1024L);
+        this.multicast = new MulticastGroups(this);
+        this.session_table = new SessionTable();
+        this.metrics = new TftpMetrics(this);
+    }
+
+    // the store named by tftp.store, serving tftp.root
+    static FileStore open_store(TftpConfig config) {
+        try {
+            return switch (config.store) {
+                case "memory" -> MemoryFileStore.load(Path.of(config.root), config.memory_store_megabytes * 1024L * 1024L);
+                case "zip" -> new ZipFileStore(Path.of(config.root));
+                case "local" -> new LocalFileStore(config.root, config);
+                default -> throw new IllegalArgumentException("Unknown file store " + config.store + ", expected local, memory or zip");
+            };
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open the " + config.store + " store at " + config.root + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// live sessions of the blocking engine keyed by client address, port, opcode and filename
+// a retransmitted request for a live session is absorbed here instead of starting a second session,
+// and while the session still waits for the answer to its first reply (oack or ack 0) that reply is sent again
+// an entry lives exactly as long as its session runnable and is removed with one map operation when it ends
+class SessionTable {
+    record Key(InetAddress ip, int port, int opcode, String filename) {
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    final LongAdder absorbed = new LongAdder();
+    final LongAdder resent = new LongAdder();
+
+    // the new session's entry, or null when the request repeats one whose session is still live
+    Entry open(Key key) {
+        Entry entry = new Entry(key);
+        Entry live = entries.putIfAbsent(key, entry);
+        if (live == null) return entry;
+        if (live.resend()) resent.increment();
+        else absorbed.increment();
+        return null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    final class Entry {
+        private final Key key;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        //the first reply and the socket it went out on, only set until the client answers it; guarded by lock
+        private DatagramSocket socket;
+        private DatagramPacket first_reply;
+
+        private Entry(Key key) {
+            this.key = key;
+        }
+
+        // the session must not touch the packet's buffer again before calling answered
+        void awaiting(DatagramSocket socket, DatagramPacket first_reply) {
+            lock.lock();
+            try {
+                this.socket = socket;
+                this.first_reply = first_reply;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void answered() {
+            lock.lock();
+            try {
+                socket = null;
+                first_reply = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // called from a listener thread, false when there is nothing to resend
+        private boolean resend() {
+            lock.lock();
+            try {
+                if (first_reply == null) return false;
+                socket.send(first_reply);
+                return true;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not resend first reply due to IOException | %s", key.ip, key.port, e.getMessage());
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            answered();
+            entries.remove(key, this);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package tftp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// encodes and decodes TFTP packets in place, on heap or direct buffers
+// encoders write from index 0 and leave the buffer flipped (position 0, limit at the packet end),
+// decoders use absolute reads so the caller's position is untouched
+// nothing here allocates except parse_request, which runs once per session
+final class TftpCodec {
+    static final int RRQ = 1;
+    static final int WRQ = 2;
+    static final int DATA = 3;
+    static final int ACK = 4;
+    static final int ERROR = 5;
+    static final int OACK = 6;
+
+    // RFC 1350 error codes, 8 is the option negotiation failure from RFC 2347
+    static final int ERROR_UNDEFINED = 0;
+    static final int ERROR_FILE_NOT_FOUND = 1;
+    static final int ERROR_ACCESS_VIOLATION = 2;
+    static final int ERROR_DISK_FULL = 3;
+    static final int ERROR_ILLEGAL_OPERATION = 4;
+    static final int ERROR_UNKNOWN_TID = 5;
+    static final int ERROR_FILE_EXISTS = 6;
+    static final int ERROR_NO_SUCH_USER = 7;
+    static final int ERROR_OPTION_REFUSED = 8;
+
+    private TftpCodec() {
+    }
+
+    // request layout: opcode | filename \0 | mode \0 | (name \0 value \0)*
+    record Request(int opcode, String filename, String mode, Map<String, String> options) {
+    }
+
+    static int opcode(ByteBuffer packet) {
+        return packet.limit() < 2 ? -1 : packet.getShort(0) & 0xFFFF;
+    }
+
+    // block number of DATA and ACK packets, error code of ERROR packets
+    static int block(ByteBuffer packet) {
+        return packet.limit() < 4 ? -1 : packet.getShort(2) & 0xFFFF;
+    }
+
+    static boolean is_error(ByteBuffer packet) {
+        return opcode(packet) == ERROR;
+    }
+
+    // only the low 16 bits of the block number go on the wire
+    static ByteBuffer put_ack(ByteBuffer dst, long block) {
+        dst.clear();
+        dst.putShort(0, (short) ACK).putShort(2, (short) block);
+        return dst.limit(4);
+    }
+
+    static ByteBuffer put_data_header(ByteBuffer dst, long block) {
+        return dst.putShort(0, (short) DATA).putShort(2, (short) block);
+    }
+
+    // messages are written as ASCII one char at a time, anything outside it becomes '?'
+    static ByteBuffer put_error(ByteBuffer dst, int code, String message) {
+        dst.clear();
+        dst.putShort((short) ERROR).putShort((short) code);
+        int room = dst.capacity() - 5;
+        for (int i = 0; i < message.length() && i < room; i++) {
+            char c = message.charAt(i);
+            dst.put(c < 0x80 && c != 0 ? (byte) c : (byte) '?');
+        }
+        dst.put((byte) 0);
+        return dst.flip();
+    }
+
+    // opcode 6 followed by each accepted option and its value
+    static ByteBuffer put_oack(ByteBuffer dst, Map<String, String> options) {
+        dst.clear();
+        dst.putShort((short) OACK);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            put_string(dst, option.getKey());
+            put_string(dst, option.getValue());
+        }
+        return dst.flip();
+    }
+
+    // single pass over the request between index 0 and the limit, strings end at a zero byte or at the limit
+    // option names are case insensitive so they are stored lower case, incomplete trailing pairs are ignored
+    static Request parse_request(ByteBuffer packet) {
+        int length = packet.limit();
+        int opcode = opcode(packet);
+        int position = Math.min(2, length);
+
+        int end = zero_or_end(packet, position, length);
+        String filename = ascii(packet, position, end, false);
+        position = end + 1;
+
+        end = zero_or_end(packet, position, length);
+        String mode = ascii(packet, position, end, true);
+        position = end + 1;
+
+        Map<String, String> options = new LinkedHashMap<>();
+        while (position < length) {
+            int name_end = zero_or_end(packet, position, length);
+            int value_end = zero_or_end(packet, name_end + 1, length);
+            if (value_end >= length) break;
+            if (name_end > position) options.put(ascii(packet, position, name_end, true), ascii(packet, name_end + 1, value_end, false));
+            position = value_end + 1;
+        }
+        return new Request(opcode, filename, mode, options);
+    }
+
+    private static int zero_or_end(ByteBuffer packet, int position, int length) {
+        int i = position;
+        while (i < length && packet.get(i) != 0) i++;
+        return i;
+    }
+
+    private static String ascii(ByteBuffer packet, int start, int end, boolean lower_case) {
+        if (start >= end) return "";
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            byte b = packet.get(i);
+            char c = b < 0 ? '?' : (char) b;
+            if (lower_case && c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            chars[i - start] = c;
+        }
+        return new String(chars);
+    }
+
+    private static void put_string(ByteBuffer dst, String value) {
+        for (int i = 0; i < value.length(); i++) dst.put((byte) value.charAt(i));
+        dst.put((byte) 0);
+    }
+}
@@ -0,0 +1,191 @@
+package tftp;
+
+// server settings, defaults can be overridden with -Dtftp.<name>=<value>
+// public so embedders can fill one in and pass it to TftpServer.Builder.config or a LocalFileStore; the builder's
+// setters check their values, fields set here directly are taken as they are
+public final class TftpConfig {
+    // number of blocks each read session keeps buffered ahead of the acks
+    public int read_ahead_blocks = 8;
+
+    // number of received blocks that can wait for the write behind stage
+    public int write_queue_blocks = 16;
+
+    // 1 syncs every block, N every N blocks, 0 only once the upload completes
+    public int fsync_every = 0;
+
+    // upper bound for a negotiated blksize, also clamped to the interface MTU unless disabled
+    public int max_block_size = TftpOptions.MAX_BLOCK_SIZE;
+    public boolean block_size_mtu = true;
+
+    // upper bound for a negotiated windowsize
+    public int max_window_size = 64;
+
+    // 0 runs every session on its own virtual thread, N uses a fixed pool of N platform threads
+    public int session_threads = 0;
+
+    // sessions waiting for a pool thread before new requests are dropped
+    public int session_queue = 1024;
+
+    // sockets bound to the request port with SO_REUSEPORT, each with its own receive thread (or event loop) and buffers
+    // the kernel spreads clients across them; 0 opens one per core
+    public int listeners = 1;
+
+    // SO_RCVBUF requested for each listener, the kernel caps it at net.core.rmem_max; 0 keeps the system default
+    public int listener_receive_buffer = 4 * 1024 * 1024;
+
+    // concurrent sessions in total and per client address, 0 is unlimited
+    // a request over a cap waits up to admission_wait_ms for a slot, then gets an error; 0 refuses it right away
+    public int max_sessions = 0;
+    public int max_client_sessions = 0;
+    public int admission_wait_ms = 0;
+
+    // read bandwidth in KiB/s shared fairly by the sending sessions, and a cap for each session; 0 is unlimited
+    public int bandwidth_kib = 0;
+    public int session_bandwidth_kib = 0;
+
+    // RFC 2090 multicast reads (blocking engine, TftpServer refuses them with nio): clients asking for the same file
+    // share one stream to a group address
+    // groups use multicast_groups consecutive addresses from multicast_address, an empty address disables the option
+    // multicast_interface names the sending interface (e.g. lo to test on one host), empty follows the routing table
+    public String multicast_address = "";
+    public int multicast_groups = 16;
+    public int multicast_port = 1758;
+    public int multicast_ttl = 1;
+    public String multicast_interface = "";
+
+    // local serves the root directory, memory loads it into RAM at startup and keeps uploads there (capped at
+    // memory_store_megabytes, 0 is unlimited), zip serves the ZIP or JAR archive at root read only
+    public String store = "local";
+    public int memory_store_megabytes = 0;
+
+    // local store only: uploads are hashed as they arrive and published as hard links into a content addressed blob
+    // directory, so identical uploads are not written again; blob_dir defaults to .blobs under the root and must be
+    // on the root's filesystem for links. Uploads up to dedupe_buffer_megabytes are held in memory until hashed, all of
+    // them together up to dedupe_buffer_total_megabytes. Blobs no name links to are swept every dedupe_sweep_seconds,
+    // 0 sweeps only at startup
+    public boolean dedupe = false;
+    public String blob_dir = "";
+    public int dedupe_buffer_megabytes = 4;
+    public int dedupe_buffer_total_megabytes = 64;
+    public int dedupe_sweep_seconds = 600;
+
+    // directory served to clients, request names cannot leave it
+    // existence, type, size and mtime of looked up names are cached for up to path_cache_ms, 0 entries disables the cache
+    public String root = ".";
+    public int path_cache_entries = 65536;
+    public int path_cache_ms = 30000;
+
+    // blocking: a socket and a thread per session, nio: every session multiplexed on the listening socket
+    public String engine = "blocking";
+
+    // the nio engine keeps session deadlines on a timing wheel of timer_slots slots timer_tick_ms wide
+    // deadlines fire up to one tick late, a turn of the wheel should cover the usual retransmission timeouts
+    public int timer_tick_ms = 1;
+    public int timer_slots = 4096;
+
+    // retransmission timeout bounds in milliseconds, the estimate adapts between min and max
+    public int initial_rto = 500;
+    public int min_rto = 5;
+    public int max_rto = 10000;
+
+    // retransmissions of the same packet before a session gives up
+    public int max_retries = 10;
+
+    // packet cache for hot files in megabytes, 0 disables it
+    // files larger than cache_file_max are always read from disk, a file is cached after cache_admit requests
+    public int cache_megabytes = 64;
+    public int cache_file_max = 16;
+    public int cache_admit = 2;
+
+    // concurrent readers of one file version share a single read only mapping instead of reading it each
+    // files that are not in the packet cache are served from it, false reads every file through its own channel
+    public boolean map_files = true;
+
+    // prometheus text endpoint on http://<metrics_host>:<metrics_port>/metrics, 0 disables it (JMX is always available)
+    public int metrics_port = 0;
+    public String metrics_host = "127.0.0.1";
+
+    // free packet buffers kept per size class for reuse by later sessions
+    public int pooled_buffers = 256;
+
+    public static TftpConfig from_system_properties() {
+        TftpConfig config = new TftpConfig();
+        config.read_ahead_blocks = int_property("tftp.read.ahead", config.read_ahead_blocks);
+        config.write_queue_blocks = int_property("tftp.write.queue", config.write_queue_blocks);
+        config.fsync_every = fsync_property("tftp.write.fsync", config.fsync_every);
+        config.max_block_size = int_property("tftp.blksize.max", config.max_block_size);
+        config.block_size_mtu = bool_property("tftp.blksize.mtu", config.block_size_mtu);
+        config.max_window_size = int_property("tftp.windowsize.max", config.max_window_size);
+        config.session_threads = int_property("tftp.session.threads", config.session_threads);
+        config.session_queue = int_property("tftp.session.queue", config.session_queue);
+        config.initial_rto = int_property("tftp.rto.initial", config.initial_rto);
+        config.min_rto = int_property("tftp.rto.min", config.min_rto);
+        config.max_rto = int_property("tftp.rto.max", config.max_rto);
+        config.max_retries = int_property("tftp.retries", config.max_retries);
+        config.cache_megabytes = int_property("tftp.cache.size", config.cache_megabytes);
+        config.cache_file_max = int_property("tftp.cache.file.max", config.cache_file_max);
+        config.cache_admit = int_property("tftp.cache.admit", config.cache_admit);
+        config.map_files = bool_property("tftp.mmap", config.map_files);
+        config.metrics_port = int_property("tftp.metrics.port", config.metrics_port);
+        config.metrics_host = System.getProperty("tftp.metrics.host", config.metrics_host).trim();
+        config.pooled_buffers = int_property("tftp.buffers.pooled", config.pooled_buffers);
+        config.listeners = int_property("tftp.listeners", config.listeners);
+        config.listener_receive_buffer = int_property("tftp.listener.rcvbuf", config.listener_receive_buffer);
+        config.max_sessions = int_property("tftp.sessions.max", config.max_sessions);
+        config.max_client_sessions = int_property("tftp.sessions.client.max", config.max_client_sessions);
+        config.admission_wait_ms = int_property("tftp.sessions.wait", config.admission_wait_ms);
+        config.bandwidth_kib = int_property("tftp.bandwidth", config.bandwidth_kib);
+        config.session_bandwidth_kib = int_property("tftp.bandwidth.session", config.session_bandwidth_kib);
+        config.multicast_address = System.getProperty("tftp.multicast.address", config.multicast_address).trim();
+        config.multicast_groups = int_property("tftp.multicast.groups", config.multicast_groups);
+        config.multicast_port = int_property("tftp.multicast.port", config.multicast_port);
+        config.multicast_ttl = int_property("tftp.multicast.ttl", config.multicast_ttl);
+        config.multicast_interface = System.getProperty("tftp.multicast.interface", config.multicast_interface).trim();
+        config.store = System.getProperty("tftp.store", config.store).trim().toLowerCase();
+        config.memory_store_megabytes = int_property("tftp.store.memory.max", config.memory_store_megabytes);
+        config.dedupe = bool_property("tftp.store.dedupe", config.dedupe);
+        config.blob_dir = System.getProperty("tftp.store.blobs", config.blob_dir).trim();
+        config.dedupe_buffer_megabytes = int_property("tftp.store.dedupe.buffer", config.dedupe_buffer_megabytes);
+        config.dedupe_buffer_total_megabytes = int_property("tftp.store.dedupe.buffer.total", config.dedupe_buffer_total_megabytes);
+        config.dedupe_sweep_seconds = int_property("tftp.store.dedupe.sweep", config.dedupe_sweep_seconds);
+        config.root = System.getProperty("tftp.root", config.root).trim();
+        config.path_cache_entries = int_property("tftp.paths.cache", config.path_cache_entries);
+        config.path_cache_ms = int_property("tftp.paths.max_age", config.path_cache_ms);
+        config.timer_tick_ms = int_property("tftp.timers.tick", config.timer_tick_ms);
+        config.timer_slots = int_property("tftp.timers.slots", config.timer_slots);
+        config.engine = System.getProperty("tftp.engine", config.engine).trim().toLowerCase();
+        return config;
+    }
+
+    int listener_count() {
+        return listeners > 0 ? listeners : Runtime.getRuntime().availableProcessors();
+    }
+
+    static boolean bool_property(String name, boolean fallback) {
+        String value = System.getProperty(name);
+        if (value == null) return fallback;
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    // accepts block, complete or a block count
+    static int fsync_property(String name, int fallback) {
+        String value = System.getProperty(name);
+        if (value == null) return fallback;
+        switch (value.trim().toLowerCase()) {
+            case "block": return 1;
+            case "complete": return 0;
+            default: return int_property(name, fallback);
+        }
+    }
+
+    static int int_property(String name, int fallback) {
+        String value = System.getProperty(name);
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid value for %s : %s | Using default %d", name, value, fallback);
+            return fallback;
+        }
+    }
+}
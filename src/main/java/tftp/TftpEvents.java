@@ -0,0 +1,214 @@
+package tftp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.net.InetAddress;
+
+// flight recorder events that tie a recording's threads and I/O to the transfers they serve
+// record with the bundled profile next to the JDK's, e.g.
+//   -XX:StartFlightRecording:settings=default,settings=src/main/resources/tftp.jfc,filename=tftp.jfr
+// a disabled event costs a check of its enabled flag: the helpers return before filling it in, and the JIT drops the
+// allocation of an event that does not escape
+final class TftpEvents {
+    private TftpEvents() {
+    }
+
+    @Name("tftp.RequestReceived")
+    @Label("Request Received")
+    @Category({"TFTP", "Requests"})
+    @Description("An RRQ or WRQ arrived on a listener, including requests repeated for a live session")
+    @StackTrace(false)
+    static final class RequestReceived extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Port")
+        int port;
+
+        @Label("Request")
+        String request;
+
+        @Label("Filename")
+        String filename;
+
+        @Label("Options")
+        String options;
+    }
+
+    @Name("tftp.Session")
+    @Label("Session")
+    @Category({"TFTP", "Sessions"})
+    @Description("A read or write session from admission to its end")
+    @StackTrace(false)
+    static final class Session extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Port")
+        int port;
+
+        @Label("Transfer")
+        String transfer;
+
+        @Label("Filename")
+        String filename;
+
+        @Label("Block Size")
+        @DataAmount
+        int block_size;
+
+        @Label("Window Size")
+        int window_size;
+
+        @Label("Blocks")
+        @Description("Blocks acknowledged by the client (read) or received in order (write)")
+        long blocks;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Outcome")
+        @Description("completed, timed out or aborted")
+        String outcome = "aborted";
+    }
+
+    @Name("tftp.Retransmit")
+    @Label("Retransmit")
+    @Category({"TFTP", "Sessions"})
+    @Description("A data block, oack or ack sent again after a timeout or a repeated packet from the client")
+    @StackTrace(false)
+    static final class Retransmit extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Port")
+        int port;
+
+        @Label("Packet")
+        String packet;
+
+        @Label("Block")
+        long block;
+    }
+
+    @Name("tftp.ErrorSent")
+    @Label("Error Sent")
+    @Category({"TFTP", "Sessions"})
+    @StackTrace(false)
+    static final class ErrorSent extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Port")
+        int port;
+
+        @Label("Code")
+        int code;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("tftp.FileRead")
+    @Label("File Read")
+    @Category({"TFTP", "File I/O"})
+    @Description("Blocks read from disk for a session's read ahead window or to load a file into the packet cache")
+    static final class FileRead extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Offset")
+        @DataAmount
+        long offset;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("tftp.FileWrite")
+    @Label("File Write")
+    @Category({"TFTP", "File I/O"})
+    @Description("A received block written to an upload's temp file by the write behind stage")
+    static final class FileWrite extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Synced")
+        boolean synced;
+    }
+
+    @Name("tftp.FileCommit")
+    @Label("File Commit")
+    @Category({"TFTP", "File I/O"})
+    @Description("Draining, syncing and renaming a completed upload into place")
+    static final class FileCommit extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    static void request_received(InetAddress ip, int port, TftpCodec.Request request) {
+        RequestReceived event = new RequestReceived();
+        if (!event.isEnabled()) return;
+        event.client = ip.getHostAddress();
+        event.port = port;
+        event.request = request.opcode() == TftpCodec.RRQ ? "RRQ" : "WRQ";
+        event.filename = request.filename();
+        event.options = request.options().isEmpty() ? "" : request.options().toString();
+        event.commit();
+    }
+
+    // started when the session is admitted, the session fills in what it learns and ends it once
+    static Session session(String transfer, InetAddress ip, int port, String filename) {
+        Session event = new Session();
+        if (!event.isEnabled()) return event;
+        event.begin();
+        event.transfer = transfer;
+        event.client = ip.getHostAddress();
+        event.port = port;
+        event.filename = filename;
+        return event;
+    }
+
+    // an event created while recording was off was never begun and is dropped
+    static void session_ended(Session event) {
+        if (event.transfer == null) return;
+        event.end();
+        if (event.shouldCommit()) event.commit();
+    }
+
+    static void retransmit(InetAddress ip, int port, String packet, long block) {
+        Retransmit event = new Retransmit();
+        if (!event.isEnabled()) return;
+        event.client = ip.getHostAddress();
+        event.port = port;
+        event.packet = packet;
+        event.block = block;
+        event.commit();
+    }
+
+    static void error_sent(InetAddress ip, int port, int code, String message) {
+        ErrorSent event = new ErrorSent();
+        if (!event.isEnabled()) return;
+        event.client = ip.getHostAddress();
+        event.port = port;
+        event.code = code;
+        event.message = message;
+        event.commit();
+    }
+}
@@ -0,0 +1,359 @@
+package tftp;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// server wide counters and histograms, every recording call is a LongAdder update so sessions never contend on a lock
+// exposed through JMX as tftp:type=Metrics,port=<port> and, when tftp.metrics.port is set, as prometheus text on /metrics
+class TftpMetrics implements TftpMetricsMXBean {
+    //error codes 0 to 7 from RFC 1350 and 8 for option negotiation (RFC 2347)
+    private static final int ERROR_CODES = 9;
+
+    //the local store's parts, null when the server uses another store
+    private final PacketCache packet_cache;
+    private final MappedFiles mapped_files;
+    private final AdmissionControl admission;
+    private final BandwidthScheduler bandwidth;
+    private final MulticastGroups multicast;
+    private final SessionTable session_table;
+    private final PathResolver paths;
+    private final BlobStore blobs;
+
+    private final LongAdder started_reads = new LongAdder();
+    private final LongAdder started_writes = new LongAdder();
+    private final LongAdder active_reads = new LongAdder();
+    private final LongAdder active_writes = new LongAdder();
+    private final LongAdder completed_reads = new LongAdder();
+    private final LongAdder completed_writes = new LongAdder();
+
+    private final LongAdder bytes_sent = new LongAdder();
+    private final LongAdder bytes_received = new LongAdder();
+    private final LongAdder blocks_sent = new LongAdder();
+    private final LongAdder blocks_received = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder[] errors_sent = adders(ERROR_CODES);
+    private final LongAdder[] errors_received = adders(ERROR_CODES);
+
+    //requests taken off each listener socket, and requests dropped because no session could take them
+    private final List<LongAdder> listener_requests = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped_requests = new LongAdder();
+    private final LongAdder rejected_requests = new LongAdder();
+
+    final Histogram ack_rtt = new Histogram("tftp_ack_rtt_microseconds", "Round trip time between a packet and the reply it triggered",
+            50, 100, 250, 500, 1000, 2500, 5000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 5_000_000);
+    final Histogram transfer_duration = new Histogram("tftp_transfer_duration_milliseconds", "Duration of completed transfers",
+            1, 5, 10, 50, 100, 500, 1000, 5000, 10_000, 60_000, 300_000, 3_600_000);
+    final Histogram throughput = new Histogram("tftp_transfer_throughput_kibibytes_per_second", "Average throughput of completed transfers",
+            16, 64, 256, 1024, 4096, 16_384, 65_536, 262_144, 1_048_576);
+
+    private HttpServer http;
+    private int port = -1;
+
+    // built last by the context, reads the parts it reports on
+    TftpMetrics(ServerContext context) {
+        this.packet_cache = context.local == null ? null : context.local.packet_cache;
+        this.mapped_files = context.local == null ? null : context.local.mapped_files;
+        this.admission = context.admission;
+        this.bandwidth = context.bandwidth;
+        this.multicast = context.multicast;
+        this.session_table = context.session_table;
+        this.paths = context.local == null ? null : context.local.paths;
+        this.blobs = context.local == null ? null : context.local.blobs;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    void read_started() {
+        started_reads.increment();
+        active_reads.increment();
+    }
+
+    void read_ended() {
+        active_reads.decrement();
+    }
+
+    void read_completed(long bytes, long started_at) {
+        completed_reads.increment();
+        transfer_completed(bytes, started_at);
+    }
+
+    void write_started() {
+        started_writes.increment();
+        active_writes.increment();
+    }
+
+    void write_ended() {
+        active_writes.decrement();
+    }
+
+    void write_completed(long bytes, long started_at) {
+        completed_writes.increment();
+        transfer_completed(bytes, started_at);
+    }
+
+    private void transfer_completed(long bytes, long started_at) {
+        long nanos = Math.max(1, System.nanoTime() - started_at);
+        transfer_duration.record(nanos / 1_000_000);
+        throughput.record((long) (bytes / 1024.0 / (nanos / 1e9)));
+    }
+
+    void block_sent(int payload_length) {
+        blocks_sent.increment();
+        bytes_sent.add(payload_length);
+    }
+
+    void block_received(int payload_length) {
+        blocks_received.increment();
+        bytes_received.add(payload_length);
+    }
+
+    void retransmit() {
+        retransmits.increment();
+    }
+
+    void timeout() {
+        timeouts.increment();
+    }
+
+    void error_sent(int code) {
+        errors_sent[Math.min(Math.max(code, 0), ERROR_CODES - 1)].increment();
+    }
+
+    void error_received(int code) {
+        errors_received[Math.min(Math.max(code, 0), ERROR_CODES - 1)].increment();
+    }
+
+    // a counter for a new listener socket, labelled with its index
+    LongAdder listener() {
+        LongAdder requests = new LongAdder();
+        listener_requests.add(requests);
+        return requests;
+    }
+
+    void request_dropped() {
+        dropped_requests.increment();
+    }
+
+    // refused by admission control, the client got an error
+    void request_rejected() {
+        rejected_requests.increment();
+    }
+
+    // registers the MXBean and starts the http endpoint once the server knows its port, later calls from other listeners are ignored
+    synchronized void publish(int port, TftpConfig config) {
+        if (this.port >= 0) return;
+        this.port = port;
+        try {
+            ObjectName name = new ObjectName("tftp:type=Metrics,port=" + port);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MXBean | %s", e.getMessage());
+        }
+
+        if (config.metrics_port <= 0) return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(config.metrics_host, config.metrics_port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus_text().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            Log.info("Metrics endpoint: http://%s:%d/metrics", config.metrics_host, http.getAddress().getPort());
+        } catch (IOException e) {
+            Log.warn("Could not start metrics endpoint on %s:%d | %s", config.metrics_host, config.metrics_port, e.getMessage());
+        }
+    }
+
+    // stops the http endpoint and unregisters the MXBean, for a server closed inside a longer running process
+    synchronized void unpublish() {
+        if (http != null) http.stop(0);
+        http = null;
+        if (port < 0) return;
+        try {
+            ObjectName name = new ObjectName("tftp:type=Metrics,port=" + port);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            Log.warn("Could not unregister metrics MXBean | %s", e.getMessage());
+        }
+        port = -1;
+    }
+
+    String prometheus_text() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "tftp_active_sessions", "Sessions currently transferring", "direction=\"read\"", active_reads.sum());
+        sample(out, "tftp_active_sessions", "direction=\"write\"", active_writes.sum());
+        counter(out, "tftp_sessions_started_total", "Sessions accepted", "direction=\"read\"", started_reads.sum());
+        sample(out, "tftp_sessions_started_total", "direction=\"write\"", started_writes.sum());
+        counter(out, "tftp_sessions_completed_total", "Sessions that transferred the whole file", "direction=\"read\"", completed_reads.sum());
+        sample(out, "tftp_sessions_completed_total", "direction=\"write\"", completed_writes.sum());
+        counter(out, "tftp_bytes_total", "Payload bytes in DATA packets", "direction=\"sent\"", bytes_sent.sum());
+        sample(out, "tftp_bytes_total", "direction=\"received\"", bytes_received.sum());
+        counter(out, "tftp_blocks_total", "DATA packets, retransmissions included", "direction=\"sent\"", blocks_sent.sum());
+        sample(out, "tftp_blocks_total", "direction=\"received\"", blocks_received.sum());
+        out.append("# HELP tftp_listener_requests_total Requests received by each listener socket\n# TYPE tftp_listener_requests_total counter\n");
+        for (int i = 0; i < listener_requests.size(); i++) sample(out, "tftp_listener_requests_total", "listener=\"" + i + "\"", listener_requests.get(i).sum());
+        counter(out, "tftp_requests_dropped_total", "Requests dropped because the session executor was saturated", null, dropped_requests.sum());
+        counter(out, "tftp_requests_rejected_total", "Requests refused with an error because a session cap was reached", null, rejected_requests.sum());
+        counter(out, "tftp_requests_duplicate_total", "Repeated requests for a live session, no second session was started", "action=\"absorbed\"", session_table.absorbed.sum());
+        sample(out, "tftp_requests_duplicate_total", "action=\"resent\"", session_table.resent.sum());
+        gauge(out, "tftp_session_table_entries", "Live sessions in the blocking engine's session table", null, session_table.size());
+        if (paths != null) {
+            counter(out, "tftp_path_cache_requests_total", "Request name lookups by path cache result", "result=\"hit\"", paths.hits.sum());
+            sample(out, "tftp_path_cache_requests_total", "result=\"miss\"", paths.misses.sum());
+            counter(out, "tftp_path_cache_invalidations_total", "Path cache entries dropped after a change on disk or a completed write", null, paths.invalidations.sum());
+            gauge(out, "tftp_path_cache_entries", "Paths with cached metadata", null, paths.size());
+            counter(out, "tftp_paths_refused_total", "Request names refused for leading out of the served directory", null, paths.refused.sum());
+        }
+        if (blobs != null) {
+            counter(out, "tftp_dedupe_uploads_total", "Committed uploads by whether their content was already stored", "content=\"new\"", blobs.new_uploads.sum());
+            sample(out, "tftp_dedupe_uploads_total", "content=\"duplicate\"", blobs.duplicate_uploads.sum());
+            counter(out, "tftp_dedupe_bytes_saved_total", "Uploaded bytes not written because the blob already existed", null, blobs.bytes_saved.sum());
+            gauge(out, "tftp_dedupe_blobs", "Blobs in the content addressed store", null, blobs.size());
+            counter(out, "tftp_dedupe_blobs_removed_total", "Blobs removed once no name linked to them", null, blobs.orphans_removed.sum());
+            counter(out, "tftp_dedupe_early_spills_total", "Uploads staged on disk early because the shared heap budget was spent", null, blobs.early_spills.sum());
+        }
+        gauge(out, "tftp_admitted_sessions", "Sessions holding an admission slot", null, admission.active());
+        gauge(out, "tftp_admission_waiting", "Requests waiting for an admission slot", null, admission.waiting());
+        gauge(out, "tftp_bandwidth_share_bytes_per_second", "Current rate of each sending read session, 0 when unlimited", null, bandwidth.current_share());
+        gauge(out, "tftp_multicast_groups", "Multicast transfers in progress", null, multicast.active_groups());
+        counter(out, "tftp_multicast_clients_total", "Clients served through a multicast group", "event=\"joined\"", multicast.clients_joined.sum());
+        sample(out, "tftp_multicast_clients_total", "event=\"completed\"", multicast.clients_completed.sum());
+        long[] socket_stats = socket_stats(port);
+        if (socket_stats != null) {
+            counter(out, "tftp_listener_socket_drops_total", "Datagrams the kernel dropped on the request port, all listeners", null, socket_stats[0]);
+            gauge(out, "tftp_listener_socket_queued_bytes", "Bytes waiting in the request port's receive queues", null, socket_stats[1]);
+        }
+        counter(out, "tftp_retransmits_total", "Packets sent again after a timeout or a duplicate", null, retransmits.sum());
+        counter(out, "tftp_timeouts_total", "Retransmission timer expirations", null, timeouts.sum());
+        out.append("# HELP tftp_error_packets_total ERROR packets by error code\n# TYPE tftp_error_packets_total counter\n");
+        for (int code = 0; code < ERROR_CODES; code++) {
+            sample(out, "tftp_error_packets_total", "direction=\"sent\",code=\"" + code + "\"", errors_sent[code].sum());
+            sample(out, "tftp_error_packets_total", "direction=\"received\",code=\"" + code + "\"", errors_received[code].sum());
+        }
+        ack_rtt.write_prometheus(out);
+        transfer_duration.write_prometheus(out);
+        throughput.write_prometheus(out);
+        if (packet_cache != null) {
+            counter(out, "tftp_packet_cache_requests_total", "Packet cache lookups", "result=\"hit\"", packet_cache.hits.sum());
+            sample(out, "tftp_packet_cache_requests_total", "result=\"miss\"", packet_cache.misses.sum());
+            counter(out, "tftp_packet_cache_evictions_total", "Entries evicted to stay within the size limit", null, packet_cache.evictions.sum());
+            counter(out, "tftp_packet_cache_invalidations_total", "Entries dropped because the file changed", null, packet_cache.invalidations.sum());
+            gauge(out, "tftp_packet_cache_bytes", "Bytes held by the packet cache", null, packet_cache.used_bytes());
+            counter(out, "tftp_mapped_file_opens_total", "Read sessions served from a file mapping", "mapping=\"shared\"", mapped_files.shared_opens.sum());
+            sample(out, "tftp_mapped_file_opens_total", "mapping=\"new\"", mapped_files.mappings_created.sum());
+            gauge(out, "tftp_mapped_file_bytes", "Bytes mapped for sessions that are still reading", null, mapped_files.mapped_bytes());
+        }
+        counter(out, "tftp_log_records_dropped_total", "Log records dropped because the log ring was full", null, Log.dropped.sum());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, String labels, long value) {
+        header(out, name, help, "counter");
+        sample(out, name, labels, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, long value) {
+        header(out, name, help, "gauge");
+        sample(out, name, labels, value);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    @Override public long getActiveReadSessions() { return active_reads.sum(); }
+    @Override public long getActiveWriteSessions() { return active_writes.sum(); }
+    @Override public long getCompletedReads() { return completed_reads.sum(); }
+    @Override public long getCompletedWrites() { return completed_writes.sum(); }
+    @Override public long getFailedSessions() {
+        long started = started_reads.sum() + started_writes.sum();
+        return Math.max(0, started - completed_reads.sum() - completed_writes.sum() - active_reads.sum() - active_writes.sum());
+    }
+    @Override public long getBytesSent() { return bytes_sent.sum(); }
+    @Override public long getBytesReceived() { return bytes_received.sum(); }
+    @Override public long getBlocksSent() { return blocks_sent.sum(); }
+    @Override public long getBlocksReceived() { return blocks_received.sum(); }
+    @Override public long getRetransmits() { return retransmits.sum(); }
+    @Override public long getTimeouts() { return timeouts.sum(); }
+    @Override public long getErrorPacketsSent() { return total(errors_sent); }
+    @Override public long getErrorPacketsReceived() { return total(errors_received); }
+    @Override public double getAckRttMeanMicros() { return ack_rtt.mean(); }
+    @Override public long getAckRttP50Micros() { return ack_rtt.quantile(0.5); }
+    @Override public long getAckRttP99Micros() { return ack_rtt.quantile(0.99); }
+    @Override public double getTransferDurationMeanMillis() { return transfer_duration.mean(); }
+    @Override public long getTransferDurationP99Millis() { return transfer_duration.quantile(0.99); }
+    @Override public double getThroughputMeanKibPerSecond() { return throughput.mean(); }
+    @Override public long getPacketCacheHits() { return packet_cache == null ? 0 : packet_cache.hits.sum(); }
+    @Override public long getPacketCacheMisses() { return packet_cache == null ? 0 : packet_cache.misses.sum(); }
+    @Override public long getPacketCacheBytes() { return packet_cache == null ? 0 : packet_cache.used_bytes(); }
+    @Override public long getRequestsDropped() { return dropped_requests.sum(); }
+    @Override public long getRequestsRejected() { return rejected_requests.sum(); }
+    @Override public long getRequestsDuplicate() { return session_table.absorbed.sum() + session_table.resent.sum(); }
+    @Override public long getPathCacheHits() { return paths == null ? 0 : paths.hits.sum(); }
+    @Override public long getPathCacheMisses() { return paths == null ? 0 : paths.misses.sum(); }
+    @Override public long getPathsRefused() { return paths == null ? 0 : paths.refused.sum(); }
+    @Override public long getDedupeBytesSaved() { return blobs == null ? 0 : blobs.bytes_saved.sum(); }
+    @Override public long getListenerSocketDrops() {
+        long[] socket_stats = socket_stats(port);
+        return socket_stats == null ? -1 : socket_stats[0];
+    }
+
+    // kernel drop count and queued bytes summed over every udp socket bound to port, from /proc/net/udp{,6}
+    // null where procfs is not available
+    static long[] socket_stats(int port) {
+        if (port < 0) return null;
+        long[] totals = null;
+        String local_port = String.format(":%04X", port);
+        for (String table : new String[]{"/proc/net/udp", "/proc/net/udp6"}) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Path.of(table));
+            } catch (IOException e) {
+                continue;
+            }
+            if (totals == null) totals = new long[2];
+            // sl local_address rem_address st tx_queue:rx_queue tr tm->when retrnsmt uid timeout inode ref pointer drops
+            for (int i = 1; i < lines.size(); i++) {
+                String[] fields = lines.get(i).trim().split("\\s+");
+                if (fields.length < 13 || !fields[1].endsWith(local_port)) continue;
+                totals[0] += Long.parseLong(fields[fields.length - 1]);
+                totals[1] += Long.parseLong(fields[4].substring(fields[4].indexOf(':') + 1), 16);
+            }
+        }
+        return totals;
+    }
+
+    private static long total(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) total += adder.sum();
+        return total;
+    }
+}
@@ -0,0 +1,66 @@
+package tftp;
+
+// management view of TftpMetrics, registered as tftp:type=Metrics,port=<port>
+public interface TftpMetricsMXBean {
+    long getActiveReadSessions();
+
+    long getActiveWriteSessions();
+
+    long getCompletedReads();
+
+    long getCompletedWrites();
+
+    long getFailedSessions();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getBlocksSent();
+
+    long getBlocksReceived();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getErrorPacketsSent();
+
+    long getErrorPacketsReceived();
+
+    double getAckRttMeanMicros();
+
+    long getAckRttP50Micros();
+
+    long getAckRttP99Micros();
+
+    double getTransferDurationMeanMillis();
+
+    long getTransferDurationP99Millis();
+
+    double getThroughputMeanKibPerSecond();
+
+    long getPacketCacheHits();
+
+    long getPacketCacheMisses();
+
+    long getPacketCacheBytes();
+
+    long getRequestsDropped();
+
+    long getRequestsRejected();
+
+    long getRequestsDuplicate();
+
+    long getPathCacheHits();
+
+    long getPathCacheMisses();
+
+    long getPathsRefused();
+
+    // 0 unless the local store deduplicates uploads
+    long getDedupeBytesSaved();
+
+    // -1 where /proc/net/udp is not available
+    long getListenerSocketDrops();
+}
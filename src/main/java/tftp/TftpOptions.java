@@ -0,0 +1,132 @@
+package tftp;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Inet6Address;
+import java.net.NetworkInterface;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// RFC 2347 option extension, holds the values agreed for one session
+class TftpOptions {
+    static final int DEFAULT_BLOCK_SIZE = 512;
+    static final int MIN_BLOCK_SIZE = 8;
+    static final int MAX_BLOCK_SIZE = 65464;
+
+    int block_size = DEFAULT_BLOCK_SIZE;
+
+    // RFC 7440, number of data blocks sent before waiting for an ack
+    int window_size = 1;
+
+    // RFC 2349, retransmission interval requested by the client, 0 when not requested
+    int timeout_seconds = 0;
+
+    // options acknowledged back to the client in the OACK (see TftpCodec.put_oack), empty means a plain transfer
+    final Map<String, String> accepted = new LinkedHashMap<>();
+
+    //interfaces rarely change their MTU nor routes their interface: the limit is cached per client address and the
+    //MTU per local address; the client entries are dropped together once there are too many
+    private static final long MTU_CACHE_NANOS = 30_000_000_000L;
+    private static final int MAX_PATH_ENTRIES = 4096;
+    private static final ConcurrentHashMap<InetAddress, Cached> path_limits = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<InetAddress, Cached> interface_mtus = new ConcurrentHashMap<>();
+
+    static final LongAdder route_lookups = new LongAdder();
+
+    static TftpOptions negotiate(Map<String, String> requested, TftpConfig config, InetAddress ip) {
+        TftpOptions options = new TftpOptions();
+
+        String blksize = requested.get("blksize");
+        if (blksize != null) {
+            int value = parse_int(blksize);
+            if (value >= MIN_BLOCK_SIZE) {
+                int limit = Math.min(MAX_BLOCK_SIZE, config.max_block_size);
+                if (config.block_size_mtu) limit = Math.min(limit, path_block_limit(ip));
+                options.block_size = Math.max(MIN_BLOCK_SIZE, Math.min(value, limit));
+                options.accepted.put("blksize", Integer.toString(options.block_size));
+            }
+        }
+
+        String windowsize = requested.get("windowsize");
+        if (windowsize != null) {
+            int value = parse_int(windowsize);
+            if (value >= 1 && value <= 65535) {
+                options.window_size = Math.max(1, Math.min(value, config.max_window_size));
+                options.accepted.put("windowsize", Integer.toString(options.window_size));
+            }
+        }
+
+        String timeout = requested.get("timeout");
+        if (timeout != null) {
+            int value = parse_int(timeout);
+            if (value >= 1 && value <= 255) {
+                options.timeout_seconds = value;
+                options.accepted.put("timeout", Integer.toString(value));
+            }
+        }
+
+        return options;
+    }
+
+    boolean has_oack() {
+        return !accepted.isEmpty();
+    }
+
+    // largest block that fits in one datagram on the interface that routes to ip
+    // cached per client for MTU_CACHE_NANOS, so a repeat request neither opens a probe socket for the route nor
+    // enumerates the interfaces (the nio engine negotiates on its selector thread)
+    static int path_block_limit(InetAddress ip) {
+        long now = System.nanoTime();
+        Cached cached = path_limits.get(ip);
+        if (cached != null && now - cached.expires_at < 0) return cached.value;
+        int limit = lookup_block_limit(ip);
+        if (path_limits.size() >= MAX_PATH_ENTRIES) path_limits.clear();
+        path_limits.put(ip, new Cached(limit, now + MTU_CACHE_NANOS));
+        return limit;
+    }
+
+    private static int lookup_block_limit(InetAddress ip) {
+        route_lookups.increment();
+        InetAddress local;
+        try (DatagramSocket probe = new DatagramSocket()) {
+            //connecting a udp socket only selects the route, nothing is sent
+            probe.connect(ip, 9);
+            local = probe.getLocalAddress();
+        } catch (Exception e) {
+            return MAX_BLOCK_SIZE;
+        }
+        int mtu = interface_mtu(local);
+        if (mtu <= 0) return MAX_BLOCK_SIZE;
+        int ip_header = (ip instanceof Inet6Address) ? 40 : 20;
+        return Math.max(MIN_BLOCK_SIZE, mtu - ip_header - 8 - 4);
+    }
+
+    // MTU of the interface holding the local address, -1 when unknown; failed lookups are cached like the others
+    static int interface_mtu(InetAddress local) {
+        long now = System.nanoTime();
+        Cached cached = interface_mtus.get(local);
+        if (cached != null && now - cached.expires_at < 0) return cached.value;
+        int mtu;
+        try {
+            NetworkInterface network_interface = NetworkInterface.getByInetAddress(local);
+            mtu = network_interface == null ? -1 : network_interface.getMTU();
+        } catch (Exception e) {
+            mtu = -1;
+        }
+        interface_mtus.put(local, new Cached(mtu, now + MTU_CACHE_NANOS));
+        return mtu;
+    }
+
+    private record Cached(int value, long expires_at) {
+    }
+
+    private static int parse_int(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
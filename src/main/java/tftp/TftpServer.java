@@ -0,0 +1,401 @@
+package tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// a server that can be embedded in another program: an engine, its listeners and the file store they serve
+//   TftpServer server = TftpServer.builder().port(6969).store(new MemoryFileStore()).build().start();
+//   ...
+//   server.close();
+// unset settings keep the defaults of TftpConfig, system properties are only read when asked (system_properties)
+// build binds the port, so port() is known before the server runs; close stops the engine, unpublishes the metrics
+// and closes the store if the builder opened it, a store passed in stays open for its owner
+public final class TftpServer implements Closeable {
+    private final ServerContext context;
+    private final boolean owns_store;
+    //one of the two, by engine
+    private final UdpServer blocking;
+    private final List<NioEngine> loops;
+    private final InetSocketAddress address;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Thread thread;
+    private boolean started = false;
+    private boolean closed = false;
+
+    private TftpServer(ServerContext context, boolean owns_store, int port) throws IOException {
+        this.context = context;
+        this.owns_store = owns_store;
+        TftpConfig config = context.config;
+        if (config.engine.equals("nio")) {
+            //one loop per listener, later loops join the first one's port
+            this.blocking = null;
+            this.loops = new ArrayList<>();
+            try {
+                loops.add(new NioEngine(port, context));
+                this.address = loops.get(0).local_address();
+                for (int i = 1; i < config.listener_count(); i++) loops.add(new NioEngine(address.getPort(), context));
+            } catch (IOException | RuntimeException e) {
+                for (NioEngine loop : loops) loop.close();
+                throw e;
+            }
+        } else {
+            this.blocking = new UdpServer(port, context);
+            this.loops = List.of();
+            this.address = blocking.local_address();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    public int port() {
+        return address.getPort();
+    }
+
+    // serves on the calling thread until close
+    public void run() {
+        lock.lock();
+        try {
+            check_startable();
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+        serve();
+    }
+
+    // serves on a background thread and returns at once
+    public TftpServer start() {
+        lock.lock();
+        try {
+            check_startable();
+            started = true;
+            thread = Thread.ofPlatform().name("tftp-server-" + port()).start(this::serve);
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void check_startable() {
+        if (closed) throw new IllegalStateException("Server closed");
+        if (started) throw new IllegalStateException("Server already started");
+    }
+
+    private void serve() {
+        if (blocking != null) {
+            blocking.start();
+            return;
+        }
+        TftpConfig config = context.config;
+        Log.info("Working Directory: %s", System.getProperty("user.dir"));
+        Log.info("Engine: nio event loop | Listeners: %d | Receive buffer: %d bytes | Timing wheel: %d slots of %d ms",
+                loops.size(), receive_buffer_size(), config.timer_slots, config.timer_tick_ms);
+        Log.info("File store: %s", context.store.describe());
+        Log.info("Admission: %s | Bandwidth: %s", context.admission.describe(), context.bandwidth.describe());
+        for (int i = 1; i < loops.size(); i++) Thread.ofPlatform().name("listener-" + i).start(loops.get(i)::start);
+        loops.get(0).start();
+    }
+
+    // stops accepting requests and waits for the engine to stop, blocking sessions in flight finish on their own
+    @Override
+    public void close() throws IOException {
+        Thread running;
+        boolean was_started;
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            running = thread;
+            was_started = started;
+        } finally {
+            lock.unlock();
+        }
+        if (blocking != null) blocking.stop();
+        //a loop that never ran closes its channel here, a running one on its own thread
+        for (NioEngine loop : loops) {
+            if (was_started) loop.stop();
+            else loop.close();
+        }
+        if (running != null && running != Thread.currentThread()) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        context.metrics.unpublish();
+        if (owns_store) context.store.close();
+    }
+
+    private int receive_buffer_size() {
+        try {
+            return loops.get(0).receive_buffer_size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public static final class Builder {
+        private TftpConfig config = new TftpConfig();
+        private FileStore store;
+        private int port = 0;
+
+        private Builder() {
+        }
+
+        // every setting at once, e.g. TftpConfig.from_system_properties(); later calls change the same config
+        public Builder config(TftpConfig config) {
+            this.config = config;
+            return this;
+        }
+
+        // starts over from the -Dtftp.* system properties, as the command line does; later calls change them
+        public Builder system_properties() {
+            return config(TftpConfig.from_system_properties());
+        }
+
+        // 0 picks a free port
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        // blocking (a thread per session) or nio (one event loop per listener)
+        public Builder engine(String engine) {
+            if (!engine.equals("blocking") && !engine.equals("nio")) throw new IllegalArgumentException("Unknown engine " + engine + ", expected blocking or nio");
+            config.engine = engine;
+            return this;
+        }
+
+        // directory served by the default local store, ignored when a store is given
+        public Builder root(String root) {
+            config.root = root;
+            return this;
+        }
+
+        public Builder store(FileStore store) {
+            this.store = store;
+            return this;
+        }
+
+        // the store the builder opens at root when none is given: local, memory or zip
+        public Builder store_type(String type) {
+            if (!type.equals("local") && !type.equals("memory") && !type.equals("zip")) throw new IllegalArgumentException("Unknown file store " + type + ", expected local, memory or zip");
+            config.store = type;
+            return this;
+        }
+
+        // cap of the memory store in megabytes, 0 is unlimited
+        public Builder memory_store_megabytes(int megabytes) {
+            config.memory_store_megabytes = megabytes;
+            return this;
+        }
+
+        // local store only: identical uploads share one content addressed blob, see BlobStore
+        public Builder dedupe(boolean dedupe) {
+            config.dedupe = dedupe;
+            return this;
+        }
+
+        // empty puts the blobs in .blobs under the root
+        public Builder blob_dir(String blob_dir) {
+            config.blob_dir = blob_dir;
+            return this;
+        }
+
+        // per upload and for all uploads together, an upload that finds the total spent is staged on disk
+        public Builder dedupe_buffer_megabytes(int per_upload, int total) {
+            config.dedupe_buffer_megabytes = per_upload;
+            config.dedupe_buffer_total_megabytes = total;
+            return this;
+        }
+
+        // how often blobs no name links to any more are removed, 0 only at startup
+        public Builder dedupe_sweep_seconds(int seconds) {
+            config.dedupe_sweep_seconds = seconds;
+            return this;
+        }
+
+        // largest blksize a client may negotiate, optionally also clamped to the interface MTU
+        public Builder max_block_size(int max_block_size) {
+            if (max_block_size < TftpOptions.MIN_BLOCK_SIZE || max_block_size > TftpOptions.MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException("Block size " + max_block_size + " outside " + TftpOptions.MIN_BLOCK_SIZE + ".." + TftpOptions.MAX_BLOCK_SIZE);
+            }
+            config.max_block_size = max_block_size;
+            return this;
+        }
+
+        public Builder block_size_mtu(boolean block_size_mtu) {
+            config.block_size_mtu = block_size_mtu;
+            return this;
+        }
+
+        // largest windowsize a client may negotiate
+        public Builder max_window_size(int max_window_size) {
+            if (max_window_size < 1 || max_window_size > 65535) throw new IllegalArgumentException("Window size " + max_window_size + " outside 1..65535");
+            config.max_window_size = max_window_size;
+            return this;
+        }
+
+        // retransmission timeout in milliseconds: the first estimate and the bounds it adapts between
+        public Builder rto(int initial_ms, int min_ms, int max_ms) {
+            if (min_ms < 1 || min_ms > initial_ms || initial_ms > max_ms) throw new IllegalArgumentException("Expected 1 <= min <= initial <= max, got " + min_ms + ", " + initial_ms + ", " + max_ms);
+            config.initial_rto = initial_ms;
+            config.min_rto = min_ms;
+            config.max_rto = max_ms;
+            return this;
+        }
+
+        // retransmissions of the same packet before a session gives up
+        public Builder max_retries(int max_retries) {
+            config.max_retries = max_retries;
+            return this;
+        }
+
+        public Builder read_ahead_blocks(int blocks) {
+            config.read_ahead_blocks = blocks;
+            return this;
+        }
+
+        public Builder write_queue_blocks(int blocks) {
+            config.write_queue_blocks = blocks;
+            return this;
+        }
+
+        // 1 syncs every block, N every N blocks, 0 only once the upload completes
+        public Builder fsync_every(int blocks) {
+            config.fsync_every = blocks;
+            return this;
+        }
+
+        // blocking engine: 0 runs sessions on virtual threads, N on a pool of N platform threads with queue waiting slots
+        public Builder session_threads(int threads, int queue) {
+            config.session_threads = threads;
+            config.session_queue = queue;
+            return this;
+        }
+
+        public Builder listeners(int listeners) {
+            config.listeners = listeners;
+            return this;
+        }
+
+        // SO_RCVBUF of each listener, 0 keeps the system default
+        public Builder listener_receive_buffer(int bytes) {
+            config.listener_receive_buffer = bytes;
+            return this;
+        }
+
+        // 0 is unlimited
+        public Builder max_sessions(int max_sessions) {
+            config.max_sessions = max_sessions;
+            return this;
+        }
+
+        // 0 is unlimited
+        public Builder max_client_sessions(int max_client_sessions) {
+            config.max_client_sessions = max_client_sessions;
+            return this;
+        }
+
+        // how long a request over the caps waits for a slot, 0 refuses it at once
+        public Builder admission_wait_ms(int admission_wait_ms) {
+            config.admission_wait_ms = admission_wait_ms;
+            return this;
+        }
+
+        // total send rate of read sessions in KiB/s, 0 is unlimited
+        public Builder bandwidth_kib(int bandwidth_kib) {
+            config.bandwidth_kib = bandwidth_kib;
+            return this;
+        }
+
+        // send rate cap of each read session in KiB/s, 0 is unlimited
+        public Builder session_bandwidth_kib(int session_bandwidth_kib) {
+            config.session_bandwidth_kib = session_bandwidth_kib;
+            return this;
+        }
+
+        // RFC 2090 groups from groups consecutive addresses starting at address, blocking engine only (build refuses nio)
+        // an empty interface follows the routing table, lo keeps the groups on one host as MulticastGroupsTest does
+        public Builder multicast(String address, int groups, int port, int ttl, String network_interface) {
+            config.multicast_address = address;
+            config.multicast_groups = groups;
+            config.multicast_port = port;
+            config.multicast_ttl = ttl;
+            config.multicast_interface = network_interface;
+            return this;
+        }
+
+        // packet cache size and largest cached file in megabytes, a file is cached after admit_after requests
+        public Builder packet_cache(int megabytes, int file_max_megabytes, int admit_after) {
+            config.cache_megabytes = megabytes;
+            config.cache_file_max = file_max_megabytes;
+            config.cache_admit = admit_after;
+            return this;
+        }
+
+        // shared read only mappings for files outside the packet cache
+        public Builder map_files(boolean map_files) {
+            config.map_files = map_files;
+            return this;
+        }
+
+        // cached lookups of request names, 0 entries disables the cache
+        public Builder path_cache(int entries, int max_age_ms) {
+            config.path_cache_entries = entries;
+            config.path_cache_ms = max_age_ms;
+            return this;
+        }
+
+        // nio engine: the timing wheel holding session deadlines
+        public Builder timer_wheel(int tick_ms, int slots) {
+            config.timer_tick_ms = tick_ms;
+            config.timer_slots = slots;
+            return this;
+        }
+
+        public Builder pooled_buffers(int per_size_class) {
+            config.pooled_buffers = per_size_class;
+            return this;
+        }
+
+        // port of the Prometheus endpoint, 0 leaves it off
+        public Builder metrics_port(int metrics_port) {
+            config.metrics_port = metrics_port;
+            return this;
+        }
+
+        public Builder metrics_host(String metrics_host) {
+            config.metrics_host = metrics_host;
+            return this;
+        }
+
+        // binds the listeners, the server then waits for run or start
+        public TftpServer build() throws IOException {
+            //RFC 2090 groups run on session threads, the nio engine would quietly answer every request unicast
+            if (config.engine.equals("nio") && !config.multicast_address.isEmpty() && config.multicast_groups > 0) {
+                throw new IllegalArgumentException("Multicast reads need the blocking engine, engine is nio");
+            }
+            boolean owns_store = store == null;
+            FileStore files = owns_store ? ServerContext.open_store(config) : store;
+            try {
+                return new TftpServer(new ServerContext(config, files), owns_store, port);
+            } catch (IOException | RuntimeException e) {
+                if (owns_store) files.close();
+                throw e;
+            }
+        }
+    }
+}
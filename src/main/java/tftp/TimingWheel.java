@@ -0,0 +1,103 @@
+package tftp;
+
+// retransmission, give up and reap deadlines of the nio engine's sessions, driven by the event loop that owns them
+// a hashed wheel of slots tick_ms wide: scheduling and cancelling link or unlink a node in its slot's list, so both
+// are O(1) whatever the number of sessions, and a pending deadline costs the one node its session reuses
+// deadlines further out than one turn of the wheel stay in their slot for the remaining rounds
+// a timeout never fires early and at most one tick late; not thread safe, only the loop thread touches it
+final class TimingWheel {
+    // one per session, rescheduling moves it to another slot
+    static final class Timeout {
+        private final Runnable action;
+        private Timeout previous;
+        private Timeout next;
+        private long rounds;
+        private int slot = -1;
+
+        Timeout(Runnable action) {
+            this.action = action;
+        }
+
+        boolean pending() {
+            return slot >= 0;
+        }
+    }
+
+    private final Timeout[] slots;
+    private final int mask;
+    private final long tick_ms;
+
+    //the next tick to expire, ticks count tick_ms steps of the loop's millisecond clock
+    private long tick;
+    private int pending = 0;
+
+    TimingWheel(long tick_ms, int slot_count, long now) {
+        int size = 1;
+        while (size < slot_count) size <<= 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.tick_ms = Math.max(1, tick_ms);
+        this.tick = now / this.tick_ms;
+    }
+
+    // replaces the timeout's earlier deadline, if it had one
+    void schedule(Timeout timeout, long now, long delay) {
+        cancel(timeout);
+        //an idle wheel is not advanced, it catches up here instead of walking the ticks it slept through
+        if (pending == 0) tick = Math.max(tick, now / tick_ms);
+        long due = Math.max(tick, (now + Math.max(0, delay) + tick_ms - 1) / tick_ms);
+        timeout.rounds = (due - tick) / slots.length;
+        timeout.slot = (int) (due & mask);
+        timeout.previous = null;
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        slots[timeout.slot] = timeout;
+        pending++;
+    }
+
+    void cancel(Timeout timeout) {
+        if (timeout.slot < 0) return;
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        pending--;
+    }
+
+    // runs the actions of every tick up to now; an action may schedule or cancel its own timeout, not another's
+    void advance(long now) {
+        long target = now / tick_ms;
+        while (tick <= target && pending > 0) {
+            int index = (int) (tick & mask);
+            //moved on first, a timeout rescheduled by its action lands in a later tick, not behind the cursor
+            tick++;
+            Timeout timeout = slots[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    cancel(timeout);
+                    timeout.action.run();
+                }
+                timeout = next;
+            }
+        }
+        if (pending == 0) tick = Math.max(tick, target + 1);
+    }
+
+    // milliseconds until the next occupied slot comes up, -1 when nothing is pending and 0 when it is due
+    long next_delay(long now) {
+        if (pending == 0) return -1;
+        for (int offset = 0; offset < slots.length; offset++) {
+            if (slots[(int) ((tick + offset) & mask)] != null) return Math.max(0, (tick + offset) * tick_ms - now);
+        }
+        return 0;
+    }
+
+    int size() {
+        return pending;
+    }
+}
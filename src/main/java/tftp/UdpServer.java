@@ -0,0 +1,1024 @@
+package tftp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+public class UdpServer {
+    // first listener, the others share its port
+    private final DatagramSocket socket;
+    private final List<DatagramSocket> listeners;
+    private final TftpConfig config;
+    private final ServerContext context;
+    private final ExecutorService sessions;
+    // settings come from system properties, the engine from -Dtftp.engine (blocking or nio)
+    public static void main(String[] args) throws Exception {
+        int port = 0;
+        if (args.length == 0) Log.info("Note: port will be randomized because it wasn't specified");
+        else port = Integer.parseInt(args[0]);
+
+        TftpServer server;
+        try {
+            server = TftpServer.builder().system_properties().port(port).build();
+        } catch (java.net.BindException e) {
+            //this statement is let know that to use this port requires higher privilege
+            if ("Permission denied".equals(e.getMessage()) && port < 1024) {
+                Log.error("%s\n You do not have permission to bind to this port: To run, elevate your privilege, choose another port, or randomize it by not providing the argument.", e.getMessage());
+                System.exit(1);
+            }
+            throw e;
+        }
+        Log.info("Accepting connections on %s : %d", server.address().getAddress().getHostAddress(), server.port());
+        server.run();
+    }
+
+
+    public UdpServer(int port) throws IllegalArgumentException, SecurityException {
+        this(port, TftpConfig.from_system_properties());
+    }
+
+    public UdpServer(int port, TftpConfig config) throws IllegalArgumentException, SecurityException {
+        this.config = config;
+        this.context = new ServerContext(config);
+        this.sessions = create_session_executor(config);
+        try {
+            this.listeners = open_listeners(port, config);
+            this.socket = listeners.get(0);
+        } catch (java.net.BindException e) {
+            String msg = e.getMessage();
+            if (msg.equals("Permission denied")) {
+                //this statement is let know that to use this port requires higher privilege
+                // error just says
+                if (port < 1024) {
+                    Log.error("%s\n You do not have permission to bind to this port: To run, elevate your privilege, choose another port, or randomize it by not providing the argument.", msg);
+                    System.exit(1);
+                }
+            }
+            throw new RuntimeException(e);
+        } catch (java.net.SocketException socket_ex) {
+            throw new RuntimeException(socket_ex);
+        }
+    }
+
+    public UdpServer()  throws SocketException, IllegalArgumentException, SecurityException {
+        this(TftpConfig.from_system_properties());
+    }
+
+    public UdpServer(TftpConfig config)  throws SocketException, IllegalArgumentException, SecurityException {
+        this(0, new ServerContext(config));
+    }
+
+    UdpServer(int port, ServerContext context) throws SocketException {
+        this.config = context.config;
+        this.context = context;
+        this.sessions = create_session_executor(config);
+        this.listeners = open_listeners(port, config);
+        this.socket = listeners.get(0);
+    }
+
+    // count sockets on the same port, SO_REUSEPORT lets the kernel hash each client onto one of them
+    // port 0 picks a free port for the first socket and binds the rest to it
+    static List<DatagramSocket> open_listeners(int port, TftpConfig config) throws SocketException {
+        int count = config.listener_count();
+        List<DatagramSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramSocket listener = new DatagramSocket(null);
+                sockets.add(listener);
+                if (count > 1 && i == 0 && !listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    Log.warn("SO_REUSEPORT is not supported on this platform | Using a single listener");
+                    count = 1;
+                }
+                if (count > 1) listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                if (config.listener_receive_buffer > 0) listener.setReceiveBufferSize(config.listener_receive_buffer);
+                listener.bind(new InetSocketAddress(i == 0 ? port : sockets.get(0).getLocalPort()));
+            }
+        } catch (SocketException | RuntimeException e) {
+            for (DatagramSocket listener : sockets) listener.close();
+            throw e;
+        } catch (IOException e) {
+            for (DatagramSocket listener : sockets) listener.close();
+            throw new SocketException(e.getMessage());
+        }
+        return sockets;
+    }
+
+    public void start() {
+        Log.info("Working Directory: %s", System.getProperty("user.dir"));
+        Log.info("Session executor: %s", describe_session_executor(config));
+        Log.info("File store: %s", context.store.describe());
+        Log.info("Admission: %s | Bandwidth: %s", context.admission.describe(), context.bandwidth.describe());
+        Log.info("Multicast: %s", context.multicast.describe());
+        Log.info("Listeners: %d | Receive buffer: %d bytes", listeners.size(), receive_buffer_size(socket));
+        context.metrics.publish(socket.getLocalPort(), config);
+
+        for (int i = 1; i < listeners.size(); i++) {
+            DatagramSocket listener = listeners.get(i);
+            Thread.ofPlatform().name("listener-" + i).start(() -> listen(listener));
+        }
+        listen(socket);
+    }
+
+    InetSocketAddress local_address() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    // closes the listeners, which ends start; sessions already running finish their transfers
+    void stop() {
+        for (DatagramSocket listener : listeners) listener.close();
+        sessions.shutdown();
+    }
+
+    private static int receive_buffer_size(DatagramSocket listener) {
+        try {
+            return listener.getReceiveBufferSize();
+        } catch (SocketException e) {
+            return -1;
+        }
+    }
+
+    // one receive thread per listener, each with its own request buffer and a pool for the sessions it starts
+    // returns once the listener is closed by stop
+    private void listen(DatagramSocket listener) {
+        BufferPool buffers = new BufferPool(false, config.pooled_buffers);
+        LongAdder requests = context.metrics.listener();
+
+        //requests are parsed here, so one buffer serves every request
+        byte[] buffer = new byte[2000];
+        ByteBuffer request = ByteBuffer.wrap(buffer);
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!listener.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                listener.receive(packet);
+                request.clear().limit(packet.getLength());
+                int code = TftpCodec.opcode(request);
+                InetAddress ip = packet.getAddress();
+                int port = packet.getPort();
+                switch (code) {
+                    case TftpCodec.RRQ:
+                        requests.increment();
+                        Log.info("Read initiated from %s:%d", ip, port);
+                        TftpCodec.Request read = TftpCodec.parse_request(request);
+                        TftpEvents.request_received(ip, port, read);
+                        //RFC 2090 clients join the file's group, anything the group cannot take is served unicast
+                        if (context.multicast.join(read, ip, port, sessions)) break;
+                        SessionTable.Entry read_entry = open_session_entry(ip, port, read);
+                        if (read_entry != null) submit_session(new Read(read, ip, port, context, buffers, read_entry), read_entry, ip, port);
+                        break;
+                    case TftpCodec.WRQ:
+                        requests.increment();
+                        Log.info("Write initiated from %s:%d", ip, port);
+                        TftpCodec.Request write = TftpCodec.parse_request(request);
+                        TftpEvents.request_received(ip, port, write);
+                        SessionTable.Entry write_entry = open_session_entry(ip, port, write);
+                        if (write_entry != null) submit_session(new Write(write, ip, port, context, buffers, write_entry), write_entry, ip, port);
+                        break;
+                }
+            } catch (IOException e) {
+                if (listener.isClosed()) return;
+                Log.error("Error occurred when accepting request packet | %s", e.getMessage());
+            }
+        }
+    }
+
+
+
+
+
+    // takes a slot from admission control, waiting up to the configured time when the caps are reached
+    // a refused client gets an error from a throwaway socket, its retransmitted request may be admitted later
+    private static boolean admit(ServerContext context, InetAddress ip, int port) {
+        AdmissionControl.Result result = context.admission.acquire(ip, context.config.admission_wait_ms);
+        if (result == AdmissionControl.Result.ADMITTED) return true;
+        context.metrics.request_rejected();
+        Log.warn("Client Session: %s %d | Request refused | %s", ip, port, result.message);
+        try (DatagramSocket reject_socket = new DatagramSocket()) {
+            ByteBuffer error = TftpCodec.put_error(ByteBuffer.allocate(CONTROL_PACKET_SIZE), TftpCodec.ERROR_UNDEFINED, result.message);
+            reject_socket.send(new DatagramPacket(error.array(), error.limit(), ip, port));
+            context.metrics.error_sent(TftpCodec.ERROR_UNDEFINED);
+            TftpEvents.error_sent(ip, port, TftpCodec.ERROR_UNDEFINED, result.message);
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send error packet due to IOException | %s", ip, port, e.getMessage());
+        }
+        return false;
+    }
+
+    // null when the request is a retransmission for a live session, which then resends its first reply if still unanswered
+    private SessionTable.Entry open_session_entry(InetAddress ip, int port, TftpCodec.Request request) {
+        SessionTable.Entry entry = context.session_table.open(new SessionTable.Key(ip, port, request.opcode(), request.filename()));
+        if (entry == null) Log.debug("Client Session: %s %d | Request repeated for a live session | Not starting another", ip, port);
+        return entry;
+    }
+
+    // the session's table entry is dropped when its runnable ends, however it ends
+    private void submit_session(Runnable session, SessionTable.Entry entry, InetAddress ip, int port) {
+        try {
+            sessions.execute(() -> {
+                try {
+                    session.run();
+                } finally {
+                    entry.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.close();
+            //the client retransmits its request, so dropping it here only delays the transfer
+            context.metrics.request_dropped();
+            Log.warn("Client Session: %s %d | Session executor saturated | Request dropped", ip, port);
+        }
+    }
+
+    // virtual thread per session by default, or a fixed pool of platform threads with a bounded queue
+    private static ExecutorService create_session_executor(TftpConfig config) {
+        if (config.session_threads <= 0) return Executors.newThreadPerTaskExecutor(thread_factory(config, "session-"));
+        return new ThreadPoolExecutor(config.session_threads, config.session_threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.session_queue)), thread_factory(config, "session-"));
+    }
+
+    private static String describe_session_executor(TftpConfig config) {
+        if (config.session_threads <= 0) return "virtual thread per session";
+        return String.format("platform pool of %d threads, %d queued sessions", config.session_threads, config.session_queue);
+    }
+
+    // helper threads follow the session backend so a virtual thread deployment never creates platform threads per transfer
+    static ThreadFactory thread_factory(TftpConfig config, String prefix) {
+        if (config.session_threads <= 0) return Thread.ofVirtual().name(prefix, 0).factory();
+        return Thread.ofPlatform().name(prefix, 0).daemon(true).factory();
+    }
+
+    static void close_all_streams(String ip, int port, Closeable... resources ) {
+        for(Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not close resource due to IOException | %s", ip,  port, e.getMessage());
+            }
+        }
+    }
+
+    // a pooled buffer and the datagram over its array, reused for every packet of one kind in a session
+    // a packet is either only sent (address fixed to the client) or only received into
+    static final class SessionPacket {
+        final ByteBuffer buffer;
+        final DatagramPacket datagram;
+        private final int capacity;
+
+        SessionPacket(BufferPool pool, int capacity, InetAddress ip, int port) {
+            this.capacity = capacity;
+            this.buffer = pool.acquire(capacity);
+            this.datagram = new DatagramPacket(buffer.array(), capacity, ip, port);
+        }
+
+        // the packet an encoder just wrote into buffer
+        DatagramPacket encoded() {
+            datagram.setLength(buffer.limit());
+            return datagram;
+        }
+
+        DatagramPacket receiving() {
+            datagram.setLength(capacity);
+            return datagram;
+        }
+
+        // the buffer limited to what the last receive wrote
+        ByteBuffer received() {
+            return buffer.clear().limit(datagram.getLength());
+        }
+
+        static void release(BufferPool pool, SessionPacket... packets) {
+            for (SessionPacket packet : packets) {
+                if (packet != null) pool.release(packet.buffer);
+            }
+        }
+    }
+
+
+
+
+
+    private static class Read implements Runnable {
+        TftpCodec.Request request;
+        InetAddress ip;
+        int port;
+        TftpConfig config;
+        ServerContext context;
+        TftpMetrics metrics;
+        BufferPool buffers;
+
+        //data goes out, acks come in, the oack or an error go out; handed back to the pool when the session ends
+        SessionPacket data;
+        SessionPacket ack;
+        SessionPacket reply;
+
+        //paces data packets to this session's share of the read bandwidth
+        BandwidthScheduler.Throttle throttle;
+
+        //lets the listener resend the oack when the request is repeated
+        SessionTable.Entry entry;
+
+        TftpEvents.Session event;
+
+        public Read(TftpCodec.Request request, InetAddress ip, int port, ServerContext context, BufferPool buffers, SessionTable.Entry entry) {
+            this.request = request;
+            this.entry = entry;
+            this.ip = ip;
+            this.port = port;
+            this.config = context.config;
+            this.context = context;
+            this.metrics = context.metrics;
+            this.buffers = buffers;
+        }
+
+        public void run() {
+            if (!admit(context, ip, port)) return;
+            metrics.read_started();
+            event = TftpEvents.session("read", ip, port, request.filename());
+            try {
+                serve();
+            } finally {
+                if (throttle != null) throttle.close();
+                SessionPacket.release(buffers, data, ack, reply);
+                context.admission.release(ip);
+                metrics.read_ended();
+                TftpEvents.session_ended(event);
+            }
+        }
+
+        private void serve() {
+            long started_at = System.nanoTime();
+            String ip_str = ip.getHostAddress();
+            String filepath = request.filename();
+            TftpOptions options = TftpOptions.negotiate(request.options(), config, ip);
+            int block_size = options.block_size;
+            RttEstimator rtt = RttEstimator.create(config, options, metrics.ack_rtt);
+            reply = new SessionPacket(buffers, CONTROL_PACKET_SIZE, ip, port);
+
+            DatagramSocket session_socket;
+            try {
+                session_socket = new DatagramSocket();
+                session_socket.setSoTimeout(rtt.timeout_ms());
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not create session socket and set time out | Terminating session | %s", ip_str, port, e.getMessage());
+                return;
+            }
+
+            // error handling, the name leads out of the store, the file doesn't exist or is a directory
+            BlockSource source;
+            try {
+                source = context.store.open_read(filepath, block_size, Math.max(config.read_ahead_blocks, options.window_size));
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Read request denied : %s | %s", ip_str, port, filepath, e.getMessage());
+                send_err_packet(session_socket, reply, ip, port, refusal_code(e), refusal(e, false), metrics);
+                session_socket.close();
+                return;
+            }
+
+            Log.info("Client Session: %s %d | Sending file: %s ( %d bytes)", ip_str, port, filepath, source.size());
+
+            ack = new SessionPacket(buffers, 4, ip, port);
+
+            //options were accepted, the client acks the oack with block 0 before data starts
+            if (options.has_oack()) {
+                DatagramPacket oack_packet = send_oack_packet(session_socket, reply, options, ip, port);
+                if (oack_packet != null) entry.awaiting(session_socket, oack_packet);
+                boolean failed = oack_packet == null || accept_ack_packet(session_socket, oack_packet, ack, ip, port, 0, rtt, config.max_retries, metrics);
+                entry.answered();
+                if (failed) {
+                    close_all_streams(ip_str, port, session_socket, source);
+                    return;
+                }
+            }
+
+            data = new SessionPacket(buffers, block_size + 4, ip, port);
+            throttle = context.bandwidth.open();
+            int window_size = options.window_size;
+            event.block_size = block_size;
+            event.window_size = window_size;
+
+            //block numbers roll over to 0 after 65535, only the low 16 bits go on the wire
+            //a file that is an exact multiple of the block size ends with an empty block
+            long last_block = source.size() / block_size + 1;
+            long acked = 0;
+            long next_block = 1;
+            long highest_sent = 0;
+            int retries = 0;
+
+            //one block per round trip is timed, only if it is sent exactly once (Karn's rule)
+            long timed_block = 0;
+            long timed_at = 0;
+            while (acked < last_block) {
+
+                //keeps up to window_size unacknowledged blocks in flight
+                while (next_block <= last_block && next_block - acked <= window_size) {
+                    if (next_block <= highest_sent) {
+                        metrics.retransmit();
+                        TftpEvents.retransmit(ip, port, "data", next_block);
+                    }
+                    if (send_data_packet(session_socket, source, data, throttle, ip, port, next_block, metrics) == null) {
+                        close_all_streams(ip_str, port, session_socket, source);
+                        return;
+                    }
+                    if (next_block > highest_sent) {
+                        highest_sent = next_block;
+                        if (timed_block == 0) {
+                            timed_block = next_block;
+                            timed_at = System.nanoTime();
+                        }
+                    }
+                    next_block++;
+                }
+
+                long result = accept_window_ack(session_socket, ack, ip, port, acked, next_block - 1, rtt.timeout_ms(), metrics);
+                if (result == ACK_FAILED) {
+                    close_all_streams(ip_str, port, session_socket, source);
+                    return;
+                }
+
+                //nothing acked in time, back off and resend the window starting after the last acked block
+                if (result == ACK_TIMED_OUT) {
+                    metrics.timeout();
+                    if (++retries > config.max_retries) {
+                        Log.warn("Client Session: %s %d | Client timed out | Terminating session", ip_str,  port);
+                        event.outcome = "timed out";
+                        close_all_streams(ip_str, port, session_socket, source);
+                        return;
+                    }
+                    rtt.backoff();
+                    timed_block = 0;
+                    next_block = acked + 1;
+                    continue;
+                }
+
+                if (timed_block != 0 && result >= timed_block) {
+                    rtt.sample(System.nanoTime() - timed_at);
+                    timed_block = 0;
+                }
+
+                //an ack short of the window means the client missed a block, restart right after it
+                retries = 0;
+                acked = result;
+                event.blocks = acked;
+                event.bytes = Math.min(acked * block_size, source.size());
+                if (acked < next_block - 1) {
+                    next_block = acked + 1;
+                    timed_block = 0;
+                }
+            }
+
+
+
+            close_all_streams(ip_str, port, session_socket, source);
+
+            metrics.read_completed(source.size(), started_at);
+            event.outcome = "completed";
+            Log.info("Client Session: %s %d | Read request completed", ip_str, port);
+        }
+    }
+
+    // the session's last packet, code is one of the TftpCodec.ERROR_* values (refusal_code maps a store's refusal)
+    private static void send_err_packet(DatagramSocket session_socket, SessionPacket reply, InetAddress ip, int port, int code, String message, TftpMetrics metrics) {
+        TftpCodec.put_error(reply.buffer, code, message);
+        try {
+            session_socket.send(reply.encoded());
+            metrics.error_sent(code);
+            TftpEvents.error_sent(ip, port, code, message);
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send error packet due to IOException | %s", ip,  port, e.getMessage());
+        }
+    }
+
+    private static DatagramPacket send_oack_packet(DatagramSocket session_socket, SessionPacket reply, TftpOptions options, InetAddress ip, int port) {
+        TftpCodec.put_oack(reply.buffer, options.accepted);
+        DatagramPacket oack = reply.encoded();
+        try {
+            session_socket.send(oack);
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send oack packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+            return null;
+        }
+        Log.debug("Client Session: %s %d | Oack sent | %s", ip, port, options.accepted);
+        return oack;
+    }
+
+    // the error message for a store's refusal to open a file, see FileStore
+    static String refusal(IOException e, boolean write) {
+        if (e instanceof java.nio.file.AccessDeniedException) return "Access violation";
+        if (e instanceof java.nio.file.NoSuchFileException || e instanceof FileNotFoundException) return write ? "Directory not found" : "File not found";
+        return write ? "Could not create file" : "Could not read file";
+    }
+
+    // the error code sent with refusal's message
+    static int refusal_code(IOException e) {
+        if (e instanceof java.nio.file.AccessDeniedException) return TftpCodec.ERROR_ACCESS_VIOLATION;
+        if (e instanceof java.nio.file.NoSuchFileException || e instanceof FileNotFoundException) return TftpCodec.ERROR_FILE_NOT_FOUND;
+        return TftpCodec.ERROR_UNDEFINED;
+    }
+
+    private static boolean accept_ack_packet(DatagramSocket session_socket, DatagramPacket data_packet, SessionPacket ack, InetAddress ip, int port, long block_num, RttEstimator rtt, int max_retries, TftpMetrics metrics) {
+        int count = 0;
+        long sent_at = System.nanoTime();
+        while (true) {
+            if (count > max_retries) {
+                Log.warn("Client Session: %s %d | Client timed out | Terminating session", ip,  port);
+                session_socket.close();
+                return true;
+            }
+            DatagramPacket ack_packet = ack.receiving();
+            try {
+                session_socket.setSoTimeout(rtt.timeout_ms());
+                session_socket.receive(ack_packet);
+            } catch (SocketTimeoutException e) {
+                metrics.timeout();
+                try {
+                    session_socket.send(data_packet);
+                    metrics.retransmit();
+                    TftpEvents.retransmit(ip, port, block_num == 0 ? "oack" : "data", block_num);
+                } catch (IOException ioe) {
+                    Log.warn("Client Session: %s %d | Could not retransmit data packet due to IOException | Terminating session | %s", ip,  port, ioe.getMessage());
+                    return true;
+                }
+                rtt.backoff();
+                count++;
+                continue;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not receive ack packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+                return true;
+            }
+
+            ByteBuffer received = ack.received();
+            if (is_error_packet(ack_packet, received, ip, port)) {
+                metrics.error_received(TftpCodec.block(received));
+                Log.warn("Client Session: %s %d | Client sent error packet | Terminating session", ip,  port);
+                return true;
+            }
+
+            boolean check_result = check_packet_for_ack(ack_packet, received, ip, port, block_num);
+
+            if (check_result) continue;
+
+            if (count == 0) rtt.sample(System.nanoTime() - sent_at);
+            Log.trace("Client Session: %s %d | Ack %d received", ip,  port, block_num);
+            return false;
+        }
+    }
+
+    // room for an error message or an oack
+    private static final int CONTROL_PACKET_SIZE = 512;
+
+    private static final long ACK_FAILED = -1;
+    private static final long ACK_TIMED_OUT = -2;
+
+    // maps an ack's 16 bit block number onto the outstanding window acked + 1 .. sent, which may span a wrap of the
+    // counter; returns the block it acknowledges, or -1 for a duplicate of acked or a stale ack from an earlier window
+    static long window_ack(long acked, long sent, int received) {
+        long block = acked + ((received - acked) & 0xFFFF);
+        return block == acked || block > sent ? -1 : block;
+    }
+
+    // waits up to timeout_ms for an ack between acked + 1 and sent (cumulative), returns that block number,
+    // ACK_TIMED_OUT when nothing usable arrives in time or ACK_FAILED when the session has to end
+    private static long accept_window_ack(DatagramSocket session_socket, SessionPacket ack, InetAddress ip, int port, long acked, long sent, int timeout_ms, TftpMetrics metrics) {
+        //dropped packets do not extend the wait
+        long deadline = System.nanoTime() + timeout_ms * 1_000_000L;
+        while (true) {
+            DatagramPacket ack_packet = ack.receiving();
+            try {
+                long remaining_ms = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remaining_ms <= 0) return ACK_TIMED_OUT;
+                session_socket.setSoTimeout((int) remaining_ms);
+                session_socket.receive(ack_packet);
+            } catch (SocketTimeoutException e) {
+                return ACK_TIMED_OUT;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not receive ack packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+                return ACK_FAILED;
+            }
+
+            ByteBuffer received = ack.received();
+            if (is_error_packet(ack_packet, received, ip, port)) {
+                metrics.error_received(TftpCodec.block(received));
+                Log.warn("Client Session: %s %d | Client sent error packet | Terminating session", ip,  port);
+                return ACK_FAILED;
+            }
+
+            if (!ack_packet.getAddress().equals(ip) || ack_packet.getPort() != port) {
+                Log.debug("Client Session: %s %d | Ip or port mismatch | Packet dropped", ip,  port);
+                continue;
+            }
+            if (TftpCodec.opcode(received) != TftpCodec.ACK || received.limit() < 4) {
+                Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip,  port);
+                continue;
+            }
+
+            long block = window_ack(acked, sent, TftpCodec.block(received));
+            if (block < 0) {
+                Log.debug("Client Session: %s %d | Duplicate or stale ack | Packet dropped", ip,  port);
+                continue;
+            }
+
+            Log.trace("Client Session: %s %d | Ack %d received", ip,  port, block);
+            return block;
+        }
+    }
+
+    private static boolean check_packet_for_ack(DatagramPacket ack_packet, ByteBuffer received, InetAddress ip, int port, long block_num) {
+        if (!ack_packet.getAddress().equals(ip) || ack_packet.getPort() != port) {
+            Log.debug("Client Session: %s %d | Ip or port mismatch | Packet dropped", ip,  port);
+            return true;
+        }
+        if (TftpCodec.opcode(received) != TftpCodec.ACK) {
+            Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip,  port);
+            return true;
+        }
+        if (TftpCodec.block(received) != (block_num & 0xFFFF)) {
+            Log.debug("Client Session: %s %d | Block mismatch | Packet dropped", ip,  port);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean is_error_packet(DatagramPacket packet, ByteBuffer received, InetAddress ip, int port) {
+        return packet.getAddress().equals(ip) && packet.getPort() == port && TftpCodec.is_error(received);
+    }
+
+    private static DatagramPacket send_data_packet(DatagramSocket session_socket, BlockSource source, SessionPacket data, BandwidthScheduler.Throttle throttle, InetAddress ip, int port, long block_num, TftpMetrics metrics) {
+        try {
+            //the source writes the header along with the payload, cached sources copy a prebuilt packet
+            int length = source.read_packet(block_num - 1, data.buffer.array());
+
+            Log.trace("Client Session: %s %d | Read %d bytes for block %d", ip, port, length - 4, block_num);
+            if (length - 4 < source.block_size()) {
+                Log.debug("Client Session: %s %d | Hit last block", ip, port);
+            }
+
+            DatagramPacket data_packet = data.datagram;
+            data_packet.setLength(length);
+            throttle.pace(length);
+            session_socket.send(data_packet);
+            metrics.block_sent(length - 4);
+            Log.trace("Client Session: %s %d | Block %d sent", ip, port, block_num);
+
+            return data_packet;
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send data packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+            return null;
+        }
+    }
+
+
+
+
+
+    private static class Write implements Runnable {
+        TftpCodec.Request request;
+        InetAddress ip;
+        int port;
+        TftpConfig config;
+        ServerContext context;
+        TftpMetrics metrics;
+        BufferPool buffers;
+
+        //data comes in, acks (or the oack) and errors go out; handed back to the pool when the session ends
+        SessionPacket data;
+        SessionPacket reply;
+
+        //lets the listener resend the oack or ack 0 when the request is repeated
+        SessionTable.Entry entry;
+
+        TftpEvents.Session event;
+
+        public Write(TftpCodec.Request request, InetAddress ip, int port, ServerContext context, BufferPool buffers, SessionTable.Entry entry) {
+            this.request = request;
+            this.entry = entry;
+            this.ip = ip;
+            this.port = port;
+            this.config = context.config;
+            this.context = context;
+            this.metrics = context.metrics;
+            this.buffers = buffers;
+        }
+
+        public void run() {
+            if (!admit(context, ip, port)) return;
+            metrics.write_started();
+            event = TftpEvents.session("write", ip, port, request.filename());
+            try {
+                serve();
+            } finally {
+                SessionPacket.release(buffers, data, reply);
+                context.admission.release(ip);
+                metrics.write_ended();
+                TftpEvents.session_ended(event);
+            }
+        }
+
+        private void serve() {
+            long started_at = System.nanoTime();
+            String ip_str = ip.getHostAddress();
+
+            String filepath = request.filename();
+            TftpOptions options = TftpOptions.negotiate(request.options(), config, ip);
+            int block_size = options.block_size;
+            RttEstimator rtt = RttEstimator.create(config, options, metrics.ack_rtt);
+            reply = new SessionPacket(buffers, CONTROL_PACKET_SIZE, ip, port);
+
+            Log.info("Client Session: %s %d | Receiving file : %s", ip_str, port, filepath);
+
+            // the timeout is set per receive from the rtt estimate
+            DatagramSocket session_socket;
+            try {
+                session_socket = new DatagramSocket();
+                fit_receive_buffer(session_socket, options);
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not create socket or set time out due to IOException | Terminating session | %s", ip_str, port, e.getMessage());
+                return;
+            }
+
+            //received blocks stream into the store, which only publishes the file once the last block arrives
+            // refused when the name leads out of the store, its directory is absent or the store is read only
+            BlockSink writer;
+            try {
+                writer = context.store.open_write(filepath, block_size);
+            } catch (IOException e) {
+                send_err_packet(session_socket, reply, ip, port, refusal_code(e), refusal(e, true), metrics);
+                Log.warn("Client Session: %s %d | Write request denied : %s | %s", ip_str, port, filepath, e.getMessage());
+                session_socket.close();
+                return;
+            }
+
+            // zero block ack, or the oack when options were accepted
+            LastAck last_ack = new LastAck(reply, metrics);
+            boolean sent;
+            if (options.has_oack()) sent = send_oack_packet(session_socket, reply, options, ip, port) != null;
+            else sent = send_ack_packet(session_socket, reply, 0, ip, port);
+            last_ack.sent_at = System.nanoTime();
+            if (!sent) {
+                close_all_streams(ip_str, port, session_socket, writer);
+                return;
+            }
+            //the reply buffer is next rewritten for the ack of the first window, after block 1 has arrived
+            entry.awaiting(session_socket, reply.datagram);
+
+
+            //one byte over a full block, so an oversized datagram shows up instead of being truncated to a full block
+            data = new SessionPacket(buffers, block_size + 5, ip, port);
+            int window_size = options.window_size;
+            event.block_size = block_size;
+            event.window_size = window_size;
+            long block_num = 1;
+            boolean stay = true;
+            ByteBuffer data_packet;
+            while (stay) {
+
+                data_packet = accept_data_packet(session_socket, data, last_ack, ip, port, block_num, window_size, rtt, config.max_retries, metrics);
+
+                if (block_num == 1) entry.answered();
+                if (data_packet == null) {
+                    close_all_streams(ip_str, port, session_socket, writer);
+                    return;
+                }
+
+
+                //calculate the length of the data
+                int length = data_packet.limit() - 4;
+                if (length > block_size) {
+                    Log.warn("Client Session: %s %d | Block %d carries more than the block size of %d | Terminating session", ip_str, port, block_num, block_size);
+                    send_err_packet(session_socket, reply, ip, port, TftpCodec.ERROR_ILLEGAL_OPERATION, "Data block larger than the block size", metrics);
+                    close_all_streams(ip_str, port, session_socket, writer);
+                    return;
+                }
+
+                Log.trace("Client Session: %s %d | Block %d received", ip_str, port, block_num);
+
+
+                //hands the new data to the write behind stage
+                try {
+                    writer.write(data_packet.array(), 4, length);
+                    metrics.block_received(length);
+                    event.blocks = block_num;
+                    event.bytes = writer.bytes_written();
+                } catch (IOException e) {
+                    Log.warn("Client Session: %s %d | Could not write block %d | Terminating session | %s", ip_str, port, block_num, e.getMessage());
+                    send_err_packet(session_socket, reply, ip, port, TftpCodec.ERROR_UNDEFINED, "Could not write file", metrics);
+                    close_all_streams(ip_str, port, session_socket, writer);
+                    return;
+                }
+
+
+                // checks to see if this is the last block if so, commits the file before the final ack
+                if (length < block_size) {
+                    Log.debug("Client Session: %s %d | Hit last block", ip_str, port);
+                    stay = false;
+
+                    if (!commit_file(writer, filepath, ip_str, port)) {
+                        send_err_packet(session_socket, reply, ip, port, TftpCodec.ERROR_UNDEFINED, "Could not write file", metrics);
+                        session_socket.close();
+                        return;
+                    }
+                }
+
+
+                //sends the ack packet once per window, the last block is always acked
+                if (stay && block_num - last_ack.block < window_size) {
+                    block_num++;
+                    continue;
+                }
+                if (!last_ack.send(session_socket, block_num, ip, port)) {
+                    close_all_streams(ip_str, port, session_socket, writer);
+                    return;
+                }
+
+
+                Log.trace("Client Session: %s %d | Ack %d sent", ip_str, port, block_num);
+
+                block_num++;
+            }
+            close_all_streams(ip_str, port, session_socket);
+
+            metrics.write_completed(writer.bytes_written(), started_at);
+            event.outcome = "completed";
+            Log.info("Client Session: %s %d | Write request completed | File size : %d bytes", ip_str, port, writer.bytes_written());
+        }
+    }
+
+    // last ack (or oack) sent by a write session, it stays encoded in the reply packet and is retransmitted when the client repeats itself
+    // sent_at and retransmitted time the next data block for the rtt estimate (Karn's rule)
+    static class LastAck {
+        final SessionPacket reply;
+        final TftpMetrics metrics;
+        long block = 0;
+        long sent_at = 0;
+        boolean retransmitted = false;
+
+        LastAck(SessionPacket reply, TftpMetrics metrics) {
+            this.reply = reply;
+            this.metrics = metrics;
+        }
+
+        boolean send(DatagramSocket session_socket, long block_num, InetAddress ip, int port) {
+            if (!send_ack_packet(session_socket, reply, block_num, ip, port)) return false;
+            block = block_num;
+            sent_at = System.nanoTime();
+            retransmitted = false;
+            return true;
+        }
+
+        boolean resend(DatagramSocket session_socket, InetAddress ip, int port) {
+            retransmitted = true;
+            try {
+                session_socket.send(reply.datagram);
+                metrics.retransmit();
+                TftpEvents.retransmit(ip, port, "ack", block);
+                return true;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not retransmit ack due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    static int check_packet_for_data(DatagramSocket session_socket, DatagramPacket packet, ByteBuffer received_packet, LastAck last_ack, InetAddress ip, int port, long block_num) {
+        //first check ip and port
+        //second check for code *don't short circuit for code 2
+        //third check for block
+        //edge case: if code 2 and block 1 -> client didn't receive 0th ack -> retransmit 0th ack
+        //windowed uploads: a repeat of the last acked block means the ack was lost -> retransmit it
+        //a block ahead of the expected one means a gap in the window -> ack the last block received in order
+
+        if (!packet.getAddress().equals(ip) || packet.getPort() != port) {
+            Log.debug("Client Session: %s %d | Ip or port mismatch | Packet dropped", ip,  port);
+            return 2;
+        }
+
+        int code = TftpCodec.opcode(received_packet);
+        if (code != TftpCodec.DATA && code != TftpCodec.WRQ) {
+            Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip,  port);
+            return 2;
+        }
+
+        int expected = (int) (block_num & 0xFFFF);
+        int acked = (int) (last_ack.block & 0xFFFF);
+        int received = TftpCodec.block(received_packet);
+
+        if ((code == TftpCodec.WRQ && block_num == 1) || (code == TftpCodec.DATA && received == acked)) {
+            Log.debug("Client Session: %s %d | Block mismatch | Retransmitting last ack packet", ip,  port);
+            if (!last_ack.resend(session_socket, ip, port)) return -1;
+            return 3;
+        }
+
+        if (code != TftpCodec.DATA || received_packet.limit() < 4) {
+            Log.debug("Client Session: %s %d | Code mismatch | Packet dropped", ip,  port);
+            return 2;
+        }
+
+        if (received != expected)  {
+            long ahead = (received - expected) & 0xFFFF;
+            if (ahead < 0x8000 && last_ack.block < block_num - 1) {
+                Log.debug("Client Session: %s %d | Block %d out of order | Acking last block received", ip,  port, received);
+                if (!last_ack.send(session_socket, block_num - 1, ip, port)) return -1;
+                return 3;
+            }
+            Log.debug("Client Session: %s %d | Block mismatch | Packet dropped", ip,  port);
+            return 2;
+        }
+
+        return 1;
+    }
+
+    private static boolean send_ack_packet(DatagramSocket session_socket, SessionPacket reply, long block_num, InetAddress ip, int port) {
+        TftpCodec.put_ack(reply.buffer, block_num);
+        try {
+            session_socket.send(reply.encoded());
+        } catch (IOException e) {
+            Log.warn("Client Session: %s %d | Could not send ack packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // returns the in order DATA packet, backed by data's buffer until the next receive
+    private static ByteBuffer accept_data_packet(DatagramSocket session_socket, SessionPacket data, LastAck last_ack, InetAddress ip, int port, long block_num, int window_size, RttEstimator rtt, int max_retries, TftpMetrics metrics) {
+        int count = 0;
+        while (true){
+            if (count > max_retries) {
+                Log.warn("Client Session: %s %d | Too many attempts to retransmit | Terminating session", ip,  port);
+                return null;
+            }
+
+            DatagramPacket data_packet = data.receiving();
+
+            //attempts to receive data
+            //the wait is twice the rto because the client's own timer should retransmit first
+            try {
+                session_socket.setSoTimeout(2 * rtt.timeout_ms());
+                session_socket.receive(data_packet);
+            } catch (SocketTimeoutException e) {
+                metrics.timeout();
+                count++;
+                rtt.backoff();
+                //a windowed client waits for an ack at the end of its window, ack what arrived in order so it can resume
+                if (window_size > 1 && last_ack.block != block_num - 1) {
+                    Log.debug("Client Session: %s %d | Window incomplete | Acking block %d", ip,  port, block_num - 1);
+                    if (!last_ack.send(session_socket, block_num - 1, ip, port)) return null;
+                    last_ack.retransmitted = true;
+                    continue;
+                }
+                Log.debug("Client Session: %s %d | Client timed out | Retransmitting last ack packet", ip,  port);
+                if (!last_ack.resend(session_socket, ip, port)) return null;
+                continue;
+            } catch (IOException e) {
+                Log.warn("Client Session: %s %d | Could not receive data packet due to IOException | Terminating session | %s", ip,  port, e.getMessage());
+                return null;
+            }
+
+            ByteBuffer received = data.received();
+            if (is_error_packet(data_packet, received, ip, port)) {
+                metrics.error_received(TftpCodec.block(received));
+                Log.warn("Client Session: %s %d | Client sent error packet | Terminating session", ip,  port);
+                return null;
+            }
+
+            //checks the packet to see if it received the right packet
+            int check_result = check_packet_for_data(session_socket, data_packet, received, last_ack, ip, port, block_num);
+
+            switch (check_result) {
+                case -1: return null;
+                case 1:
+                    if (last_ack.sent_at != 0 && !last_ack.retransmitted) rtt.sample(System.nanoTime() - last_ack.sent_at);
+                    last_ack.sent_at = 0;
+                    return received;
+                case 3: count++;
+            }
+        }
+    }
+
+    // a whole window of large blocks can arrive back to back, the default buffer would drop the tail of it
+    private static void fit_receive_buffer(DatagramSocket session_socket, TftpOptions options) throws SocketException {
+        int window_bytes = 2 * options.window_size * (options.block_size + 64);
+        if (session_socket.getReceiveBufferSize() < window_bytes) session_socket.setReceiveBufferSize(window_bytes);
+    }
+
+    static boolean commit_file(BlockSink writer, String filepath, String ip_str, int port) {
+        try {
+            writer.commit();
+            return true;
+        } catch (Exception e) {
+            Log.warn("Client Session: %s %d | Failed to commit file %s | %s", ip_str, port, filepath, e.getMessage());
+            writer.abort();
+            return false;
+        }
+    }
+}
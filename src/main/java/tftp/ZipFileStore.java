@@ -0,0 +1,146 @@
+package tftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// serves the entries of a ZIP or JAR archive read only, without extracting it
+// the central directory is indexed once; a session inflates its entry as a stream and keeps the last blocks it
+// read, which covers retransmissions of the window in flight. A request for an older block reopens the entry
+// and skips forward, so a client that falls back far (a multicast master handover) costs a re-read, not an error
+// entry names are normalized like request names, entries that would lead out of the archive are ignored
+public final class ZipFileStore implements FileStore {
+    private final Path archive;
+    private final ZipFile zip;
+    private final Map<String, ZipEntry> entries = new HashMap<>();
+
+    public ZipFileStore(Path archive) throws IOException {
+        this.archive = archive.toAbsolutePath().normalize();
+        this.zip = new ZipFile(this.archive.toFile());
+        Enumeration<? extends ZipEntry> all = zip.entries();
+        while (all.hasMoreElements()) {
+            ZipEntry entry = all.nextElement();
+            if (entry.isDirectory()) continue;
+            String name = FileStore.normalize(entry.getName());
+            if (name != null && !name.isEmpty()) entries.put(name, entry);
+        }
+    }
+
+    @Override
+    public long size(String filename) throws IOException {
+        ZipEntry entry = entries.get(name(filename));
+        return entry == null ? -1 : entry.getSize();
+    }
+
+    @Override
+    public BlockSource open_read(String filename, int block_size, int read_ahead_blocks) throws IOException {
+        String name = name(filename);
+        ZipEntry entry = entries.get(name);
+        if (entry == null) throw new NoSuchFileException(name, null, "no such entry in " + archive);
+        return new ZipBlockSource(entry, block_size, Math.max(1, read_ahead_blocks));
+    }
+
+    @Override
+    public BlockSink open_write(String filename, int block_size) throws IOException {
+        throw new AccessDeniedException(filename, null, "the archive is read only");
+    }
+
+    @Override
+    public String describe() {
+        return String.format("zip %s | %d files, read only", archive, entries.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
+    private static String name(String filename) throws AccessDeniedException {
+        String name = FileStore.normalize(filename);
+        if (name == null) throw new AccessDeniedException(filename, null, "outside the archive");
+        return name;
+    }
+
+    // the entry's inflated stream and a ring of the last blocks read from it
+    private final class ZipBlockSource implements BlockSource {
+        private final ZipEntry entry;
+        private final long size;
+        private final int block_size;
+        private final int ring_blocks;
+        private final byte[] ring;
+
+        private InputStream in;
+        //index of the next block the stream yields, the ring holds the ring_blocks before it
+        private long next_index = 0;
+
+        ZipBlockSource(ZipEntry entry, int block_size, int ring_blocks) throws IOException {
+            this.entry = entry;
+            this.size = entry.getSize();
+            this.block_size = block_size;
+            this.ring_blocks = ring_blocks;
+            this.ring = new byte[block_size * ring_blocks];
+            this.in = zip.getInputStream(entry);
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int block_size() {
+            return block_size;
+        }
+
+        @Override
+        public int read_block(long block_index, byte[] dst, int offset) throws IOException {
+            int length = payload_length(block_index);
+            if (length == 0) return 0;
+            System.arraycopy(ring, slot(block_index), dst, offset, length);
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read_packet(long block_index, ByteBuffer dst, byte[] scratch) throws IOException {
+            dst.clear();
+            TftpCodec.put_data_header(dst, block_index + 1);
+            int length = payload_length(block_index);
+            if (length > 0) dst.put(4, ring, slot(block_index), length);
+            return dst.limit(length + 4);
+        }
+
+        // offset of the block in the ring, inflating up to it first
+        private int slot(long block_index) throws IOException {
+            if (block_index < next_index - ring_blocks) {
+                in.close();
+                in = zip.getInputStream(entry);
+                next_index = 0;
+            }
+            while (next_index <= block_index) {
+                int offset = (int) (next_index % ring_blocks) * block_size;
+                int length = payload_length(next_index);
+                if (in.readNBytes(ring, offset, length) < length) throw new IOException("Archive entry " + entry.getName() + " is shorter than its size");
+                next_index++;
+            }
+            return (int) (block_index % ring_blocks) * block_size;
+        }
+
+        private int payload_length(long block_index) {
+            long position = block_index * block_size;
+            return (int) Math.max(0, Math.min(block_size, size - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class AdmissionControlTest {
+    private static InetAddress address(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    @Test
+    void refuses_a_client_over_its_own_cap() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 2);
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(1)));
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(1)));
+        assertEquals(AdmissionControl.Result.CLIENT_BUSY, admission.try_acquire(address(1)));
+        //other clients are not held back by it
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(2)));
+        assertEquals(3, admission.active());
+    }
+
+    @Test
+    void refuses_everyone_over_the_global_cap() throws Exception {
+        AdmissionControl admission = new AdmissionControl(2, 2);
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(1)));
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(2)));
+        assertEquals(AdmissionControl.Result.SERVER_BUSY, admission.try_acquire(address(3)));
+        //the global cap is checked first
+        assertEquals(AdmissionControl.Result.SERVER_BUSY, admission.try_acquire(address(1)));
+        assertEquals("Server busy, try again later", AdmissionControl.Result.SERVER_BUSY.message);
+    }
+
+    @Test
+    void a_released_slot_is_taken_again() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 1);
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(1)));
+        assertEquals(AdmissionControl.Result.SERVER_BUSY, admission.try_acquire(address(2)));
+        admission.release(address(1));
+        assertEquals(0, admission.active());
+        assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(2)));
+
+        //the per client count goes back down as well
+        AdmissionControl per_client = new AdmissionControl(0, 1);
+        per_client.try_acquire(address(1));
+        per_client.release(address(1));
+        assertEquals(AdmissionControl.Result.ADMITTED, per_client.try_acquire(address(1)));
+    }
+
+    @Test
+    void no_caps_admit_everything() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 0);
+        for (int i = 0; i < 100; i++) assertEquals(AdmissionControl.Result.ADMITTED, admission.try_acquire(address(1)));
+        assertEquals(100, admission.active());
+        assertEquals("unlimited", admission.describe());
+        assertEquals("4 sessions, unlimited per client", new AdmissionControl(4, 0).describe());
+    }
+
+    @Test
+    void a_waiting_request_gets_the_next_released_slot() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 0);
+        admission.try_acquire(address(1));
+        InetAddress second = address(2);
+        CompletableFuture<AdmissionControl.Result> waiter = CompletableFuture.supplyAsync(() -> admission.acquire(second, 10_000));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (admission.waiting() == 0 && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(1, admission.waiting());
+
+        admission.release(address(1));
+        assertEquals(AdmissionControl.Result.ADMITTED, waiter.get());
+        assertEquals(0, admission.waiting());
+        assertEquals(1, admission.active());
+    }
+
+    @Test
+    void a_wait_without_a_free_slot_ends_with_the_refusal() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 1);
+        admission.try_acquire(address(1));
+        assertEquals(AdmissionControl.Result.CLIENT_BUSY, admission.acquire(address(1), 20));
+        assertEquals(AdmissionControl.Result.CLIENT_BUSY, admission.acquire(address(1), 0));
+        assertEquals(0, admission.waiting());
+        assertEquals(1, admission.active());
+    }
+}
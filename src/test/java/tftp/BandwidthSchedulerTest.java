@@ -0,0 +1,98 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+// the buckets run on a clock passed in by the test, times are in nanoseconds
+class BandwidthSchedulerTest {
+    private static final long MIB = 1024 * 1024;
+    private static final long START = 1_000_000_000L;
+    private static final long MS = 1_000_000L;
+
+    @Test
+    void an_empty_bucket_waits_for_the_packet_at_the_rate() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(0, MIB);
+        BandwidthScheduler.Throttle throttle = scheduler.open(START);
+        //512 bytes at 1 MiB/s take 488281.25 ns, rounded down and one added
+        assertEquals(488_282, throttle.wait_nanos(512, START));
+        //nothing was taken, the bucket has filled by then
+        assertEquals(0, throttle.wait_nanos(512, START + 488_282));
+        throttle.consume(512);
+        //the fraction of a byte left over shortens the next wait by a nanosecond
+        assertEquals(488_281, throttle.wait_nanos(512, START + 488_282));
+    }
+
+    @Test
+    void an_idle_session_may_send_one_bucket_at_once() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(0, MIB);
+        BandwidthScheduler.Throttle throttle = scheduler.open(START);
+        //the bucket holds 64 KiB at most, however long the session was idle
+        long later = START + 10_000 * MS;
+        for (int packet = 0; packet < 128; packet++) {
+            assertEquals(0, throttle.wait_nanos(512, later));
+            throttle.consume(512);
+        }
+        assertEquals(488_282, throttle.wait_nanos(512, later));
+    }
+
+    @Test
+    void a_high_rate_bucket_is_a_twentieth_of_a_second_deep() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(0, 100 * MIB);
+        BandwidthScheduler.Throttle throttle = scheduler.open(START);
+        long later = START + 1000 * MS;
+        //5 MiB go at once, one byte more waits for it at 100 MiB/s
+        assertEquals(0, throttle.wait_nanos((int) (5 * MIB), later));
+        assertEquals(10, throttle.wait_nanos((int) (5 * MIB) + 1, later));
+        throttle.consume((int) (5 * MIB));
+        //10 ms refill 1 MiB
+        assertEquals(0, throttle.wait_nanos((int) MIB, later + 10 * MS));
+    }
+
+    @Test
+    void the_global_rate_is_split_between_the_sending_sessions() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(MIB, 0);
+        BandwidthScheduler.Throttle a = scheduler.open(START);
+        BandwidthScheduler.Throttle b = scheduler.open(START);
+        assertEquals(976_563, a.wait_nanos(512, START));
+        assertEquals(MIB / 2, scheduler.current_share());
+
+        //b sent nothing for 100 ms, a gets the whole rate
+        assertEquals(0, a.wait_nanos(512, START + 200 * MS));
+        assertEquals(MIB, scheduler.current_share());
+        //the share is recomputed at most every 10 ms
+        b.wait_nanos(512, START + 205 * MS);
+        assertEquals(MIB, scheduler.current_share());
+        b.wait_nanos(512, START + 210 * MS);
+        assertEquals(MIB / 2, scheduler.current_share());
+
+        //a closed session no longer counts
+        b.close();
+        a.wait_nanos(512, START + 220 * MS);
+        assertEquals(MIB, scheduler.current_share());
+    }
+
+    @Test
+    void the_session_cap_bounds_the_fair_share() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(MIB, MIB / 4);
+        BandwidthScheduler.Throttle first = scheduler.open(START);
+        first.wait_nanos(512, START);
+        assertEquals(MIB / 4, scheduler.current_share());
+
+        BandwidthScheduler.Throttle[] others = new BandwidthScheduler.Throttle[4];
+        for (int i = 0; i < others.length; i++) others[i] = scheduler.open(START + 10 * MS);
+        first.wait_nanos(512, START + 10 * MS);
+        assertEquals(MIB / 5, scheduler.current_share());
+    }
+
+    @Test
+    void no_rates_never_wait() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(0, 0);
+        BandwidthScheduler.Throttle throttle = scheduler.open(START);
+        assertEquals(0, throttle.wait_nanos(65536, START));
+        throttle.consume(65536);
+        assertEquals(0, throttle.wait_nanos(65536, START));
+        assertEquals("unlimited", scheduler.describe());
+        assertEquals("1024 KiB/s total, unlimited per session", new BandwidthScheduler(MIB, 0).describe());
+    }
+}
@@ -0,0 +1,227 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static tftp.TestData.content;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// deduplicated uploads: shared inodes, atomic publication, the heap budget and removal of unlinked blobs
+class BlobStoreTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path root;
+
+    private final TftpConfig config = new TftpConfig();
+    private BlobStore blobs;
+    private final AtomicInteger published = new AtomicInteger();
+
+    @BeforeEach
+    void open() throws IOException {
+        //sweeps are run by the tests themselves
+        config.dedupe_sweep_seconds = 0;
+        blobs = new BlobStore(root.resolve(".blobs"), config);
+    }
+
+    @AfterEach
+    void close() {
+        blobs.close();
+    }
+
+    // writes content block by block like a write session, without committing
+    private BlockSink write(String name, byte[] content) throws IOException {
+        BlockSink sink = blobs.open(root.resolve(name), BLOCK_SIZE, published::incrementAndGet);
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) sink.write(content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+        return sink;
+    }
+
+    private Path upload(String name, byte[] content) throws IOException {
+        try (BlockSink sink = write(name, content)) {
+            sink.commit();
+        }
+        return root.resolve(name);
+    }
+
+    private Path blob_of(byte[] content) throws Exception {
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        return blobs.directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static int links(Path path) throws IOException {
+        return (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // names in the served directory and in the blob directory that are neither published names nor blobs
+    private List<Path> leftovers() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().startsWith(".") || path.getFileName().toString().startsWith("incoming-"))
+                    .toList();
+        }
+    }
+
+    @Test
+    void a_new_upload_is_published_as_a_link_to_its_blob() throws Exception {
+        byte[] content = content(3 * BLOCK_SIZE + 10, 1);
+        BlockSink sink = write("image.bin", content);
+        //nothing is visible under the name before commit
+        assertFalse(Files.exists(root.resolve("image.bin")));
+        sink.commit();
+
+        Path name = root.resolve("image.bin");
+        assertArrayEquals(content, Files.readAllBytes(name));
+        assertTrue(Files.isSameFile(name, blob_of(content)));
+        assertEquals(blob_of(content), blobs.blob(Files.readAttributes(name, BasicFileAttributes.class).fileKey()));
+        assertEquals(1, blobs.new_uploads.sum());
+        assertEquals(0, blobs.duplicate_uploads.sum());
+        assertEquals(1, published.get());
+        assertEquals(List.of(), leftovers());
+    }
+
+    @Test
+    void a_replaced_name_switches_content_at_once() throws Exception {
+        byte[] old_content = content(2000, 1);
+        byte[] new_content = content(1500, 2);
+        Path name = upload("boot.img", old_content);
+        BlockSink sink = write("boot.img", new_content);
+        //an upload in progress leaves the published version in place
+        assertArrayEquals(old_content, Files.readAllBytes(name));
+        sink.commit();
+        assertArrayEquals(new_content, Files.readAllBytes(name));
+        assertEquals(List.of(), leftovers());
+    }
+
+    @Test
+    void a_duplicate_upload_shares_the_blob_and_counts_the_bytes_saved() throws Exception {
+        byte[] content = content(5 * BLOCK_SIZE, 3);
+        Path first = upload("a.bin", content);
+        Path second = upload("b.bin", content);
+
+        assertTrue(Files.isSameFile(first, second));
+        assertTrue(Files.isSameFile(second, blob_of(content)));
+        //the blob and both names
+        assertEquals(3, links(blob_of(content)));
+        assertEquals(1, blobs.new_uploads.sum());
+        assertEquals(1, blobs.duplicate_uploads.sum());
+        assertEquals(content.length, blobs.bytes_saved.sum());
+        assertEquals(1, blobs.size());
+        assertEquals(2, published.get());
+    }
+
+    @Test
+    void the_same_content_again_under_the_same_name_publishes_nothing() throws Exception {
+        byte[] content = content(700, 4);
+        upload("same.bin", content);
+        upload("same.bin", content);
+        assertEquals(1, blobs.duplicate_uploads.sum());
+        assertEquals(700, blobs.bytes_saved.sum());
+        assertEquals(1, published.get());
+    }
+
+    @Test
+    void an_aborted_upload_leaves_no_trace() throws Exception {
+        byte[] content = content(4000, 5);
+        Path name = upload("kept.bin", content);
+        try (BlockSink sink = write("kept.bin", content(9000, 6))) {
+            sink.abort();
+        }
+        assertArrayEquals(content, Files.readAllBytes(name));
+        assertEquals(List.of(), leftovers());
+        assertEquals(1, blobs.size());
+    }
+
+    @Test
+    void overwriting_the_last_name_of_a_blob_removes_it() throws Exception {
+        byte[] old_content = content(1200, 7);
+        upload("fw.bin", old_content);
+        upload("fw.bin", content(1300, 8));
+        assertFalse(Files.exists(blob_of(old_content)));
+        assertEquals(1, blobs.orphans_removed.sum());
+        assertEquals(1, blobs.size());
+    }
+
+    @Test
+    void a_blob_another_name_links_to_survives_the_overwrite() throws Exception {
+        byte[] shared = content(1200, 7);
+        upload("one.bin", shared);
+        upload("two.bin", shared);
+        upload("one.bin", content(900, 9));
+        assertTrue(Files.exists(blob_of(shared)));
+        assertEquals(0, blobs.orphans_removed.sum());
+    }
+
+    @Test
+    void the_sweep_removes_blobs_whose_names_were_deleted() throws Exception {
+        byte[] content = content(800, 10);
+        Path name = upload("gone.bin", content);
+        Files.delete(name);
+        assertEquals(1, blobs.sweep());
+        assertFalse(Files.exists(blob_of(content)));
+        assertEquals(0, blobs.size());
+        assertEquals(0, blobs.sweep());
+    }
+
+    @Test
+    void uploads_larger_than_the_buffer_are_staged_on_disk() throws Exception {
+        config.dedupe_buffer_megabytes = 1;
+        blobs = new BlobStore(root.resolve(".blobs"), config);
+        byte[] content = content(1024 * 1024 + 3 * BLOCK_SIZE, 11);
+        Path name = upload("large.bin", content);
+        assertArrayEquals(content, Files.readAllBytes(name));
+        assertTrue(Files.isSameFile(name, blob_of(content)));
+        assertEquals(List.of(), leftovers());
+    }
+
+    @Test
+    void uploads_share_one_heap_budget() throws Exception {
+        config.dedupe_buffer_megabytes = 1;
+        config.dedupe_buffer_total_megabytes = 1;
+        blobs = new BlobStore(root.resolve(".blobs"), config);
+        byte[] first = content(700 * 1024, 12);
+        byte[] second = content(700 * 1024, 13);
+
+        //the first upload holds most of the budget, the second has to stage on disk
+        BlockSink first_sink = write("first.bin", first);
+        BlockSink second_sink = write("second.bin", second);
+        assertEquals(1, blobs.early_spills.sum());
+        second_sink.commit();
+        first_sink.commit();
+        assertArrayEquals(first, Files.readAllBytes(root.resolve("first.bin")));
+        assertArrayEquals(second, Files.readAllBytes(root.resolve("second.bin")));
+
+        //committed uploads gave their share back
+        upload("third.bin", content(700 * 1024, 14));
+        assertEquals(1, blobs.early_spills.sum());
+        assertEquals(List.of(), leftovers());
+    }
+
+    @Test
+    void startup_removes_unlinked_blobs_and_staging_files() throws Exception {
+        byte[] content = content(600, 15);
+        Path name = upload("restart.bin", content);
+        Files.delete(name);
+        Files.write(blobs.directory.resolve("incoming-crashed"), content);
+        blobs.close();
+
+        blobs = new BlobStore(root.resolve(".blobs"), config);
+        assertFalse(Files.exists(blob_of(content)));
+        assertFalse(Files.exists(blobs.directory.resolve("incoming-crashed")));
+        assertEquals(1, blobs.orphans_removed.sum());
+    }
+}
@@ -0,0 +1,94 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static tftp.TestData.content;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+// the default packet methods of BlockSource, as a store outside this package gets them
+class BlockSourceTest {
+    // serves content in blocks of block_size and overrides nothing but the required methods
+    private static BlockSource source(byte[] content, int block_size) {
+        return new BlockSource() {
+            @Override
+            public long size() {
+                return content.length;
+            }
+
+            @Override
+            public int block_size() {
+                return block_size;
+            }
+
+            @Override
+            public int read_block(long block_index, byte[] dst, int offset) {
+                int start = (int) Math.min(content.length, block_index * block_size);
+                int length = Math.min(block_size, content.length - start);
+                System.arraycopy(content, start, dst, offset, length);
+                return length;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static void assert_packet(byte[] content, int block_size, long block_index, ByteBuffer packet) {
+        int start = (int) (block_index * block_size);
+        int length = Math.min(block_size, content.length - start);
+        assertEquals(0, packet.position());
+        assertEquals(length + 4, packet.limit());
+        assertEquals(TftpCodec.DATA, TftpCodec.opcode(packet));
+        assertEquals((block_index + 1) & 0xFFFF, TftpCodec.block(packet));
+        for (int i = 0; i < length; i++) assertEquals(content[start + i], packet.get(4 + i), "byte " + i);
+    }
+
+    @Test
+    void direct_buffers_get_header_and_payload() throws Exception {
+        byte[] content = content(1300, 7);
+        BlockSource source = source(content, 512);
+        ByteBuffer dst = ByteBuffer.allocateDirect(512 + 4);
+        byte[] scratch = new byte[512];
+        for (long block = 0; block < 3; block++) assert_packet(content, 512, block, source.read_packet(block, dst, scratch));
+    }
+
+    @Test
+    void heap_buffers_are_filled_through_their_array_without_scratch() throws Exception {
+        byte[] content = content(1300, 7);
+        BlockSource source = source(content, 512);
+        ByteBuffer dst = ByteBuffer.allocate(512 + 4);
+        for (long block = 0; block < 3; block++) assert_packet(content, 512, block, source.read_packet(block, dst, null));
+    }
+
+    @Test
+    void a_heap_slice_is_filled_at_its_array_offset() throws Exception {
+        byte[] content = content(1300, 7);
+        BlockSource source = source(content, 512);
+        byte[] backing = new byte[100 + 512 + 4];
+        ByteBuffer dst = ByteBuffer.wrap(backing, 100, 512 + 4).slice();
+        assert_packet(content, 512, 1, source.read_packet(1, dst, null));
+        //nothing before the slice was touched
+        for (int i = 0; i < 100; i++) assertEquals(0, backing[i], "byte " + i);
+    }
+
+    @Test
+    void a_reused_buffer_is_cleared_first() throws Exception {
+        byte[] content = content(600, 7);
+        BlockSource source = source(content, 512);
+        ByteBuffer dst = ByteBuffer.allocateDirect(512 + 4);
+        byte[] scratch = new byte[512];
+        source.read_packet(0, dst, scratch).position(100);
+        //the last block is short, the limit follows it
+        assert_packet(content, 512, 1, source.read_packet(1, dst, scratch));
+    }
+
+    @Test
+    void an_empty_last_block() throws Exception {
+        BlockSource source = source(content(1024, 7), 512);
+        ByteBuffer packet = source.read_packet(2, ByteBuffer.allocateDirect(512 + 4), new byte[512]);
+        assertEquals(4, packet.limit());
+        assertEquals(3, TftpCodec.block(packet));
+    }
+}
@@ -0,0 +1,175 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static tftp.TestData.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// the write behind upload path: the temp file, the rename on commit, the fsync cadence and cleanup on abort
+class BlockWriterTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path root;
+
+    private final TftpConfig config = new TftpConfig();
+    private final AtomicInteger published = new AtomicInteger();
+
+    private BlockWriter writer(Path target, int fsync_every) throws IOException {
+        return new BlockWriter(target, BLOCK_SIZE, 4, fsync_every, UdpServer.thread_factory(config, "write-behind-"), published::incrementAndGet);
+    }
+
+    private static void write_blocks(BlockWriter writer, byte[] content) throws IOException {
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) writer.write(content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+    }
+
+    private List<Path> part_files() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".part")).toList();
+        }
+    }
+
+    @Test
+    void commit_renames_the_temp_file_over_the_target() throws IOException {
+        Path target = Files.write(root.resolve("image.bin"), content(100, 1));
+        byte[] content = content(5 * BLOCK_SIZE + 7, 2);
+        BlockWriter writer = writer(target, 0);
+        write_blocks(writer, content);
+        assertEquals(1, part_files().size());
+        //readers see the old version until the rename
+        assertArrayEquals(content(100, 1), Files.readAllBytes(target));
+        assertEquals(0, published.get());
+
+        writer.commit();
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(content.length, writer.bytes_written());
+        assertEquals(List.of(), part_files());
+        assertEquals(1, published.get());
+    }
+
+    @Test
+    void blocks_written_from_buffers_land_in_order() throws IOException {
+        Path target = root.resolve("buffers.bin");
+        byte[] content = content(3 * BLOCK_SIZE, 3);
+        BlockWriter writer = writer(target, 0);
+        //a received packet positioned after its four byte header
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+            ByteBuffer packet = ByteBuffer.allocate(4 + BLOCK_SIZE).putInt(0).put(content, offset, BLOCK_SIZE).flip().position(4);
+            writer.write(packet);
+        }
+        writer.commit();
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    void a_replaced_file_keeps_its_permissions() throws IOException {
+        Path target = Files.write(root.resolve("mode.bin"), content(10, 4));
+        Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rw-r-----"));
+        BlockWriter writer = writer(target, 0);
+        write_blocks(writer, content(600, 5));
+        writer.commit();
+        assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(target)));
+    }
+
+    @Test
+    void fsync_follows_the_configured_cadence() throws IOException {
+        int[][] cases = {{0, 0}, {1, 5}, {2, 2}, {5, 1}, {6, 0}};
+        for (int[] expected : cases) {
+            BlockWriter writer = writer(root.resolve("sync-" + expected[0] + ".bin"), expected[0]);
+            write_blocks(writer, content(5 * BLOCK_SIZE, 6));
+            writer.commit();
+            assertEquals(expected[1], writer.block_syncs(), "fsync every " + expected[0]);
+        }
+    }
+
+    @Test
+    void abort_removes_the_temp_file_and_leaves_the_target() throws IOException {
+        Path target = Files.write(root.resolve("kept.bin"), content(300, 7));
+        BlockWriter writer = writer(target, 1);
+        write_blocks(writer, content(4 * BLOCK_SIZE, 8));
+        writer.abort();
+        assertArrayEquals(content(300, 7), Files.readAllBytes(target));
+        assertEquals(List.of(), part_files());
+        assertEquals(0, published.get());
+    }
+
+    @Test
+    void close_without_commit_aborts() throws IOException {
+        Path target = root.resolve("new.bin");
+        try (BlockWriter writer = writer(target, 0)) {
+            write_blocks(writer, content(BLOCK_SIZE, 9));
+        }
+        assertFalse(Files.exists(target));
+        assertEquals(List.of(), part_files());
+    }
+
+    @Test
+    void a_session_waiting_for_a_buffer_wakes_when_the_writer_is_interrupted() throws Exception {
+        //the write behind thread only starts draining once the gate opens, so the session fills every buffer first
+        Semaphore gate = new Semaphore(0);
+        AtomicReference<Thread> write_behind = new AtomicReference<>();
+        ThreadFactory gated = work -> {
+            Thread thread = new Thread(() -> {
+                gate.acquireUninterruptibly();
+                work.run();
+            });
+            write_behind.set(thread);
+            return thread;
+        };
+        BlockWriter writer = new BlockWriter(root.resolve("interrupted.bin"), BLOCK_SIZE, 4, 0, gated, published::incrementAndGet);
+        write_blocks(writer, content(4 * BLOCK_SIZE, 11));
+
+        AtomicReference<IOException> failed = new AtomicReference<>();
+        Thread session = new Thread(() -> {
+            try {
+                writer.write(content(BLOCK_SIZE, 12), 0, BLOCK_SIZE);
+                writer.write(content(BLOCK_SIZE, 13), 0, BLOCK_SIZE);
+            } catch (IOException e) {
+                failed.set(e);
+            }
+        });
+        session.start();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (session.getState() != Thread.State.WAITING && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(Thread.State.WAITING, session.getState());
+
+        //the interrupt is still pending when the drain starts, its first take fails
+        write_behind.get().interrupt();
+        gate.release();
+        session.join(5000);
+        assertFalse(session.isAlive(), "the session is still waiting for a free buffer");
+        assertTrue(failed.get().getMessage().contains("interrupted"), failed.get().getMessage());
+        assertThrows(IOException.class, writer::commit);
+        writer.abort();
+        assertEquals(List.of(), part_files());
+        assertFalse(Files.exists(root.resolve("interrupted.bin")));
+    }
+
+    @Test
+    void the_temp_file_of_an_upload_in_progress_cannot_be_requested() throws IOException {
+        BlockWriter writer = writer(root.resolve("upload.bin"), 0);
+        write_blocks(writer, content(BLOCK_SIZE, 10));
+        Path part = part_files().get(0);
+        PathResolver paths = new PathResolver(root.toString(), 16, 30000);
+        assertNull(paths.lookup(part.getFileName().toString()));
+        assertNull(paths.resolve("/" + part.getFileName()));
+        writer.abort();
+    }
+}
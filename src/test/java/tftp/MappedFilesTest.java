@@ -0,0 +1,155 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static tftp.TestData.content;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// shared mappings per file version: reference counts, new versions after a rename and files replaced under a lookup
+class MappedFilesTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path directory;
+
+    // opens the version the attributes describe, as LocalFileStore does with what the resolver cached
+    private static BlockSource open(MappedFiles files, Path path, BasicFileAttributes version) throws IOException {
+        return files.open(path.toString(), BLOCK_SIZE, version.size(), version.lastModifiedTime().toMillis(), version.fileKey());
+    }
+
+    private static BasicFileAttributes version(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    private static byte[] read_all(BlockSource source) throws IOException {
+        byte[] all = new byte[(int) source.size()];
+        byte[] block = new byte[BLOCK_SIZE];
+        for (long index = 0; ; index++) {
+            int length = source.read_block(index, block, 0);
+            System.arraycopy(block, 0, all, (int) (index * BLOCK_SIZE), length);
+            if (length < BLOCK_SIZE) return all;
+        }
+    }
+
+    // a new version written next to the file and renamed over it, as uploads are committed
+    private Path replace(Path path, byte[] content) throws IOException {
+        Path part = directory.resolve(path.getFileName() + ".new");
+        Files.write(part, content);
+        return Files.move(part, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    void readers_of_one_version_share_a_mapping_until_the_last_closes() throws IOException {
+        byte[] content = content(3000, 1);
+        Path path = Files.write(directory.resolve("shared.bin"), content);
+        MappedFiles files = new MappedFiles(true);
+
+        BlockSource first = open(files, path, version(path));
+        BlockSource second = open(files, path, version(path));
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1, files.mappings_created.sum());
+        assertEquals(1, files.shared_opens.sum());
+        assertEquals(1, files.mapping_count());
+        assertEquals(content.length, files.mapped_bytes());
+        assertArrayEquals(content, read_all(second));
+
+        first.close();
+        //closing twice does not release the other reader's reference
+        first.close();
+        assertEquals(1, files.mapping_count());
+        assertArrayEquals(content, read_all(second));
+
+        second.close();
+        assertEquals(0, files.mapping_count());
+        assertEquals(0, files.mapped_bytes());
+
+        //a released mapping is never revived, the next reader maps the file again
+        BlockSource third = open(files, path, version(path));
+        assertEquals(2, files.mappings_created.sum());
+        assertEquals(1, files.mapping_count());
+        third.close();
+        assertEquals(0, files.mapping_count());
+    }
+
+    @Test
+    void a_version_published_after_a_rename_gets_a_fresh_mapping() throws IOException {
+        byte[] old_content = content(2048, 1);
+        byte[] new_content = content(1500, 2);
+        Path path = Files.write(directory.resolve("image.bin"), old_content);
+        MappedFiles files = new MappedFiles(true);
+
+        BlockSource old_reader = open(files, path, version(path));
+        replace(path, new_content);
+        files.publish(path.toString());
+
+        BlockSource new_reader = open(files, path, version(path));
+        assertEquals(2, files.mappings_created.sum());
+        assertEquals(0, files.shared_opens.sum());
+        assertArrayEquals(new_content, read_all(new_reader));
+        //the session that started on the old version finishes on its bytes
+        assertEquals(old_content.length, old_reader.size());
+        assertArrayEquals(old_content, read_all(old_reader));
+
+        //the old mapping's release leaves the new version in the index
+        old_reader.close();
+        assertEquals(1, files.mapping_count());
+        assertEquals(new_content.length, files.mapped_bytes());
+        BlockSource shared = open(files, path, version(path));
+        assertEquals(1, files.shared_opens.sum());
+        assertArrayEquals(new_content, read_all(shared));
+        shared.close();
+        new_reader.close();
+        assertEquals(0, files.mapping_count());
+    }
+
+    @Test
+    void a_file_replaced_between_resolve_and_map_is_read_directly() throws IOException {
+        Path path = Files.write(directory.resolve("race.bin"), content(1024, 1));
+        BasicFileAttributes resolved = version(path);
+        MappedFiles files = new MappedFiles(true);
+
+        //same size, another inode: only the identity check after mapping notices
+        replace(path, content(1024, 2));
+        assertNull(open(files, path, resolved));
+        //another size is refused before mapping
+        replace(path, content(700, 3));
+        assertNull(open(files, path, resolved));
+
+        assertEquals(0, files.mappings_created.sum());
+        assertEquals(0, files.mapping_count());
+        assertEquals(0, files.mapped_bytes());
+    }
+
+    @Test
+    void disabled_mappings_always_read_directly() throws IOException {
+        Path path = Files.write(directory.resolve("plain.bin"), content(100, 1));
+        MappedFiles files = new MappedFiles(false);
+        assertNull(open(files, path, version(path)));
+        assertEquals(0, files.mapping_count());
+    }
+
+    @Test
+    void packets_from_the_mapping_match_the_file() throws IOException {
+        byte[] content = content(1100, 4);
+        Path path = Files.write(directory.resolve("packets.bin"), content);
+        MappedFiles files = new MappedFiles(true);
+        try (BlockSource source = open(files, path, version(path))) {
+            byte[] packet = new byte[BLOCK_SIZE + 4];
+            int length = source.read_packet(2, packet);
+            assertEquals(1100 - 2 * BLOCK_SIZE + 4, length);
+            assertEquals(3, packet[3]);
+            assertArrayEquals(Arrays.copyOfRange(content, 2 * BLOCK_SIZE, 1100), Arrays.copyOfRange(packet, 4, length));
+        }
+    }
+}
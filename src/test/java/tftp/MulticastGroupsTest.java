@@ -0,0 +1,309 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static tftp.TestData.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// RFC 2090 groups on the loopback interface of one host: a server with the group on lo and clients that join it
+// the driver plays every client on the test thread, so the order of acks and joins is fixed
+// skipped where lo cannot carry multicast (Linux can, with IP_MULTICAST_LOOP, without a route for the group)
+class MulticastGroupsTest {
+    private static final String GROUP = "239.255.69.1";
+    private static final int BLOCK_SIZE = 512;
+    //11 blocks, the last one short
+    private static final byte[] FILE = content(10 * BLOCK_SIZE + 100, 5);
+
+    private TftpServer server;
+    private int multicast_port;
+    private final Map<String, Closeable> open = new HashMap<>();
+
+    private static NetworkInterface loopback() throws IOException {
+        return NetworkInterface.getByName("lo");
+    }
+
+    // one datagram sent to a group on lo and received back
+    private static boolean loopback_multicast_works() {
+        try (MulticastSocket receiver = new MulticastSocket(0); DatagramSocket sender = new DatagramSocket()) {
+            NetworkInterface lo = loopback();
+            if (lo == null) return false;
+            InetAddress group = InetAddress.getByName(GROUP);
+            receiver.joinGroup(new InetSocketAddress(group, 0), lo);
+            receiver.setSoTimeout(1000);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, lo);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            sender.send(new DatagramPacket(new byte[]{1}, 1, group, receiver.getLocalPort()));
+            receiver.receive(new DatagramPacket(new byte[1], 1));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int free_port() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void start(FileStore store) throws IOException {
+        assumeTrue(loopback_multicast_works(), "no multicast on lo");
+        multicast_port = free_port();
+        server = TftpServer.builder()
+                .store(store)
+                .multicast(GROUP, 2, multicast_port, 1, "lo")
+                //short timeouts so a join waits at most one retransmission for its oack
+                .rto(100, 5, 1000)
+                .max_retries(20)
+                .build()
+                .start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (Closeable closeable : open.values()) closeable.close();
+        if (server != null) server.close();
+    }
+
+    @Test
+    void mastership_moves_to_a_client_still_missing_blocks() throws IOException {
+        MemoryFileStore store = new MemoryFileStore();
+        store.put("boot.img", FILE);
+        start(store);
+
+        //a and c listen from the start, b only joins the group once it is told about it
+        Client a = new Client("a");
+        Client c = new Client("c");
+        Client b = new Client("b");
+        a.join_group();
+        c.join_group();
+
+        a.request("boot.img");
+        assertEquals(GROUP + "," + multicast_port + ",1", a.await_oack().get("multicast"));
+        c.request("boot.img");
+        assertEquals(GROUP + "," + multicast_port + ",0", c.await_oack().get("multicast"));
+
+        //the master acks in lockstep, c picks up every block as a listener
+        a.ack(0);
+        for (long block = 1; block <= 5; block++) {
+            a.receive_until(block);
+            a.ack(block);
+        }
+
+        //b misses the start of the stream
+        b.request("boot.img");
+        assertEquals(GROUP + "," + multicast_port + ",0", b.await_oack().get("multicast"));
+        b.join_group();
+
+        for (long block = 6; block <= 11; block++) {
+            a.receive_until(block);
+            if (block < 11) a.ack(block);
+        }
+        //c holds the whole file and finishes before the master does, so it is never elected
+        c.receive_until(11);
+        c.ack(11);
+        a.ack(11);
+        assertArrayEquals(FILE, a.file());
+        assertArrayEquals(FILE, c.file());
+
+        //b is the only member left and still misses the first blocks
+        b.drain();
+        assertFalse(b.holds(1), "b joined after block 1 went out");
+        assertEquals(GROUP + "," + multicast_port + ",1", b.await_master_oack().get("multicast"));
+        b.ack(b.in_order());
+        while (b.in_order() < 11) {
+            b.receive_until(b.in_order() + 1);
+            //the server resumes from the first missing block and skips those b already holds
+            b.ack(b.in_order());
+        }
+        assertArrayEquals(FILE, b.file());
+        assertFalse(c.was_master(), "c completed as a listener");
+    }
+
+    @Test
+    void clients_get_an_error_when_the_file_cannot_be_opened() throws IOException {
+        MemoryFileStore files = new MemoryFileStore();
+        files.put("locked.img", FILE);
+        //the size is known, so the request joins a group, but opening the file is refused
+        start(new FileStore() {
+            @Override
+            public long size(String filename) throws IOException {
+                return files.size(filename);
+            }
+
+            @Override
+            public BlockSource open_read(String filename, int block_size, int read_ahead_blocks) throws IOException {
+                throw new AccessDeniedException(filename);
+            }
+
+            @Override
+            public BlockSink open_write(String filename, int block_size) throws IOException {
+                throw new AccessDeniedException(filename);
+            }
+
+            @Override
+            public String describe() {
+                return "refusing";
+            }
+        });
+
+        Client a = new Client("a");
+        a.request("locked.img");
+        ByteBuffer reply = a.receive_control();
+        assertEquals(TftpCodec.ERROR, TftpCodec.opcode(reply));
+        assertEquals(TftpCodec.ERROR_ACCESS_VIOLATION, TftpCodec.block(reply));
+    }
+
+    @Test
+    void the_nio_engine_refuses_multicast() {
+        assertThrows(IllegalArgumentException.class, () -> TftpServer.builder()
+                .store(new MemoryFileStore())
+                .engine("nio")
+                .multicast(GROUP, 2, 1758, 1, "lo")
+                .build());
+    }
+
+    // an RFC 2090 client: requests and acks over a unicast socket, DATA from the group
+    private final class Client {
+        final String name;
+        final DatagramSocket control;
+        MulticastSocket group;
+        InetSocketAddress server_tid;
+        boolean master_oack = false;
+        final Map<Long, byte[]> blocks = new HashMap<>();
+        final byte[] buffer = new byte[BLOCK_SIZE + 4];
+
+        Client(String name) throws IOException {
+            control = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            control.setSoTimeout(5000);
+            open.put(name + "-control", control);
+            this.name = name;
+        }
+
+        void join_group() throws IOException {
+            group = new MulticastSocket(multicast_port);
+            group.joinGroup(new InetSocketAddress(InetAddress.getByName(GROUP), multicast_port), loopback());
+            group.setSoTimeout(5000);
+            open.put(name + "-group", group);
+        }
+
+        void request(String filename) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0);
+            out.write(TftpCodec.RRQ);
+            out.writeBytes((filename + "\0octet\0multicast\0\0").getBytes(StandardCharsets.US_ASCII));
+            byte[] packet = out.toByteArray();
+            control.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), server.port()));
+        }
+
+        ByteBuffer receive_control() throws IOException {
+            DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+            control.receive(packet);
+            server_tid = (InetSocketAddress) packet.getSocketAddress();
+            return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        }
+
+        Map<String, String> await_oack() throws IOException {
+            ByteBuffer packet = receive_control();
+            assertEquals(TftpCodec.OACK, TftpCodec.opcode(packet), name + " expected an oack");
+            Map<String, String> options = options(packet);
+            if (options.getOrDefault("multicast", "").endsWith(",1")) master_oack = true;
+            return options;
+        }
+
+        // the oack that makes this client master, skipping listener oacks sent again
+        Map<String, String> await_master_oack() throws IOException {
+            while (true) {
+                Map<String, String> options = await_oack();
+                if (options.getOrDefault("multicast", "").endsWith(",1")) return options;
+            }
+        }
+
+        boolean was_master() throws IOException {
+            control.setSoTimeout(200);
+            try {
+                while (true) await_oack();
+            } catch (SocketTimeoutException e) {
+                return master_oack;
+            } finally {
+                control.setSoTimeout(5000);
+            }
+        }
+
+        void ack(long block) throws IOException {
+            byte[] ack = {0, (byte) TftpCodec.ACK, (byte) (block >> 8), (byte) block};
+            control.send(new DatagramPacket(ack, ack.length, server_tid));
+        }
+
+        // group packets until the given block is held, retransmitted blocks are kept once
+        void receive_until(long block) throws IOException {
+            while (!holds(block)) receive_data();
+        }
+
+        // whatever the group already delivered
+        void drain() throws IOException {
+            group.setSoTimeout(200);
+            try {
+                while (true) receive_data();
+            } catch (SocketTimeoutException e) {
+                group.setSoTimeout(5000);
+            }
+        }
+
+        private void receive_data() throws IOException {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            group.receive(packet);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            assertEquals(TftpCodec.DATA, TftpCodec.opcode(data));
+            blocks.putIfAbsent((long) TftpCodec.block(data), Arrays.copyOfRange(buffer, 4, packet.getLength()));
+        }
+
+        boolean holds(long block) {
+            return blocks.containsKey(block);
+        }
+
+        // the last block held with every block before it
+        long in_order() {
+            long block = 0;
+            while (holds(block + 1)) block++;
+            return block;
+        }
+
+        byte[] file() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (long block = 1; block <= in_order(); block++) out.writeBytes(blocks.get(block));
+            return out.toByteArray();
+        }
+    }
+
+    // name and value pairs after the opcode
+    private static Map<String, String> options(ByteBuffer packet) {
+        Map<String, String> options = new LinkedHashMap<>();
+        String[] fields = new String(packet.array(), 2, packet.limit() - 2, StandardCharsets.US_ASCII).split("\0", -1);
+        for (int i = 0; i + 1 < fields.length; i += 2) options.put(fields[i], fields[i + 1]);
+        return options;
+    }
+}
@@ -0,0 +1,177 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static tftp.TestData.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// the single socket engine over loopback: plain RFC 1350 transfers with 512 byte blocks and a window of one
+class NioEngineTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path root;
+
+    private TftpServer server;
+    private final List<DatagramSocket> clients = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        server = TftpServer.builder()
+                .engine("nio")
+                .root(root.toString())
+                //reads go through the shared mappings, not the packet cache
+                .packet_cache(0, 0, 1)
+                .map_files(true)
+                .rto(100, 5, 1000)
+                .max_retries(3)
+                .build()
+                .start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (DatagramSocket client : clients) client.close();
+        server.close();
+    }
+
+    private DatagramSocket client() throws IOException {
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client.setSoTimeout(5000);
+        clients.add(client);
+        return client;
+    }
+
+    private void request(DatagramSocket client, int opcode, String filename) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(opcode);
+        out.writeBytes((filename + "\0octet\0").getBytes(StandardCharsets.US_ASCII));
+        byte[] packet = out.toByteArray();
+        client.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), server.port()));
+    }
+
+    private static DatagramPacket receive(DatagramSocket client) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[BLOCK_SIZE + 4], BLOCK_SIZE + 4);
+        client.receive(packet);
+        return packet;
+    }
+
+    private static ByteBuffer wrap(DatagramPacket packet) {
+        return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+    }
+
+    private static void ack(DatagramSocket client, long block) throws IOException {
+        byte[] ack = {0, (byte) TftpCodec.ACK, (byte) (block >> 8), (byte) block};
+        client.send(new DatagramPacket(ack, ack.length, InetAddress.getLoopbackAddress(), server_port(client)));
+    }
+
+    private static int server_port(DatagramSocket client) {
+        return ((InetSocketAddress) client.getRemoteSocketAddress()).getPort();
+    }
+
+    // RRQ, then an ack for every block until the short one
+    private byte[] read(String filename) throws IOException {
+        DatagramSocket client = client();
+        request(client, TftpCodec.RRQ, filename);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (long block = 1; ; block++) {
+            DatagramPacket packet = receive(client);
+            ByteBuffer data = wrap(packet);
+            assertEquals(TftpCodec.DATA, TftpCodec.opcode(data));
+            assertEquals(block, TftpCodec.block(data));
+            //replies come from the listening port, not from a new TID
+            assertEquals(server.port(), packet.getPort());
+            file.write(packet.getData(), 4, packet.getLength() - 4);
+            byte[] ack = {0, (byte) TftpCodec.ACK, (byte) (block >> 8), (byte) block};
+            client.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            if (packet.getLength() - 4 < BLOCK_SIZE) return file.toByteArray();
+        }
+    }
+
+    private static String error_message(DatagramPacket packet) {
+        int end = 4;
+        while (end < packet.getLength() && packet.getData()[end] != 0) end++;
+        return new String(packet.getData(), 4, end - 4, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void a_read_is_served_block_by_block() throws IOException {
+        byte[] content = content(3 * BLOCK_SIZE + 10, 1);
+        Files.write(root.resolve("boot.img"), content);
+        assertArrayEquals(content, read("boot.img"));
+        //a file of whole blocks ends with an empty one
+        byte[] whole = content(2 * BLOCK_SIZE, 2);
+        Files.write(root.resolve("whole.img"), whole);
+        assertArrayEquals(whole, read("whole.img"));
+    }
+
+    @Test
+    void a_write_is_acked_block_by_block_and_committed() throws IOException {
+        byte[] content = content(4 * BLOCK_SIZE + 100, 3);
+        DatagramSocket client = client();
+        request(client, TftpCodec.WRQ, "upload.bin");
+        DatagramPacket reply = receive(client);
+        assertEquals(TftpCodec.ACK, TftpCodec.opcode(wrap(reply)));
+        assertEquals(0, TftpCodec.block(wrap(reply)));
+
+        for (int block = 1, offset = 0; offset <= content.length; block++, offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, content.length - offset);
+            byte[] data = new byte[4 + length];
+            TftpCodec.put_data_header(ByteBuffer.wrap(data), block);
+            System.arraycopy(content, offset, data, 4, length);
+            client.send(new DatagramPacket(data, data.length, reply.getSocketAddress()));
+            reply = receive(client);
+            assertEquals(TftpCodec.ACK, TftpCodec.opcode(wrap(reply)));
+            assertEquals(block, TftpCodec.block(wrap(reply)));
+        }
+        //the last ack goes out once the file is renamed into place
+        assertArrayEquals(content, Files.readAllBytes(root.resolve("upload.bin")));
+    }
+
+    @Test
+    void a_file_truncated_during_a_read_ends_only_its_session() throws IOException {
+        Path path = Files.write(root.resolve("shrinking.img"), content(64 * BLOCK_SIZE, 4));
+        byte[] other = content(5 * BLOCK_SIZE + 1, 5);
+        Files.write(root.resolve("other.img"), other);
+
+        DatagramSocket client = client();
+        request(client, TftpCodec.RRQ, "shrinking.img");
+        DatagramPacket packet = receive(client);
+        assertEquals(TftpCodec.DATA, TftpCodec.opcode(wrap(packet)));
+        client.connect(packet.getSocketAddress());
+
+        //the mapping outlives the file's pages, the next block read faults with an InternalError
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        }
+        ack(client, 1);
+        do {
+            packet = receive(client);
+        } while (TftpCodec.opcode(wrap(packet)) == TftpCodec.DATA);
+        assertEquals(TftpCodec.ERROR, TftpCodec.opcode(wrap(packet)));
+        assertEquals(TftpCodec.ERROR_UNDEFINED, TftpCodec.block(wrap(packet)));
+        assertEquals("Internal server error", error_message(packet));
+
+        //the loop is still serving
+        assertArrayEquals(other, read("other.img"));
+    }
+}
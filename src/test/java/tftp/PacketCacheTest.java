@@ -0,0 +1,181 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static tftp.TestData.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// hot files as prebuilt packets: admission after repeated requests, versions, eviction and the counters
+class PacketCacheTest {
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path directory;
+
+    //loads run on the requesting thread, so an admitted file is cached once open returns
+    private final AtomicInteger loads_started = new AtomicInteger();
+    private final Executor loader = work -> {
+        loads_started.incrementAndGet();
+        work.run();
+    };
+
+    private Path file(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content);
+    }
+
+    private static BlockSource open(PacketCache cache, Path path, int block_size) throws IOException {
+        return cache.open(path.toString(), block_size, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+    }
+
+    private static byte[] read_all(BlockSource source) {
+        byte[] all = new byte[(int) source.size()];
+        for (long index = 0; index * source.block_size() <= source.size(); index++) {
+            ByteBuffer packet = source.packet_view(index);
+            assertEquals(index + 1, packet.getShort(packet.position() + 2));
+            int length = packet.remaining() - 4;
+            packet.get(packet.position() + 4, all, (int) (index * source.block_size()), length);
+        }
+        return all;
+    }
+
+    @Test
+    void a_file_is_loaded_after_admit_after_requests() throws IOException {
+        byte[] content = content(3 * BLOCK_SIZE + 17, 1);
+        Path path = file("hot.bin", content);
+        PacketCache cache = new PacketCache(1 << 20, 1 << 20, 3, loader);
+
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertEquals(0, loads_started.get());
+        //the third request loads the file, later ones are hits
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertEquals(1, cache.loads.sum());
+        BlockSource source = open(cache, path, BLOCK_SIZE);
+        assertNotNull(source);
+        assertArrayEquals(content, read_all(source));
+
+        byte[] block = new byte[BLOCK_SIZE];
+        assertEquals(17, source.read_block(3, block, 0));
+        assertArrayEquals(Arrays.copyOfRange(content, 3 * BLOCK_SIZE, content.length), Arrays.copyOf(block, 17));
+
+        assertEquals(1, cache.hits.sum());
+        assertEquals(3, cache.misses.sum());
+        assertEquals(1, cache.entry_count());
+        //four slots of a header and a block
+        assertEquals(4 * (BLOCK_SIZE + 4), cache.used_bytes());
+    }
+
+    @Test
+    void block_sizes_are_cached_apart() throws IOException {
+        Path path = file("sizes.bin", content(2000, 2));
+        PacketCache cache = new PacketCache(1 << 20, 1 << 20, 1, loader);
+        assertNull(open(cache, path, 512));
+        assertNull(open(cache, path, 1024));
+        assertEquals(512, open(cache, path, 512).block_size());
+        assertEquals(1024, open(cache, path, 1024).block_size());
+        assertEquals(2, cache.entry_count());
+
+        //a write replacing the file drops it for every block size
+        cache.invalidate(path.toString());
+        assertEquals(0, cache.entry_count());
+        assertEquals(0, cache.used_bytes());
+        assertEquals(2, cache.invalidations.sum());
+    }
+
+    @Test
+    void another_size_or_modification_time_drops_the_entry() throws IOException {
+        byte[] content = content(1000, 3);
+        Path path = file("changing.bin", content);
+        PacketCache cache = new PacketCache(1 << 20, 1 << 20, 1, loader);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        assertNull(cache.open(path.toString(), BLOCK_SIZE, content.length, modified));
+        assertNotNull(cache.open(path.toString(), BLOCK_SIZE, content.length, modified));
+
+        assertNull(cache.open(path.toString(), BLOCK_SIZE, content.length, modified + 1000));
+        assertEquals(1, cache.invalidations.sum());
+        assertEquals(0, cache.entry_count());
+
+        //the counter starts over for the new version
+        byte[] longer = content(1500, 4);
+        file("changing.bin", longer);
+        PacketCache strict = new PacketCache(1 << 20, 1 << 20, 2, loader);
+        assertNull(open(strict, path, BLOCK_SIZE));
+        assertNull(open(strict, path, BLOCK_SIZE));
+        assertNull(strict.open(path.toString(), BLOCK_SIZE, 1000, modified));
+        assertEquals(1, strict.invalidations.sum());
+        assertNull(open(strict, path, BLOCK_SIZE));
+        assertArrayEquals(longer, read_all(open(strict, path, BLOCK_SIZE)));
+    }
+
+    @Test
+    void the_least_recently_used_file_is_evicted() throws IOException {
+        //room for two files of four slots each
+        long file_bytes = 4 * (BLOCK_SIZE + 4);
+        PacketCache cache = new PacketCache(2 * file_bytes, file_bytes, 1, loader);
+        Path a = file("a.bin", content(3 * BLOCK_SIZE, 5));
+        Path b = file("b.bin", content(3 * BLOCK_SIZE, 6));
+        Path c = file("c.bin", content(3 * BLOCK_SIZE, 7));
+        open(cache, a, BLOCK_SIZE);
+        open(cache, b, BLOCK_SIZE);
+        //a is used again, so b is the eldest when c comes in
+        assertNotNull(open(cache, a, BLOCK_SIZE));
+        open(cache, c, BLOCK_SIZE);
+
+        assertEquals(1, cache.evictions.sum());
+        assertEquals(2, cache.entry_count());
+        assertEquals(2 * file_bytes, cache.used_bytes());
+        assertNotNull(open(cache, a, BLOCK_SIZE));
+        assertNotNull(open(cache, c, BLOCK_SIZE));
+        assertNull(open(cache, b, BLOCK_SIZE));
+    }
+
+    @Test
+    void files_over_the_file_limit_are_never_loaded() throws IOException {
+        Path path = file("large.bin", content(5 * BLOCK_SIZE, 8));
+        PacketCache cache = new PacketCache(1 << 20, 4 * (BLOCK_SIZE + 4), 1, loader);
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertEquals(0, loads_started.get());
+        assertEquals(2, cache.misses.sum());
+    }
+
+    @Test
+    void a_file_limit_of_2_gb_or_more_is_clamped_to_one_buffer() {
+        //cache_file_max of 2048 MB or more, in a cache larger than that
+        PacketCache cache = new PacketCache(8L << 30, 4096L << 20, 1, loader);
+        //3 GB of packets cannot be one direct buffer, the request is a plain miss instead of a failing load
+        assertNull(cache.open(directory.resolve("huge.bin").toString(), BLOCK_SIZE, 3L << 30, 0));
+        assertEquals(0, loads_started.get());
+        assertEquals("8192 MB, files up to 2047 MB after 1 requests", cache.describe());
+    }
+
+    @Test
+    void stats_report_the_counters() throws IOException {
+        Path path = file("stats.bin", content(100, 9));
+        PacketCache cache = new PacketCache(1 << 20, 1 << 20, 1, loader);
+        open(cache, path, BLOCK_SIZE);
+        open(cache, path, BLOCK_SIZE);
+        assertEquals("hits 1 | misses 1 | loads 1 | evictions 0 | invalidations 0 | 1 entries, 516 bytes", cache.stats());
+    }
+
+    @Test
+    void a_disabled_cache_misses_without_counting() throws IOException {
+        Path path = file("off.bin", content(100, 10));
+        PacketCache cache = new PacketCache(0, 1 << 20, 1, loader);
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertNull(open(cache, path, BLOCK_SIZE));
+        assertEquals(0, loads_started.get());
+        assertEquals(0, cache.misses.sum());
+    }
+}
@@ -0,0 +1,181 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// confinement of request names to the root, and the cached lookups including the refusals
+class PathResolverTest {
+    @TempDir
+    Path directory;
+
+    private Path root;
+    private Path outside;
+    private PathResolver paths;
+
+    @BeforeEach
+    void create_tree() throws IOException {
+        root = Files.createDirectories(directory.resolve("root")).toRealPath();
+        outside = Files.createDirectories(directory.resolve("outside")).toRealPath();
+        Files.writeString(root.resolve("inside.txt"), "inside");
+        Files.createDirectories(root.resolve("sub"));
+        Files.writeString(root.resolve("sub/nested.txt"), "nested");
+        Files.writeString(outside.resolve("secret.txt"), "secret");
+        paths = new PathResolver(root.toString(), 1024, 60000);
+    }
+
+    @AfterEach
+    void close() {
+        paths.close();
+    }
+
+    @Test
+    void dot_dot_cannot_leave_the_root() {
+        assertNull(paths.resolve("../outside/secret.txt"));
+        assertNull(paths.resolve("sub/../../outside/secret.txt"));
+        assertNull(paths.resolve("sub/../.."));
+        assertNull(paths.resolve("..\\outside\\secret.txt"));
+        assertNull(paths.lookup("../outside/secret.txt"));
+        assertEquals(5, paths.refused.sum());
+    }
+
+    @Test
+    void dot_dot_inside_the_root_is_applied() {
+        assertEquals(root.resolve("inside.txt"), paths.resolve("sub/../inside.txt"));
+        assertEquals(root.resolve("sub/nested.txt"), paths.resolve("./sub/./nested.txt"));
+        assertEquals(root.resolve("sub/nested.txt"), paths.resolve("sub\\nested.txt"));
+        assertEquals(0, paths.refused.sum());
+    }
+
+    @Test
+    void absolute_names_start_at_the_root() {
+        assertEquals(root.resolve("inside.txt"), paths.resolve("/inside.txt"));
+        assertEquals(root.resolve("inside.txt"), paths.resolve("//inside.txt"));
+        assertEquals(root.resolve("inside.txt"), paths.resolve("\\inside.txt"));
+        //an absolute path elsewhere on the host is only a name under the root
+        assertEquals(root.resolve(outside.toString().substring(1)).resolve("secret.txt"), paths.resolve(outside.resolve("secret.txt").toString()));
+        PathResolver.Resolved resolved = paths.lookup(outside.resolve("secret.txt").toString());
+        assertNotNull(resolved);
+        assertFalse(resolved.exists());
+        assertNull(paths.resolve("/../inside.txt"));
+    }
+
+    @Test
+    void files_and_directories_are_resolved_with_their_metadata() throws IOException {
+        PathResolver.Resolved file = paths.lookup("inside.txt");
+        assertTrue(file.is_file());
+        assertEquals(6, file.size());
+        assertEquals(Files.getLastModifiedTime(root.resolve("inside.txt")).toMillis(), file.modified());
+        assertNotNull(file.file_key());
+        PathResolver.Resolved sub = paths.lookup("sub");
+        assertTrue(sub.exists());
+        assertTrue(sub.directory());
+        assertFalse(sub.is_file());
+        PathResolver.Resolved missing = paths.lookup("missing.txt");
+        assertNotNull(missing);
+        assertFalse(missing.exists());
+    }
+
+    @Test
+    void a_symlink_out_of_the_root_is_refused() throws IOException {
+        Files.createSymbolicLink(root.resolve("secret.txt"), outside.resolve("secret.txt"));
+        Files.createSymbolicLink(root.resolve("escape"), outside);
+        assertNull(paths.lookup("secret.txt"));
+        //the file itself is no link, the directory above it is
+        assertNull(paths.lookup("escape/secret.txt"));
+        assertNull(paths.lookup("escape"));
+        //a write into a linked directory outside has no directory to create the file in
+        assertFalse(paths.parent_is_directory(paths.resolve("escape/new.txt")));
+    }
+
+    @Test
+    void a_symlink_inside_the_root_is_followed() throws IOException {
+        Files.createSymbolicLink(root.resolve("alias.txt"), root.resolve("sub/nested.txt"));
+        Files.createSymbolicLink(root.resolve("alias"), root.resolve("sub"));
+        Files.createSymbolicLink(root.resolve("relative.txt"), Path.of("sub/nested.txt"));
+        assertTrue(paths.lookup("alias.txt").is_file());
+        assertEquals(6, paths.lookup("alias.txt").size());
+        assertTrue(paths.lookup("alias/nested.txt").is_file());
+        assertTrue(paths.lookup("relative.txt").is_file());
+        assertTrue(paths.parent_is_directory(paths.resolve("alias/new.txt")));
+    }
+
+    @Test
+    void a_relative_symlink_climbing_out_is_refused() throws IOException {
+        Files.createSymbolicLink(root.resolve("sub/up.txt"), Path.of("../../outside/secret.txt"));
+        assertNull(paths.lookup("sub/up.txt"));
+    }
+
+    @Test
+    void lookups_are_cached_including_refusals() throws IOException {
+        Files.createSymbolicLink(root.resolve("link.txt"), outside.resolve("secret.txt"));
+        assertNull(paths.lookup("link.txt"));
+        assertNotNull(paths.lookup("inside.txt"));
+        long misses = paths.misses.sum();
+        assertNull(paths.lookup("link.txt"));
+        assertNotNull(paths.lookup("inside.txt"));
+        assertEquals(misses, paths.misses.sum());
+        assertEquals(2, paths.hits.sum());
+
+        //without a watcher the refusal stands until it ages out or a write invalidates the name
+        Files.delete(root.resolve("link.txt"));
+        Files.createSymbolicLink(root.resolve("link.txt"), root.resolve("inside.txt"));
+        assertNull(paths.lookup("link.txt"));
+        paths.invalidate(root.resolve("link.txt").toString());
+        assertTrue(paths.lookup("link.txt").is_file());
+    }
+
+    @Test
+    void the_watcher_clears_a_cached_refusal_when_the_link_changes() throws Exception {
+        Files.createSymbolicLink(root.resolve("link.txt"), outside.resolve("secret.txt"));
+        paths.watch();
+        //the tree is registered on the watcher thread, the refusal is cached once the events are on
+        Thread.sleep(200);
+        assertNull(paths.lookup("link.txt"));
+        assertNull(paths.lookup("link.txt"));
+        assertTrue(paths.hits.sum() > 0);
+
+        Files.delete(root.resolve("link.txt"));
+        Files.createSymbolicLink(root.resolve("link.txt"), root.resolve("inside.txt"));
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        PathResolver.Resolved resolved = paths.lookup("link.txt");
+        while (resolved == null && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            resolved = paths.lookup("link.txt");
+        }
+        assertNotNull(resolved, "the watch event invalidated the refusal");
+        assertTrue(resolved.is_file());
+        assertTrue(paths.invalidations.sum() > 0);
+    }
+
+    @Test
+    void the_watcher_drops_entries_of_changed_files() throws Exception {
+        paths.watch();
+        Thread.sleep(200);
+        assertEquals(6, paths.lookup("sub/nested.txt").size());
+        Files.writeString(root.resolve("sub/nested.txt"), "changed content");
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (paths.lookup("sub/nested.txt").size() != 15 && System.nanoTime() < deadline) Thread.sleep(20);
+        assertEquals(15, paths.lookup("sub/nested.txt").size());
+    }
+
+    @Test
+    void the_store_level_normalization_refuses_the_same_escapes() {
+        assertNull(FileStore.normalize("../secret.txt"));
+        assertNull(FileStore.normalize("a/../../secret.txt"));
+        assertNull(FileStore.normalize("..\\secret.txt"));
+        assertEquals("a/b.txt", FileStore.normalize("/a/./c/../b.txt"));
+        assertEquals("inside.txt", FileStore.normalize("//inside.txt"));
+        assertEquals("", FileStore.normalize("/"));
+    }
+}
@@ -0,0 +1,99 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetAddress;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class RttEstimatorTest {
+    private static final long MS = 1_000_000L;
+
+    //500 ms until the first sample, between 5 ms and 1 s after
+    private final RttEstimator rtt = new RttEstimator(500, 5, 1000);
+
+    @Test
+    void starts_at_the_initial_timeout() {
+        assertEquals(500, rtt.timeout_ms());
+        assertEquals(-1, rtt.srtt_us());
+    }
+
+    @Test
+    void smooths_samples_as_in_rfc_6298() {
+        //first sample: srtt = r, rttvar = r / 2, rto = srtt + 4 * rttvar
+        rtt.sample(100 * MS);
+        assertEquals(100_000, rtt.srtt_us());
+        assertEquals(300, rtt.timeout_ms());
+
+        //rttvar = (3 * 50000 + |100000 - 120000|) / 4 = 42500, srtt = (7 * 100000 + 120000) / 8 = 102500
+        rtt.sample(120 * MS);
+        assertEquals(102_500, rtt.srtt_us());
+        assertEquals(273, rtt.timeout_ms());
+
+        //rttvar = (3 * 42500 + |102500 - 80000|) / 4 = 37500, srtt = (7 * 102500 + 80000) / 8 = 99687
+        rtt.sample(80 * MS);
+        assertEquals(99_687, rtt.srtt_us());
+        assertEquals(250, rtt.timeout_ms());
+    }
+
+    @Test
+    void backoff_doubles_until_the_maximum() {
+        rtt.sample(100 * MS);
+        assertEquals(300, rtt.timeout_ms());
+        rtt.backoff();
+        assertEquals(600, rtt.timeout_ms());
+        rtt.backoff();
+        assertEquals(1000, rtt.timeout_ms());
+        for (int i = 0; i < 40; i++) rtt.backoff();
+        assertEquals(1000, rtt.timeout_ms());
+    }
+
+    @Test
+    void the_backed_off_timeout_holds_until_the_next_sample() {
+        rtt.backoff();
+        assertEquals(1000, rtt.timeout_ms());
+        //Karn's rule is the caller's, an estimator without a new sample stays backed off
+        assertEquals(1000, rtt.timeout_ms());
+        rtt.sample(100 * MS);
+        assertEquals(300, rtt.timeout_ms());
+    }
+
+    @Test
+    void clamps_to_the_configured_bounds() {
+        RttEstimator bounded = new RttEstimator(500, 50, 1000);
+        bounded.sample(1 * MS);
+        assertEquals(50, bounded.timeout_ms());
+        bounded.sample(5000 * MS);
+        assertEquals(1000, bounded.timeout_ms());
+        //an initial timeout outside the bounds is clamped too
+        assertEquals(1000, new RttEstimator(60000, 5, 1000).timeout_ms());
+        assertEquals(5, new RttEstimator(1, 5, 1000).timeout_ms());
+    }
+
+    @Test
+    void a_fixed_timeout_ignores_samples_and_backoff() {
+        RttEstimator fixed = RttEstimator.fixed(3000);
+        fixed.sample(10 * MS);
+        fixed.sample(20 * MS);
+        assertEquals(3000, fixed.timeout_ms());
+        assertEquals(-1, fixed.srtt_us());
+        fixed.backoff();
+        assertEquals(3000, fixed.timeout_ms());
+    }
+
+    @Test
+    void the_timeout_option_selects_a_fixed_estimator_that_still_records_samples() throws Exception {
+        TftpConfig config = new TftpConfig();
+        Histogram samples = new Histogram("rtt", "round trips", 1000, 10_000, 100_000);
+        TftpOptions options = TftpOptions.negotiate(Map.of("timeout", "2"), config, InetAddress.getLoopbackAddress());
+        RttEstimator requested = RttEstimator.create(config, options, samples);
+        requested.sample(50 * MS);
+        assertEquals(2000, requested.timeout_ms());
+        assertEquals(1, samples.count());
+
+        RttEstimator adaptive = RttEstimator.create(config, TftpOptions.negotiate(Map.of(), config, InetAddress.getLoopbackAddress()), samples);
+        assertEquals(config.initial_rto, adaptive.timeout_ms());
+        adaptive.sample(50 * MS);
+        assertEquals(2, samples.count());
+    }
+}
@@ -0,0 +1,91 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+// the blocking engine's live sessions: one per client address, port, opcode and filename
+class SessionTableTest {
+    private final SessionTable table = new SessionTable();
+    private final InetAddress client = InetAddress.getLoopbackAddress();
+
+    private SessionTable.Key key(int port, int opcode, String filename) {
+        return new SessionTable.Key(client, port, opcode, filename);
+    }
+
+    @Test
+    void a_repeated_request_is_absorbed_while_its_session_lives() {
+        assertNotNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+        assertNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+        assertNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+        assertEquals(2, table.absorbed.sum());
+        assertEquals(0, table.resent.sum());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void each_part_of_the_key_tells_sessions_apart() throws Exception {
+        assertNotNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+        //another source port is another client TID
+        assertNotNull(table.open(key(4001, TftpCodec.RRQ, "boot.img")));
+        assertNotNull(table.open(key(4000, TftpCodec.WRQ, "boot.img")));
+        assertNotNull(table.open(key(4000, TftpCodec.RRQ, "kernel.img")));
+        assertNotNull(table.open(new SessionTable.Key(InetAddress.getByName("127.0.0.2"), 4000, TftpCodec.RRQ, "boot.img")));
+        assertEquals(5, table.size());
+        assertEquals(0, table.absorbed.sum());
+    }
+
+    @Test
+    void closing_removes_the_entry_so_the_request_starts_a_new_session() {
+        SessionTable.Entry entry = table.open(key(4000, TftpCodec.RRQ, "boot.img"));
+        entry.close();
+        assertEquals(0, table.size());
+        SessionTable.Entry again = table.open(key(4000, TftpCodec.RRQ, "boot.img"));
+        assertNotNull(again);
+        //a second close of the old entry leaves the new one in place
+        entry.close();
+        assertEquals(1, table.size());
+        assertNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+    }
+
+    @Test
+    void the_first_reply_is_resent_until_it_is_answered() throws Exception {
+        try (DatagramSocket session = new DatagramSocket(0, client); DatagramSocket receiver = new DatagramSocket(0, client)) {
+            receiver.setSoTimeout(5000);
+            byte[] oack = {0, (byte) TftpCodec.OACK, 'b', 'l', 'k', 's', 'i', 'z', 'e', 0, '1', '4', '6', '8', 0};
+            SessionTable.Entry entry = table.open(key(receiver.getLocalPort(), TftpCodec.RRQ, "boot.img"));
+            entry.awaiting(session, new DatagramPacket(oack, oack.length, client, receiver.getLocalPort()));
+
+            assertNull(table.open(key(receiver.getLocalPort(), TftpCodec.RRQ, "boot.img")));
+            assertEquals(1, table.resent.sum());
+            DatagramPacket received = new DatagramPacket(new byte[64], 64);
+            receiver.receive(received);
+            assertArrayEquals(oack, Arrays.copyOf(received.getData(), received.getLength()));
+            assertEquals(session.getLocalPort(), received.getPort());
+
+            //once the client acked the oack a repeat is only absorbed
+            entry.answered();
+            assertNull(table.open(key(receiver.getLocalPort(), TftpCodec.RRQ, "boot.img")));
+            assertEquals(1, table.resent.sum());
+            assertEquals(1, table.absorbed.sum());
+        }
+    }
+
+    @Test
+    void a_failed_resend_counts_as_absorbed() throws Exception {
+        DatagramSocket session = new DatagramSocket(0, client);
+        SessionTable.Entry entry = table.open(key(4000, TftpCodec.RRQ, "boot.img"));
+        entry.awaiting(session, new DatagramPacket(new byte[4], 4, client, 4000));
+        session.close();
+        assertNull(table.open(key(4000, TftpCodec.RRQ, "boot.img")));
+        assertEquals(0, table.resent.sum());
+        assertEquals(1, table.absorbed.sum());
+    }
+}
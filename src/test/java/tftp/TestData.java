@@ -0,0 +1,13 @@
+package tftp;
+
+// file contents for the tests, a seed gives distinct content of the same length
+final class TestData {
+    private TestData() {
+    }
+
+    static byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) content[i] = (byte) (i * 31 + seed);
+        return content;
+    }
+}
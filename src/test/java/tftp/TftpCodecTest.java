@@ -0,0 +1,116 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TftpCodecTest {
+    // opcode followed by the fields as written, each field NUL terminated unless it already ends the packet
+    private static ByteBuffer request(int opcode, String fields) {
+        byte[] bytes = fields.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer packet = ByteBuffer.allocate(2 + bytes.length);
+        packet.putShort((short) opcode).put(bytes);
+        return packet.flip();
+    }
+
+    @Test
+    void parses_filename_mode_and_options_in_order() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "dir/File.bin\0octet\0blksize\0" + "1024\0windowsize\0" + "8\0"));
+        assertEquals(TftpCodec.RRQ, request.opcode());
+        assertEquals("dir/File.bin", request.filename());
+        assertEquals("octet", request.mode());
+        assertEquals(List.of("blksize", "windowsize"), List.copyOf(request.options().keySet()));
+        assertEquals("1024", request.options().get("blksize"));
+        assertEquals("8", request.options().get("windowsize"));
+    }
+
+    @Test
+    void mode_and_option_names_are_case_insensitive() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.WRQ, "A.TXT\0OCTET\0BlkSize\0" + "512\0"));
+        assertEquals("A.TXT", request.filename());
+        assertEquals("octet", request.mode());
+        assertEquals(Map.of("blksize", "512"), request.options());
+    }
+
+    @Test
+    void a_repeated_option_keeps_its_last_value() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "f\0octet\0blksize\0" + "1024\0BLKSIZE\0" + "2048\0"));
+        assertEquals(Map.of("blksize", "2048"), request.options());
+    }
+
+    @Test
+    void an_option_without_a_value_is_dropped() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "f\0octet\0timeout\0" + "3\0blksize\0"));
+        assertEquals(Map.of("timeout", "3"), request.options());
+    }
+
+    @Test
+    void a_value_missing_its_terminator_is_dropped() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "f\0octet\0timeout\0" + "3\0blksize\0" + "1024"));
+        assertEquals(Map.of("timeout", "3"), request.options());
+    }
+
+    @Test
+    void an_empty_option_name_is_skipped() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "f\0octet\0\0" + "99\0windowsize\0" + "4\0"));
+        assertEquals(Map.of("windowsize", "4"), request.options());
+    }
+
+    @Test
+    void truncated_requests_parse_to_empty_fields() {
+        TftpCodec.Request only_opcode = TftpCodec.parse_request(request(TftpCodec.RRQ, ""));
+        assertEquals("", only_opcode.filename());
+        assertEquals("", only_opcode.mode());
+        assertTrue(only_opcode.options().isEmpty());
+
+        TftpCodec.Request no_mode = TftpCodec.parse_request(request(TftpCodec.RRQ, "file"));
+        assertEquals("file", no_mode.filename());
+        assertEquals("", no_mode.mode());
+        assertTrue(no_mode.options().isEmpty());
+    }
+
+    @Test
+    void non_ascii_bytes_become_question_marks() {
+        TftpCodec.Request request = TftpCodec.parse_request(request(TftpCodec.RRQ, "café\0octet\0"));
+        assertEquals("caf?", request.filename());
+    }
+
+    @Test
+    void random_requests_never_throw() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] bytes = new byte[random.nextInt(64)];
+            for (int j = 0; j < bytes.length; j++) bytes[j] = random.nextInt(4) == 0 ? 0 : (byte) random.nextInt(256);
+            TftpCodec.Request request = TftpCodec.parse_request(ByteBuffer.wrap(bytes));
+            for (Map.Entry<String, String> option : request.options().entrySet()) {
+                assertTrue(!option.getKey().isEmpty() && option.getKey().indexOf(0) < 0 && option.getValue().indexOf(0) < 0);
+            }
+        }
+    }
+
+    @Test
+    void short_packets_have_no_opcode_or_block() {
+        assertEquals(-1, TftpCodec.opcode(ByteBuffer.allocate(1)));
+        assertEquals(-1, TftpCodec.block(ByteBuffer.wrap(new byte[]{0, 4, 0})));
+        assertEquals(0xFFFF, TftpCodec.block(ByteBuffer.wrap(new byte[]{0, 4, (byte) 0xFF, (byte) 0xFF})));
+    }
+
+    @Test
+    void oack_lists_the_accepted_options_in_order() {
+        Map<String, String> accepted = new LinkedHashMap<>();
+        accepted.put("blksize", "1024");
+        accepted.put("windowsize", "8");
+        ByteBuffer oack = TftpCodec.put_oack(ByteBuffer.allocate(64), accepted);
+        byte[] bytes = new byte[oack.remaining()];
+        oack.get(bytes);
+        assertArrayEquals("\0\6blksize\0001024\0windowsize\0008\0".getBytes(StandardCharsets.US_ASCII), bytes);
+    }
+}
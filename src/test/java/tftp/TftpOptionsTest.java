@@ -0,0 +1,118 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class TftpOptionsTest {
+    private final TftpConfig config = new TftpConfig();
+
+    TftpOptionsTest() {
+        //the interface MTU would make the block size limit depend on the machine
+        config.block_size_mtu = false;
+        config.max_block_size = 8192;
+        config.max_window_size = 16;
+    }
+
+    private TftpOptions negotiate(String... pairs) {
+        Map<String, String> requested = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) requested.put(pairs[i], pairs[i + 1]);
+        return TftpOptions.negotiate(requested, config, InetAddress.getLoopbackAddress());
+    }
+
+    @Test
+    void no_options_is_a_plain_transfer() {
+        TftpOptions options = negotiate();
+        assertEquals(TftpOptions.DEFAULT_BLOCK_SIZE, options.block_size);
+        assertEquals(1, options.window_size);
+        assertEquals(0, options.timeout_seconds);
+        assertFalse(options.has_oack());
+    }
+
+    @Test
+    void accepts_and_echoes_valid_options() {
+        TftpOptions options = negotiate("timeout", "3", "windowsize", "8", "blksize", "1024");
+        assertEquals(1024, options.block_size);
+        assertEquals(8, options.window_size);
+        assertEquals(3, options.timeout_seconds);
+        //always in the same order, whatever order the client used
+        assertEquals(List.of("blksize", "windowsize", "timeout"), List.copyOf(options.accepted.keySet()));
+    }
+
+    @Test
+    void clamps_to_the_configured_limits() {
+        TftpOptions options = negotiate("blksize", "65464", "windowsize", "1000");
+        assertEquals(8192, options.block_size);
+        assertEquals(16, options.window_size);
+        assertEquals("8192", options.accepted.get("blksize"));
+        assertEquals("16", options.accepted.get("windowsize"));
+    }
+
+    @Test
+    void ignores_values_outside_the_rfc_ranges() {
+        TftpOptions options = negotiate("blksize", "7", "windowsize", "0", "timeout", "256");
+        assertEquals(TftpOptions.DEFAULT_BLOCK_SIZE, options.block_size);
+        assertEquals(1, options.window_size);
+        assertEquals(0, options.timeout_seconds);
+        assertFalse(options.has_oack());
+
+        assertFalse(negotiate("windowsize", "65536").has_oack());
+        assertFalse(negotiate("timeout", "0").has_oack());
+    }
+
+    @Test
+    void ignores_malformed_numbers() {
+        for (String value : new String[]{"", "abc", "-512", "1e3", "0x400", "99999999999"}) {
+            TftpOptions options = negotiate("blksize", value, "windowsize", value, "timeout", value);
+            assertFalse(options.has_oack(), "accepted " + value);
+            assertEquals(TftpOptions.DEFAULT_BLOCK_SIZE, options.block_size);
+        }
+    }
+
+    @Test
+    void trims_whitespace_around_numbers() {
+        assertEquals(1024, negotiate("blksize", " 1024 ").block_size);
+    }
+
+    @Test
+    void ignores_unknown_options() {
+        TftpOptions options = negotiate("tsize", "0", "multicast", "", "blksize", "1024");
+        assertEquals(Map.of("blksize", "1024"), options.accepted);
+    }
+
+    @Test
+    void a_repeated_option_is_negotiated_once_with_its_last_value() {
+        TftpCodec.Request request = TftpCodec.parse_request(request("f\0octet\0blksize\0" + "1024\0blksize\0" + "2048\0"));
+        TftpOptions options = TftpOptions.negotiate(request.options(), config, InetAddress.getLoopbackAddress());
+        assertEquals(2048, options.block_size);
+        assertEquals(Map.of("blksize", "2048"), options.accepted);
+        assertTrue(options.has_oack());
+    }
+
+    @Test
+    void the_mtu_limit_follows_the_interface_the_route_leaves_from() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        int mtu = NetworkInterface.getByInetAddress(loopback).getMTU();
+        int expected = Math.max(TftpOptions.MIN_BLOCK_SIZE, mtu - 20 - 8 - 4);
+        assertEquals(expected, TftpOptions.path_block_limit(loopback));
+        //the second request is answered from the cache, without looking up the route again
+        long lookups = TftpOptions.route_lookups.sum();
+        assertEquals(mtu, TftpOptions.interface_mtu(loopback));
+        assertEquals(expected, TftpOptions.path_block_limit(loopback));
+        assertEquals(lookups, TftpOptions.route_lookups.sum());
+    }
+
+    private static ByteBuffer request(String fields) {
+        byte[] bytes = fields.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(2 + bytes.length).putShort((short) TftpCodec.RRQ).put(bytes).flip();
+    }
+}
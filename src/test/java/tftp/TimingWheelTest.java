@@ -0,0 +1,146 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    //8 slots of 1 ms, one turn of the wheel is 8 ms
+    private final TimingWheel wheel = new TimingWheel(1, 8, 0);
+    private final List<String> fired = new ArrayList<>();
+
+    private TimingWheel.Timeout timeout(String name) {
+        return new TimingWheel.Timeout(() -> fired.add(name));
+    }
+
+    @Test
+    void fires_when_due_and_not_before() {
+        wheel.schedule(timeout("a"), 0, 5);
+        wheel.advance(4);
+        assertTrue(fired.isEmpty());
+        wheel.advance(5);
+        assertEquals(List.of("a"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void rounds_up_to_the_next_tick() {
+        TimingWheel coarse = new TimingWheel(10, 8, 0);
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout(() -> fired.add("a"));
+        coarse.schedule(timeout, 0, 25);
+        coarse.advance(29);
+        assertTrue(fired.isEmpty());
+        coarse.advance(30);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void waits_out_its_rounds() {
+        //20 ms is two full turns and 4 slots, the slot comes up at 4 and 12 before the timeout is due
+        wheel.schedule(timeout("a"), 0, 20);
+        for (long now = 0; now < 20; now++) {
+            wheel.advance(now);
+            assertTrue(fired.isEmpty(), "fired early at " + now);
+        }
+        wheel.advance(20);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void advances_over_several_turns_at_once() {
+        wheel.schedule(timeout("a"), 0, 20);
+        wheel.schedule(timeout("b"), 0, 3);
+        wheel.advance(100);
+        assertEquals(List.of("b", "a"), fired);
+        assertEquals(-1, wheel.next_delay(100));
+    }
+
+    @Test
+    void shares_a_slot_across_rounds() {
+        //3 and 11 fall into the same slot one turn apart
+        wheel.schedule(timeout("a"), 0, 3);
+        wheel.schedule(timeout("b"), 0, 11);
+        wheel.advance(3);
+        assertEquals(List.of("a"), fired);
+        wheel.advance(10);
+        assertEquals(List.of("a"), fired);
+        wheel.advance(11);
+        assertEquals(List.of("a", "b"), fired);
+    }
+
+    @Test
+    void cancel_before_the_last_round() {
+        TimingWheel.Timeout a = timeout("a");
+        wheel.schedule(a, 0, 20);
+        wheel.advance(12);
+        wheel.cancel(a);
+        assertFalse(a.pending());
+        assertEquals(0, wheel.size());
+        wheel.advance(40);
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    void cancel_leaves_the_rest_of_the_slot() {
+        TimingWheel.Timeout a = timeout("a");
+        TimingWheel.Timeout b = timeout("b");
+        TimingWheel.Timeout c = timeout("c");
+        wheel.schedule(a, 0, 11);
+        wheel.schedule(b, 0, 3);
+        wheel.schedule(c, 0, 19);
+        wheel.cancel(b);
+        wheel.cancel(b);
+        assertEquals(2, wheel.size());
+        wheel.advance(19);
+        assertEquals(List.of("a", "c"), fired);
+    }
+
+    @Test
+    void rescheduling_replaces_the_deadline() {
+        TimingWheel.Timeout a = timeout("a");
+        wheel.schedule(a, 0, 5);
+        wheel.schedule(a, 0, 30);
+        assertEquals(1, wheel.size());
+        wheel.advance(29);
+        assertTrue(fired.isEmpty());
+        wheel.advance(30);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void an_action_may_reschedule_itself() {
+        long[] now = {0};
+        TimingWheel.Timeout[] self = new TimingWheel.Timeout[1];
+        self[0] = new TimingWheel.Timeout(() -> {
+            fired.add("tick " + now[0]);
+            if (fired.size() < 3) wheel.schedule(self[0], now[0], 10);
+        });
+        wheel.schedule(self[0], 0, 10);
+        for (now[0] = 0; now[0] <= 50; now[0]++) wheel.advance(now[0]);
+        assertEquals(List.of("tick 10", "tick 20", "tick 30"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void an_idle_wheel_catches_up_to_the_clock() {
+        //nothing was advanced for a long time, the deadline still counts from now
+        wheel.schedule(timeout("a"), 1_000_000, 5);
+        wheel.advance(1_000_004);
+        assertTrue(fired.isEmpty());
+        wheel.advance(1_000_005);
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    void next_delay_points_at_the_next_occupied_slot() {
+        assertEquals(-1, wheel.next_delay(0));
+        wheel.schedule(timeout("a"), 0, 6);
+        assertEquals(6, wheel.next_delay(0));
+        assertEquals(2, wheel.next_delay(4));
+        assertEquals(0, wheel.next_delay(7));
+    }
+}
@@ -0,0 +1,55 @@
+package tftp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+// UdpServer.window_ack, which both engines use to map a 16 bit ack onto the outstanding window
+class WindowAckTest {
+    @Test
+    void acks_inside_the_window() {
+        assertEquals(1, UdpServer.window_ack(0, 8, 1));
+        assertEquals(8, UdpServer.window_ack(0, 8, 8));
+        assertEquals(5, UdpServer.window_ack(3, 8, 5));
+    }
+
+    @Test
+    void duplicates_and_acks_beyond_what_was_sent_are_dropped() {
+        assertEquals(-1, UdpServer.window_ack(3, 8, 3));
+        assertEquals(-1, UdpServer.window_ack(3, 8, 9));
+        //an ack from an earlier window maps almost a full turn ahead
+        assertEquals(-1, UdpServer.window_ack(3, 8, 2));
+    }
+
+    @Test
+    void a_window_spanning_the_wrap() {
+        //blocks 65534 .. 65540 are outstanding, on the wire 65534, 65535, 0, 1, 2, 3, 4
+        assertEquals(65535, UdpServer.window_ack(65533, 65540, 65535));
+        assertEquals(65536, UdpServer.window_ack(65533, 65540, 0));
+        assertEquals(65540, UdpServer.window_ack(65533, 65540, 4));
+        assertEquals(-1, UdpServer.window_ack(65533, 65540, 5));
+        assertEquals(-1, UdpServer.window_ack(65533, 65540, 65533));
+    }
+
+    @Test
+    void after_the_wrap() {
+        assertEquals(65537, UdpServer.window_ack(65536, 65544, 1));
+        assertEquals(-1, UdpServer.window_ack(65536, 65544, 0));
+        //a late ack from before the wrap
+        assertEquals(-1, UdpServer.window_ack(65536, 65544, 65535));
+    }
+
+    @Test
+    void several_wraps_into_a_transfer() {
+        long acked = 5L * 65536 + 65530;
+        assertEquals(acked + 6, UdpServer.window_ack(acked, acked + 32, 0));
+        assertEquals(acked + 32, UdpServer.window_ack(acked, acked + 32, 26));
+        assertEquals(-1, UdpServer.window_ack(acked, acked + 32, 27));
+    }
+
+    @Test
+    void a_full_window_of_65535_blocks() {
+        assertEquals(65535, UdpServer.window_ack(0, 65535, 65535));
+        assertEquals(65536 + 65535, UdpServer.window_ack(65536, 65536 + 65535, 65535));
+    }
+}